@@ -23,6 +23,7 @@ import javax.management.MBeanFeatureInfo;
 public class BTreeFile implements DbFile {
 
     private final File f;
+    private final PagedFile pagedFile;
     private final TupleDesc td;
     private final int tableid;
     private int keyField;
@@ -37,11 +38,16 @@ public class BTreeFile implements DbFile {
      */
     public BTreeFile(File f, int key, TupleDesc td) {
         this.f = f;
+        this.pagedFile = new PagedFile(f);
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
     }
 
+    public void close() {
+        pagedFile.close();
+    }
+
     /**
      * Returns the File backing this BTreeFile on disk.
      */
@@ -80,14 +86,13 @@ public class BTreeFile implements DbFile {
      */
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
-        BufferedInputStream bis = null;
 
         try {
-            bis = new BufferedInputStream(new FileInputStream(f));
+            // the page constructors copy what they need, so the buffer can be reused
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
+                byte[] pageBuf = PagedFile.scratch(BTreeRootPtrPage.getPageSize());
+                int retval = pagedFile.read(0, pageBuf, BTreeRootPtrPage.getPageSize());
+                if (retval == 0) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
                 if (retval < BTreeRootPtrPage.getPageSize()) {
@@ -98,14 +103,9 @@ public class BTreeFile implements DbFile {
                 BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
                 return p;
             } else {
-                byte pageBuf[] = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
+                byte pageBuf[] = PagedFile.scratch(BufferPool.getPageSize());
+                int retval = pagedFile.read(pageOffset(id.getPageNumber()), pageBuf, BufferPool.getPageSize());
+                if (retval == 0) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
                 if (retval < BufferPool.getPageSize()) {
@@ -126,17 +126,16 @@ public class BTreeFile implements DbFile {
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            // Close the file on success or error
-            try {
-                if (bis != null)
-                    bis.close();
-            } catch (IOException ioe) {
-                // Ignore failures closing the file
-            }
         }
     }
 
+    /**
+     * Returns the offset in the file of a page other than the root pointer page
+     */
+    private static long pageOffset(int pgNo) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
+    }
+
     /**
      * Write a page to disk.  This should not be called directly but should
      * be called from the BufferPool when pages are flushed to disk
@@ -147,14 +146,10 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
+            pagedFile.write(0, data);
         } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            pagedFile.write(pageOffset(page.getId().getPageNumber()), data);
         }
     }
 
@@ -163,7 +158,7 @@ public class BTreeFile implements DbFile {
      */
     public int numPages() {
         // we only ever write full pages
-        return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        return (int) ((pagedFile.size() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
     }
 
     /**
@@ -1056,15 +1051,12 @@ public class BTreeFile implements DbFile {
      */
     BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
         synchronized (this) {
-            if (f.length() == 0) {
+            if (pagedFile.size() == 0) {
                 // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
                 byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                pagedFile.write(0, emptyRootPtrData);
+                pagedFile.write(emptyRootPtrData.length, emptyLeafData);
             }
         }
 
@@ -1118,11 +1110,8 @@ public class BTreeFile implements DbFile {
         if (headerId == null) {
             synchronized (this) {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+                pagedFile.write(pagedFile.size(), emptyData);
                 emptyPageNo = numPages();
             }
         }
@@ -1152,10 +1141,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        pagedFile.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().discardPage(newPageId);
@@ -1400,6 +1386,32 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
         it = curp.iterator();
     }
 
+    /**
+     * Start a new search, for the tuples matching ipred, on the open
+     * iterator. An equality search for a key that is inside the leaf page the
+     * iterator is on starts from that page, without going down the tree
+     * again, so that searches for keys in order read each leaf page once.
+     *
+     * @param ipred - the predicate to filter on
+     */
+    void search(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+        super.close();
+        this.ipred = ipred;
+        if (curp != null && ipred.getOp() == Op.EQUALS) {
+            // an equal key may also be on the page to the left unless the
+            // first key of this page is smaller
+            Iterator<Tuple> first = curp.iterator();
+            Iterator<Tuple> last = curp.reverseIterator();
+            if (first.hasNext()
+                    && first.next().getField(f.keyField()).compare(Op.LESS_THAN, ipred.getField())
+                    && last.next().getField(f.keyField()).compare(Op.GREATER_THAN_OR_EQ, ipred.getField())) {
+                it = curp.iterator();
+                return;
+            }
+        }
+        open();
+    }
+
     /**
      * Read the next tuple either from the current page if it has more tuples matching
      * the predicate or from the next page by following the right sibling pointer.
@@ -224,13 +224,13 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: page LSN, left sibling pointer, right sibling pointer, parent pointer
+		int leafpointerbytes = Page.LSN_SIZE + 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: page LSN, one extra child pointer, parent pointer, child page category
+		int internalpointerbytes = Page.LSN_SIZE + 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
@@ -510,8 +510,8 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: page LSN, left sibling pointer, right sibling pointer, parent pointer
+		int pointerbytes = Page.LSN_SIZE + 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - pointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		//  per record, we need one bit; there are nrecords per page, so we need
@@ -534,6 +534,7 @@ public class BTreeFileEncoder {
 		if (recordcount > nrecords)
 			recordcount = nrecords;
 
+		dos.writeLong(0); // page LSN
 		dos.writeInt(0); // parent pointer
 		dos.writeInt(0); // left sibling pointer
 		dos.writeInt(0); // right sibling pointer
@@ -625,8 +626,8 @@ public class BTreeFileEncoder {
 			Type keyType, int childPageCategory)
 					throws IOException {
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: page LSN, one extra child pointer, parent pointer, child page category
+		int pointerbytes = Page.LSN_SIZE + 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		//  per entry, we need one bit; there are nentries per page, so we need
@@ -648,6 +649,7 @@ public class BTreeFileEncoder {
 		if (entrycount > nentries)
 			entrycount = nentries;
 
+		dos.writeLong(0); // page LSN
 		dos.writeInt(0); // parent pointer
 		dos.writeByte((byte) childPageCategory);
 
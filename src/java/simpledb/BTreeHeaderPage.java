@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeHeaderPage stores data for one page of a BTreeFile and 
@@ -22,15 +23,19 @@ public class BTreeHeaderPage implements Page {
 
 	private int nextPage; // next header page or 0
 	private int prevPage; // previous header page or 0
+	private volatile long lsn;
 
+	// the before image, or null while the page has not changed since
+	// setBeforeImage() (see BTreePage)
 	byte[] oldData;
+	private long oldLSN;
 	private final Byte oldDataLock=new Byte((byte)0);
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
-	 * The format of a BTreeHeaderPage is two pointers to the next and previous
-	 * header pages, followed by a set of bytes indicating which pages in the file
-	 * are used or available
+	 * The format of a BTreeHeaderPage is the page LSN and two pointers to the
+	 * next and previous header pages, followed by a set of bytes indicating
+	 * which pages in the file are used or available
 	 * @see BufferPool#getPageSize()
 	 * 
 	 */
@@ -39,6 +44,8 @@ public class BTreeHeaderPage implements Page {
 		this.numSlots = getNumSlots();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+		this.lsn = dis.readLong();
+
 		// Read the next and prev pointers
 		try {
 			Field f = Type.INT_TYPE.parse(dis);
@@ -68,6 +75,7 @@ public class BTreeHeaderPage implements Page {
 	 * Initially mark all slots in the header used.
 	 */
 	public void init() {
+		beforeWrite();
 		for (int i=0; i<header.length; i++)
 			header[i] = (byte) 0xFF;
 	}
@@ -76,8 +84,8 @@ public class BTreeHeaderPage implements Page {
 	 * Computes the number of bytes in the header while saving room for pointers
 	 */
 	private static int getHeaderSize() {        
-		// pointerBytes: nextPage and prevPage pointers
-		int pointerBytes = 2 * INDEX_SIZE; 
+		// pointerBytes: page LSN, nextPage and prevPage pointers
+		int pointerBytes = LSN_SIZE + 2 * INDEX_SIZE; 
 		return BufferPool.getPageSize() - pointerBytes;
 	}
 
@@ -92,12 +100,7 @@ public class BTreeHeaderPage implements Page {
         -- used by recovery */
 	public BTreeHeaderPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeHeaderPage(pid,oldDataRef);
+			return new BTreeHeaderPage(pid,getBeforeImageData());
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -109,7 +112,30 @@ public class BTreeHeaderPage implements Page {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = null;
+			oldLSN = lsn;
+		}
+	}
+
+	private byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			if (oldData != null) {
+				return oldData;
+			}
+			byte[] data = getPageData();
+			ByteBuffer.wrap(data).putLong(0, oldLSN);
+			return data;
+		}
+	}
+
+	/** Make the before image before the first change since setBeforeImage() */
+	private void beforeWrite() {
+		synchronized(oldDataLock)
+		{
+			if (oldData == null) {
+				oldData = getBeforeImageData();
+			}
 		}
 	}
 
@@ -120,6 +146,14 @@ public class BTreeHeaderPage implements Page {
 		return pid;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -136,6 +170,12 @@ public class BTreeHeaderPage implements Page {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		try {
+			dos.writeLong(lsn);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// write out the next and prev pointers
 		try {
 			dos.writeInt(nextPage);
@@ -211,6 +251,7 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setPrevPageId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			prevPage = 0;
 		}
@@ -231,6 +272,7 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setNextPageId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			nextPage = 0;
 		}
@@ -277,6 +319,7 @@ public class BTreeHeaderPage implements Page {
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
 	public void markSlotUsed(int i, boolean value) {
+		beforeWrite();
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 
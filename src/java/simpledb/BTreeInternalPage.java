@@ -70,6 +70,8 @@ public class BTreeInternalPage extends BTreePage {
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+		this.lsn = dis.readLong();
+
 		// Read the parent pointer
 		try {
 			Field f = Type.INT_TYPE.parse(dis);
@@ -117,9 +119,9 @@ public class BTreeInternalPage extends BTreePage {
 	public int getMaxEntries() {        
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
-		// extraBits are: one parent pointer, 1 byte for child page category, 
+		// extraBits are: page LSN, one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
+		int extraBits = LSN_SIZE * 8 + 2 * INDEX_SIZE * 8 + 8 + 1; 
 		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
@@ -140,12 +142,7 @@ public class BTreeInternalPage extends BTreePage {
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,getBeforeImageData(),keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -154,13 +151,6 @@ public class BTreeInternalPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
-	}
-
 	/**
 	 * Read keys from the source file.
 	 */
@@ -236,6 +226,12 @@ public class BTreeInternalPage extends BTreePage {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		try {
+			dos.writeLong(lsn);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// write out the parent pointer
 		try {
 			dos.writeInt(parent);
@@ -315,7 +311,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
+		int zerolen = BufferPool.getPageSize() - (LSN_SIZE + INDEX_SIZE + 1 + header.length + 
 				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
@@ -345,6 +341,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *        delete the left child
 	 */
 	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
+		beforeWrite();
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete entry with null rid");
@@ -402,6 +399,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         order on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
+		beforeWrite();
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to update entry with null rid");
@@ -441,6 +439,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
+		beforeWrite();
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
 
@@ -550,6 +549,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * headers
 	 */
 	private void moveEntry(int from, int to) {
+		beforeWrite();
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			keys[to] = keys[from];
@@ -591,6 +591,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * Abstraction to fill or clear a slot on this page.
 	 */
 	private void markSlotUsed(int i, boolean value) {
+		beforeWrite();
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 
@@ -44,7 +44,8 @@ public class BTreeLeafPage extends BTreePage {
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
 	 * the slots of the page that are in use, and some number of tuple slots, 
-	 * as well as some extra bytes for the parent and sibling pointers.
+	 * as well as some extra bytes for the page LSN and the parent and sibling
+	 * pointers.
 	 *  Specifically, the number of tuples is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
 	 * <p> where tuple size is the size of tuples in this
@@ -66,6 +67,8 @@ public class BTreeLeafPage extends BTreePage {
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+		this.lsn = dis.readLong();
+
 		// Read the parent and sibling pointers
 		try {
 			Field f = Type.INT_TYPE.parse(dis);
@@ -111,8 +114,8 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public int getMaxTuples() {        
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
-		int extraBits = 3 * INDEX_SIZE * 8; 
+		// extraBits are: page LSN, left sibling pointer, right sibling pointer, parent pointer
+		int extraBits = LSN_SIZE * 8 + 3 * INDEX_SIZE * 8; 
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
@@ -132,12 +135,7 @@ public class BTreeLeafPage extends BTreePage {
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,getBeforeImageData(),keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -146,13 +144,6 @@ public class BTreeLeafPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
-	}
-
 	/**
 	 * Read tuples from the source file.
 	 */
@@ -203,6 +194,12 @@ public class BTreeLeafPage extends BTreePage {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		try {
+			dos.writeLong(lsn);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// write out the parent and sibling pointers
 		try {
 			dos.writeInt(parent);
@@ -262,7 +259,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - (LSN_SIZE + header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -287,6 +284,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to delete
 	 */
 	public void deleteTuple(Tuple t) throws DbException {
+		beforeWrite();
 		RecordId rid = t.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete tuple with null rid");
@@ -307,6 +305,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to add.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
+		beforeWrite();
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
@@ -363,6 +362,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * headers and RecordId
 	 */
 	private void moveRecord(int from, int to) {
+		beforeWrite();
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			RecordId rid = new RecordId(pid, to);
@@ -400,6 +400,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			leftSibling = 0;
 		}
@@ -420,6 +421,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			rightSibling = 0;
 		}
@@ -465,6 +467,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * Abstraction to fill or clear a slot on this page.
 	 */
 	private void markSlotUsed(int i, boolean value) {
+		beforeWrite();
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -21,7 +22,12 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	protected volatile long lsn; // stored before everything else on disk
+	// the before image, or null while the page has not changed since
+	// setBeforeImage(); it is made before the first change, so a page that
+	// is only read does not keep its bytes as well
 	protected byte[] oldData;
+	private long oldLSN;
 	protected final Byte oldDataLock=new Byte((byte)0);
 
 	/**
@@ -61,6 +67,50 @@ public abstract class BTreePage implements Page {
 		return pid;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = null;
+			oldLSN = lsn;
+		}
+	}
+
+	/**
+	 * @return the bytes of the before image
+	 */
+	protected byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			if (oldData != null) {
+				return oldData;
+			}
+			byte[] data = getPageData();
+			ByteBuffer.wrap(data).putLong(0, oldLSN);
+			return data;
+		}
+	}
+
+	/**
+	 * Make the before image, if this is the first change to the page since
+	 * setBeforeImage(). Every method that changes the page calls this first.
+	 */
+	protected void beforeWrite() {
+		synchronized(oldDataLock)
+		{
+			if (oldData == null) {
+				oldData = getBeforeImageData();
+			}
+		}
+	}
+
 	/**
 	 * Static method to generate a byte array corresponding to an empty
 	 * BTreePage.
@@ -101,6 +151,7 @@ public abstract class BTreePage implements Page {
 		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
 			throw new DbException("parent must be an internal node or root pointer");
 		}
+		beforeWrite();
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = 0;
 		}
@@ -68,6 +68,17 @@ public class BTreeRootPtrPage implements Page {
 		return new BTreePageId(tableid, 0, BTreePageId.ROOT_PTR);
 	}
 
+	/**
+	 * The root pointer page is too small to carry an LSN, so recovery always
+	 * redoes its updates.
+	 */
+	public long getLSN() {
+		return 0;
+	}
+
+	public void setLSN(long lsn) {
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this root pointer page.
 	 * Used to serialize this root pointer page to disk.
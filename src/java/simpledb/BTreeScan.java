@@ -6,7 +6,7 @@ import java.util.*;
  * BTreeScan is an operator which reads tuples in sorted order 
  * according to a predicate
  */
-public class BTreeScan implements OpIterator {
+public class BTreeScan implements IndexOpIterator {
 
 	private static final long serialVersionUID = 1L;
 
@@ -17,6 +17,7 @@ public class BTreeScan implements OpIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int tableid;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -75,6 +76,7 @@ public class BTreeScan implements OpIterator {
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
 		this.alias = tableAlias;
+		this.tableid = tableid;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
@@ -82,17 +84,25 @@ public class BTreeScan implements OpIterator {
 		else {
 			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
 		}
-		myTd = Database.getCatalog().getTupleDesc(tableid);
-		String[] newNames = new String[myTd.numFields()];
-		Type[] newTypes = new Type[myTd.numFields()];
-		for (int i = 0; i < myTd.numFields(); i++) {
-			String name = myTd.getFieldName(i);
-			Type t = myTd.getFieldType(i);
+		myTd = aliasedTupleDesc(tableid, tableAlias);
+	}
+
+	/**
+	 * @return the TupleDesc of a scan of the table with the given alias, with
+	 *         fields named tableAlias.fieldName
+	 */
+	static TupleDesc aliasedTupleDesc(int tableid, String tableAlias) {
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		String[] newNames = new String[td.numFields()];
+		Type[] newTypes = new Type[td.numFields()];
+		for (int i = 0; i < td.numFields(); i++) {
+			String name = td.getFieldName(i);
+			Type t = td.getFieldType(i);
 
 			newNames[i] = tableAlias + "." + name;
 			newTypes[i] = t;
 		}
-		myTd = new TupleDesc(newTypes, newNames);
+		return new TupleDesc(newTypes, newNames);
 	}
 
 	public BTreeScan(TransactionId tid, int tableid, IndexPredicate ipred) {
@@ -134,6 +144,35 @@ public class BTreeScan implements OpIterator {
 		return it.next();
 	}
 
+	/**
+	 * Open the scan on the tuples that match ipred, instead of the predicate
+	 * given to the constructor.
+	 */
+	public void open(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		this.ipred = ipred;
+		it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+		open();
+	}
+
+	/**
+	 * Start over on the tuples that match ipred. The search iterator of an
+	 * open index scan is reused, and goes on from the leaf page it is on when
+	 * it can (see BTreeSearchIterator#search).
+	 */
+	public void rewind(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		if (!isOpen || !(it instanceof BTreeSearchIterator)) {
+			if (isOpen)
+				close();
+			open(ipred);
+			return;
+		}
+		this.ipred = ipred;
+		((BTreeSearchIterator) it).search(ipred);
+	}
+
 	public void close() {
 		it.close();
 		isOpen = false;
@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * BackgroundWriter is the thread that writes committed pages from the
+ * BufferPool back to their files, so that neither a commit nor an eviction
+ * has to wait for a page write.
+ * <p>
+ * A commit only forces its log records (NO FORCE); the pages it changed
+ * stay in the pool, clean as far as the transaction is concerned but not
+ * yet on disk. Every round, the writer writes enough of them to keep at
+ * least cleanFraction of the frames free to evict without a write, and at
+ * least a small trickle otherwise, oldest recLSN first and in page id
+ * order so that the writes to a file are mostly sequential. Optionally it
+ * also takes a checkpoint now and then. A checkpoint writes no pages, so
+ * how much of the log recovery has to replay depends on the writer keeping
+ * the oldest recLSN recent.
+ * <p>
+ * Interrupting the thread would close the files it is writing to, so it
+ * is stopped with a flag instead.
+ *
+ * @see BufferPool#writeBackPages
+ * @see LogFile#logCheckpoint
+ */
+class BackgroundWriter extends Thread {
+
+    static final double DEFAULT_CLEAN_FRACTION = 0.25;
+    static final long DEFAULT_INTERVAL_MILLIS = 100;
+    /** Checkpoints are left to the application unless asked for */
+    static final long DEFAULT_CHECKPOINT_MILLIS = 0;
+    /** Pages written per round even when enough frames are clean */
+    static final int TRICKLE_PAGES = 16;
+
+    private final BufferPool bufferPool;
+    private final double cleanFraction;
+    private final long intervalMillis;
+    private final long checkpointMillis;
+    // share locks on the pages being written are taken on behalf of this
+    private final TransactionId tid = new TransactionId();
+
+    private boolean stopped = false; // protected by this
+
+    BackgroundWriter(BufferPool bufferPool, double cleanFraction, long intervalMillis,
+                     long checkpointMillis) {
+        super("BufferPool-writer");
+        setDaemon(true);
+        if (cleanFraction < 0 || cleanFraction > 1) {
+            throw new IllegalArgumentException("clean fraction must be between 0 and 1");
+        }
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.bufferPool = bufferPool;
+        this.cleanFraction = cleanFraction;
+        this.intervalMillis = intervalMillis;
+        this.checkpointMillis = checkpointMillis;
+    }
+
+    /** @return how many pages to write this round */
+    int pagesToWrite() {
+        int unwritten = bufferPool.getUnwrittenCount();
+        int allowed = (int) (bufferPool.getCapacity() * (1 - cleanFraction));
+        return Math.min(unwritten, Math.max(unwritten - allowed, TRICKLE_PAGES));
+    }
+
+    public void run() {
+        long lastCheckpoint = System.currentTimeMillis();
+        while (waitRound()) {
+            try {
+                int n = pagesToWrite();
+                if (n > 0) {
+                    bufferPool.writeBackPages(tid, n);
+                }
+                if (checkpointMillis > 0
+                        && System.currentTimeMillis() - lastCheckpoint >= checkpointMillis) {
+                    Database.getLogFile().logCheckpoint();
+                    lastCheckpoint = System.currentTimeMillis();
+                }
+            } catch (IOException e) {
+                // try again next round, the pages stay in the pool
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** @return false once the writer has been stopped */
+    private synchronized boolean waitRound() {
+        if (!stopped) {
+            try {
+                wait(intervalMillis);
+            } catch (InterruptedException e) {
+                stopped = true;
+            }
+        }
+        return !stopped;
+    }
+
+    /** Stop the writer and wait for its current round to finish. */
+    void shutdown() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        if (Thread.currentThread() != this) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -15,190 +17,6 @@ import java.util.concurrent.ConcurrentHashMap;
  *
  * @Threadsafe, all fields are final
  */
-
-class LockManager {
-    enum LockType {
-        ShareLock, ExclusiveLock
-    }
-
-    static class Lock {
-        LockType type;
-        PageId pageId;
-        ArrayList<TransactionId> holders;
-
-        public Lock(LockType t, PageId pageId, ArrayList<TransactionId> holders) {
-            this.type = t;
-            this.pageId = pageId;
-            this.holders = holders;
-        }
-
-        public void setType(LockType type) {
-            this.type = type;
-        }
-
-        public LockType getType() {
-            return type;
-        }
-
-        public PageId getPageId() {
-            return pageId;
-        }
-
-        public ArrayList<TransactionId> getHolders() {
-            return holders;
-        }
-
-        public void tryUpgradeLock(TransactionId tid) {
-            if (type == LockType.ShareLock && holders.size() == 1 && holders.get(0).equals(tid)) {
-                type = LockType.ExclusiveLock;
-            }
-        }
-
-        public TransactionId addHolder(TransactionId tid) {
-            if (type == LockType.ShareLock) {
-                if (!holders.contains(tid)) {
-                    holders.add(tid);
-                }
-                return tid;
-            }
-            return null;
-        }
-    }
-
-    private final ConcurrentHashMap<PageId, Lock> lockTable;
-    private final ConcurrentHashMap<TransactionId, ArrayList<PageId>> transactionTable;
-
-    public LockManager(int lockTabCap, int transTabCap) {
-        this.lockTable = new ConcurrentHashMap<>(lockTabCap);
-        this.transactionTable = new ConcurrentHashMap<>(transTabCap);
-    }
-
-    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-        ArrayList<PageId> lockList = getLockList(tid);
-        return lockList != null && lockList.contains(pid);
-    }
-
-    private synchronized void block(PageId what, long start, long timeout)
-            throws TransactionAbortedException {
-        // activate blocking
-
-        if (System.currentTimeMillis() - start > timeout) {
-            throw new TransactionAbortedException();
-        }
-
-        try {
-            wait(timeout);
-            if (System.currentTimeMillis() - start > timeout) {
-                throw new TransactionAbortedException();
-            }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private synchronized void updateTransactionTable(TransactionId tid, PageId pid) {
-        if (transactionTable.containsKey(tid)) {
-            if (!transactionTable.get(tid).contains(pid)) {
-                transactionTable.get(tid).add(pid);
-            }
-        } else {
-            // no entry tid
-            ArrayList<PageId> lockList = new ArrayList<PageId>();
-            lockList.add(pid);
-            transactionTable.put(tid, lockList);
-        }
-    }
-
-    public synchronized void acquireLock(TransactionId tid, PageId pid, LockType reqLock, int maxTimeout)
-            throws TransactionAbortedException {
-        long start = System.currentTimeMillis();
-        Random rand = new Random();
-        long randomTimeout = rand.nextInt((maxTimeout) + 1);
-        while (true) {
-            if (lockTable.containsKey(pid)) {
-                // page is locked by some transaction
-                if (lockTable.get(pid).getType() == LockType.ShareLock) {
-                    if (reqLock == LockType.ShareLock) {
-                        updateTransactionTable(tid, pid);
-                        assert lockTable.get(pid).addHolder(tid) != null;
-                        // isAcquired = true;
-                        return;
-                    } else {
-                        // request XLock
-                        if (transactionTable.containsKey(tid) && transactionTable.get(tid).contains(pid)
-                                && lockTable.get(pid).getHolders().size() == 1) {
-                            // sanity check
-                            assert lockTable.get(pid).getHolders().get(0) == tid;
-                            // this is a combined case when lock on pid hold only by one trans (which is exactly tid)
-                            lockTable.get(pid).tryUpgradeLock(tid);
-                            // isAcquired = true;
-                            return;
-                        } else {
-                            // all need to do is just blocking
-                            block(pid, start, randomTimeout);
-                        }
-                    }
-                } else {
-                    // already get a Xlock on pid
-                    if (lockTable.get(pid).getHolders().get(0) == tid) {
-                        // Xlock means only one holder
-                        // request xlock or slock on the pid with that tid
-                        // sanity check
-                        assert lockTable.get(pid).getHolders().size() == 1;
-                        // isAcquired = true;
-                        return;
-                    } else {
-                        // otherwise block
-                        block(pid, start, randomTimeout);
-                    }
-                }
-            } else {
-                ArrayList<TransactionId> initialHolders = new ArrayList<>();
-                initialHolders.add(tid);
-                lockTable.put(pid, new Lock(reqLock, pid, initialHolders));
-                updateTransactionTable(tid, pid);
-                return;
-            }
-        }
-    }
-
-    public synchronized void releaseLock(TransactionId tid, PageId pid) {
-        // remove from trans table
-        if (transactionTable.containsKey(tid)) {
-            transactionTable.get(tid).remove(pid);
-            if (transactionTable.get(tid).size() == 0) {
-                transactionTable.remove(tid);
-            }
-        }
-        // remove from lock table
-        if (lockTable.containsKey(pid)) {
-            lockTable.get(pid).getHolders().remove(tid);
-            if (lockTable.get(pid).getHolders().size() == 0) {
-                // no more threads are waiting here
-                lockTable.remove(pid);
-            } else {
-                notifyAll();
-            }
-        }
-    }
-
-    public synchronized void releaseLocksOnTransaction(TransactionId tid) {
-        if (transactionTable.containsKey(tid)) {
-            PageId[] pidArr = new PageId[transactionTable.get(tid).size()];
-            PageId[] toRelease = transactionTable.get(tid).toArray(pidArr);
-            for (PageId pid : toRelease) {
-                releaseLock(tid, pid);
-            }
-
-        }
-    }
-
-    public synchronized ArrayList<PageId> getLockList(TransactionId tid) {
-        return transactionTable.getOrDefault(tid, null);
-    }
-}
-
-
 public class BufferPool {
     /** Bytes per page, including header. */
     private static final int PAGE_SIZE = 4096; // 4096
@@ -213,11 +31,46 @@ public class BufferPool {
     // page buffer; PageId -> page
     private ConcurrentHashMap<PageId, Page> pgBufferPool;
     private int capacity;
+    // pages being read into the pool, so that a page is read once however
+    // many transactions miss on it at once. Completed with the page once it
+    // is resident, or with null if it was dropped instead
+    private final ConcurrentHashMap<PageId, CompletableFuture<Page>> loading =
+            new ConcurrentHashMap<PageId, CompletableFuture<Page>>();
+    // frames set aside for the pages being read; the resident pages and
+    // these never exceed capacity. protected by this
+    private int reserved = 0;
 
     private LockManager lockMgr;
+    private final ReplacementPolicy replacementPolicy;
+    // off-heap frames for the resident pages that can use them, or null
+    private final PageArena arena;
+    // bumped whenever a page is written back or discarded, so that a
+    // prefetch can tell the copy it read from disk might be stale.
+    // protected by this
+    private long diskVersion = 0;
+    // committed pages whose latest version is not on disk yet (NO FORCE),
+    // mapped to their recLSN: no update of the page logged before it is
+    // missing from disk. They are written back by the background writer,
+    // on eviction, or by flushPage. Together the entries are the dirty
+    // page table of a checkpoint. protected by this
+    private final HashMap<PageId, Long> unwritten = new HashMap<PageId, Long>();
+    // running transactions that had uncommitted pages written to disk
+    // (STEAL), so an abort has to undo them from the log. protected by this
+    private final HashSet<TransactionId> stolenFrom = new HashSet<TransactionId>();
+    // resident pages with an update logged since their before image was
+    // taken. The before image of any other page is the page as its last
+    // logged update left it, so its next update can be logged as a delta
+    // from it. protected by this
+    private final HashSet<PageId> loggedSinceBefore = new HashSet<PageId>();
+    // pages that threads are changing in insertTuple or deleteTuple, with
+    // the number of such threads; they are not evicted until the change is
+    // over. protected by this
+    private final HashMap<PageId, Integer> pinned = new HashMap<PageId, Integer>();
+    // the pages the calling thread has pinned in the insertTuple or
+    // deleteTuple it is running, or null outside of them
+    private final ThreadLocal<ArrayList<PageId>> pinning = new ThreadLocal<ArrayList<PageId>>();
+    private BackgroundWriter writer;
     private static int TRANSATION_FACTOR = 2;
-    // timeout 1s for deadlock detection
-    private static int DEFAUT_MAXTIMEOUT = 5000;
     // int size;
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -225,14 +78,58 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new LruKReplacementPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks
+     * eviction victims with the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this(numPages, policy, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, picks eviction
+     * victims with the given replacement policy, and, if offHeapFrames is
+     * set, keeps the bytes of resident pages in a PageArena of numPages
+     * frames off the Java heap, so that the heap it needs does not grow
+     * with numPages. Only HeapFile pages (HeapPage) use the frames; others
+     * stay on the heap.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy
+     * @param offHeapFrames whether page bytes live in off-heap frames
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy, boolean offHeapFrames) {
         // some code goes here
         this.capacity = numPages;
         this.pgBufferPool = new ConcurrentHashMap<PageId, Page>();
         this.lockMgr = new LockManager(numPages, TRANSATION_FACTOR * numPages);
+        this.replacementPolicy = policy;
+        this.arena = offHeapFrames ? new PageArena(numPages, pageSize) : null;
+    }
+
+    /** @return the off-heap frames of this buffer pool, or null if it has none */
+    PageArena getArena() {
+        return arena;
+    }
+
+    /** @return the replacement policy used by this buffer pool */
+    public ReplacementPolicy getReplacementPolicy() {
+        return replacementPolicy;
+    }
+
+    /** @return the maximum number of pages this buffer pool holds */
+    public int getCapacity() {
+        return capacity;
     }
 
     public static int
-    Size() {
+    getPageSize() {
         return pageSize;
     }
 
@@ -272,23 +169,175 @@ public class BufferPool {
             lockType = LockManager.LockType.ExclusiveLock;
         }
         Debug.log(pid.toString() + ": before acquire lock\n");
-        lockMgr.acquireLock(tid, pid, lockType, DEFAUT_MAXTIMEOUT);
+        lockMgr.acquireLock(tid, pid, lockType);
         Debug.log(pid.toString() + ": acquired the lock\n");
 
-        Page pg;
-        if (pgBufferPool.containsKey(pid)) {
-            pg = pgBufferPool.get(pid);
-        } else {
-            if (pgBufferPool.size() >= capacity) {
+        ArrayList<PageId> pins = pinning.get();
+        while (true) {
+            Page pg = pgBufferPool.get(pid);
+            if (pg != null) {
+                replacementPolicy.pageAccessed(pid);
+            } else {
+                pg = loadPage(Database.getCatalog().getDatabaseFile(pid.getTableId()), pid, false);
+                if (pg == null) {
+                    // the read we waited for was dropped; read it ourselves
+                    continue;
+                }
+            }
+            if (pins == null || pin(pid, pg, pins)) {
+                return pg;
+            }
+            // evicted before it could be pinned; get it again
+        }
+    }
+
+    /**
+     * Pin pg, if it is still the resident page of pid, for the insert or
+     * delete the calling thread is running.
+     *
+     * @return false if pg is not resident any more
+     */
+    private synchronized boolean pin(PageId pid, Page pg, ArrayList<PageId> pins) {
+        if (pgBufferPool.get(pid) != pg) {
+            return false;
+        }
+        pinned.merge(pid, 1, Integer::sum);
+        pins.add(pid);
+        return true;
+    }
+
+    private synchronized void unpin(ArrayList<PageId> pins) {
+        for (PageId pid : pins) {
+            pinned.computeIfPresent(pid, (k, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    /**
+     * Read a page into the pool, or wait for the read of it that is
+     * already in flight, so that concurrent misses on a page cost one read
+     * and install one Page. Room is made for the page before it is read.
+     *
+     * @param prefetch true if no lock on the page is held: the page is then
+     *   dropped if a page was written back or discarded while it was read,
+     *   and nothing is waited for
+     * @return the resident page, or null if the read was dropped, or failed
+     *   in another thread, or if a prefetch found the page being read
+     * @throws DbException if the page could not be read, unless prefetching
+     */
+    private Page loadPage(DbFile file, PageId pid, boolean prefetch) throws DbException {
+        CompletableFuture<Page> load = new CompletableFuture<Page>();
+        CompletableFuture<Page> inFlight = loading.putIfAbsent(pid, load);
+        if (inFlight != null) {
+            if (prefetch) {
+                return null;
+            }
+            try {
+                Page pg = inFlight.join();
+                if (pg != null) {
+                    replacementPolicy.pageAccessed(pid);
+                }
+                return pg;
+            } catch (CompletionException e) {
+                return null;
+            }
+        }
+        Page pg = null;
+        try {
+            long version;
+            synchronized (this) {
+                pg = pgBufferPool.get(pid);
+                if (pg != null) {
+                    // installed between our miss and our entry in loading
+                    return pg;
+                }
+                reserveFrame();
+                version = diskVersion;
+            }
+            try {
+                pg = file.readPage(pid);
+            } finally {
+                synchronized (this) {
+                    reserved--;
+                    if (pg != null && prefetch && version != diskVersion) {
+                        pg = null;
+                    }
+                    if (pg != null) {
+                        putPage(pid, pg);
+                        replacementPolicy.pageLoaded(pid);
+                    }
+                    notifyAll();
+                }
+            }
+            if (pg == null && !prefetch) {
+                throw new DbException("BufferPool: could not read " + pid);
+            }
+            return pg;
+        } finally {
+            loading.remove(pid, load);
+            load.complete(pg);
+        }
+    }
+
+    /**
+     * Set aside a frame for a page about to be read, evicting a page if the
+     * pool is full, or waiting for the reads in flight if they fill it.
+     */
+    private synchronized void reserveFrame() throws DbException {
+        while (pgBufferPool.size() + reserved >= capacity) {
+            if (pgBufferPool.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("BufferPool: interrupted while waiting for a frame");
+                }
+            } else {
                 evictPage();
             }
-            pg = Database
-                    .getCatalog()
-                    .getDatabaseFile(pid.getTableId())
-                    .readPage(pid);
-            pgBufferPool.put(pid, pg);
         }
-        return pg;
+        reserved++;
+    }
+
+    /**
+     * Read a page into the pool ahead of use, if it is not resident yet.
+     * No lock is taken: the page is only the copy on disk, and anyone who
+     * wants to look at it still goes through getPage. The page is dropped
+     * if a page was written back or discarded while it was being read,
+     * since the copy on disk may have changed in the meantime.
+     *
+     * @param file the file the page belongs to
+     * @param pid the ID of the page to read
+     * @see ReadAhead
+     */
+    void prefetchPage(DbFile file, PageId pid) throws DbException {
+        if (!pgBufferPool.containsKey(pid)) {
+            loadPage(file, pid, true);
+        }
+    }
+
+    /**
+     * Make pg the resident page of pid, in a frame if there are off-heap
+     * frames, in place of the page that was, whose frame is given back.
+     */
+    private void putPage(PageId pid, Page pg) {
+        Page old = pgBufferPool.put(pid, pg);
+        if (old != pg) {
+            leaveArena(old);
+            if (arena != null && pg instanceof PageArena.FramedPage) {
+                ((PageArena.FramedPage) pg).moveInto(arena);
+            }
+        }
+    }
+
+    private static void leaveArena(Page p) {
+        if (p instanceof PageArena.FramedPage) {
+            ((PageArena.FramedPage) p).leaveArena();
+        }
+    }
+
+    /** @return true if the page is in the buffer pool */
+    boolean isResident(PageId pid) {
+        return pgBufferPool.containsKey(pid);
     }
 
     /**
@@ -340,19 +389,32 @@ public class BufferPool {
         // just invalidate all the pages in tid
         // invalidateCache(tid);
 
+        boolean stolen;
+        synchronized (this) {
+            stolen = stolenFrom.remove(tid);
+        }
+        if (commit) {
+            // NO FORCE: the pages only have to be in the log
+            logPages(tid);
+        } else if (stolen && Database.getLogFile().isLive(tid)) {
+            // some of its pages are on disk, only the log can undo them
+            Database.getLogFile().logAbort(tid);
+        }
         ArrayList<PageId> lockList = lockMgr.getLockList(tid);
         if (lockList != null) {
-            for (PageId pid : lockList) {
-                Page pg = pgBufferPool.getOrDefault(pid, null);
-                if (pg != null) {
-                    if (commit) {
-                        flushPage(pg.getId());
-                        pg.setBeforeImage();
-                        //TODO commit log ?????
-                    } else if (pg.isDirty() != null){
-                        // all dirty pages are flushed and not dirty page are still in cache
-                        // discard
-                        discardPage(pid);
+            synchronized (this) {
+                for (PageId pid : lockList) {
+                    Page pg = pgBufferPool.getOrDefault(pid, null);
+                    if (pg != null) {
+                        if (commit) {
+                            pg.setBeforeImage();
+                            loggedSinceBefore.remove(pid);
+                        } else if (pg.isDirty() != null) {
+                            // the before image is the last committed version,
+                            // which may not be on disk yet
+                            putPage(pid, pg.getBeforeImage());
+                            loggedSinceBefore.remove(pid);
+                        }
                     }
                 }
             }
@@ -382,11 +444,14 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile tableFile = Database.getCatalog().getDatabaseFile(tableId);
-        ArrayList<Page> affected = tableFile.insertTuple(tid, t);
-        for (Page newPg : affected) {
-            newPg.markDirty(true, tid);
-            pgBufferPool.remove(newPg.getId());
-            pgBufferPool.put(newPg.getId(), newPg);
+        ArrayList<PageId> pins = new ArrayList<PageId>();
+        pinning.set(pins);
+        try {
+            ArrayList<Page> affected = tableFile.insertTuple(tid, t);
+            reinstall(tid, affected);
+        } finally {
+            pinning.remove();
+            unpin(pins);
         }
     }
 
@@ -411,18 +476,43 @@ public class BufferPool {
         DbFile tableFile = Database
                 .getCatalog()
                 .getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        ArrayList<Page> affected = tableFile.deleteTuple(tid, t);
+        ArrayList<PageId> pins = new ArrayList<PageId>();
+        pinning.set(pins);
+        try {
+            ArrayList<Page> affected = tableFile.deleteTuple(tid, t);
+            reinstall(tid, affected);
+        } finally {
+            pinning.remove();
+            unpin(pins);
+        }
+    }
+
+    /**
+     * Mark the pages an insert or delete changed dirty and make them the
+     * resident pages, making room for any that is not resident, so that the
+     * pool never holds more than capacity pages. Pages the change got from
+     * getPage are pinned, so they are still resident.
+     */
+    private synchronized void reinstall(TransactionId tid, ArrayList<Page> affected)
+            throws DbException {
         for (Page newPg : affected) {
             newPg.markDirty(true, tid);
-            pgBufferPool.remove(newPg.getId());
-            pgBufferPool.put(newPg.getId(), newPg);
+            PageId pid = newPg.getId();
+            if (pgBufferPool.containsKey(pid)) {
+                putPage(pid, newPg);
+                replacementPolicy.pageAccessed(pid);
+            } else {
+                reserveFrame();
+                reserved--;
+                putPage(pid, newPg);
+                replacementPolicy.pageLoaded(pid);
+            }
         }
     }
 
     /**
-     * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * Flush all dirty pages to disk, logging the updates of running
+     * transactions first so that they can still be undone.
      */
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
@@ -444,7 +534,15 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pgBufferPool.remove(pid);
+        removePage(pid);
+        unwritten.remove(pid);
+        diskVersion++;
+    }
+
+    private synchronized void removePage(PageId pid) {
+        leaveArena(pgBufferPool.remove(pid));
+        replacementPolicy.pageRemoved(pid);
+        loggedSinceBefore.remove(pid);
     }
 
     /**
@@ -458,53 +556,253 @@ public class BufferPool {
             Page p = pgBufferPool.get(pid);
             TransactionId dirtier = p.isDirty();
             if (dirtier != null) {
-                /*
-                    append an update record to the log, with
-                    a before-image and after-image.
-                */
-                Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
-                Database.getLogFile().force();
-
-                // then write back
-                DbFile tb = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
-                p.markDirty(false, null);
-                tb.writePage(p);
+                // append an update record to the log, with a before-image
+                // and after-image, then write back
+                steal(p);
+            } else if (unwritten.containsKey(pid)) {
+                // committed, so already in the log
+                writeBack(p);
             }
         }
     }
 
+    /**
+     * Write out a page dirtied by a running transaction, logging the update
+     * first (write-ahead), so that the page can be evicted.
+     */
+    private synchronized void steal(Page p) throws IOException {
+        TransactionId dirtier = p.isDirty();
+        boolean delta = loggedSinceBefore.add(p.getId());
+        Database.getLogFile().logWrite(dirtier, p, delta);
+        Database.getLogFile().force();
+        stolenFrom.add(dirtier);
+        p.markDirty(false, null);
+        writeBack(p);
+    }
+
+    private synchronized void writeBack(Page p) throws IOException {
+        DbFile tb = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
+        tb.writePage(p);
+        unwritten.remove(p.getId());
+        diskVersion++;
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        ArrayList<Page> logged = logPages(tid);
+        synchronized (this) {
+            for (Page p : logged) {
+                if (p.isDirty() == null && unwritten.containsKey(p.getId())) {
+                    writeBack(p);
+                }
+            }
+        }
+    }
+
+    /**
+     * Log the dirty pages of the specified transaction and force the log,
+     * which is all a commit needs (NO FORCE). The pages are marked clean
+     * and left in the pool to be written back later.
+     *
+     * @return the pages that were logged
+     */
+    public ArrayList<Page> logPages(TransactionId tid) throws IOException {
         ArrayList<PageId> page2flush = lockMgr.getLockList(tid);
-        if (page2flush != null) {
-            for (PageId p : page2flush) {
-                flushPage(p);
+        ArrayList<Page> logged = new ArrayList<Page>();
+        ArrayList<Boolean> delta = new ArrayList<Boolean>();
+        if (page2flush == null) {
+            return logged;
+        }
+        // log every dirty page first, so the whole transaction needs a
+        // single force, and do that force outside the monitor so that
+        // concurrent committers can share it under group commit
+        synchronized (this) {
+            // enter the pages in the dirty page table before their records
+            // are appended, so that a checkpoint cannot miss them
+            long recLSN = Database.getLogFile().nextLSN();
+            for (PageId pid : page2flush) {
+                Page p = pgBufferPool.get(pid);
+                if (p != null && p.isDirty() != null) {
+                    logged.add(p);
+                    delta.add(loggedSinceBefore.add(pid));
+                    unwritten.putIfAbsent(pid, recLSN);
+                }
+            }
+        }
+        if (logged.isEmpty()) {
+            return logged;
+        }
+        // tid holds exclusive locks on its dirty pages, so they can be
+        // serialized into the log without holding the monitor
+        for (int i = 0; i < logged.size(); i++) {
+            Page p = logged.get(i);
+            Database.getLogFile().logWrite(tid, p, delta.get(i));
+        }
+        Database.getLogFile().force();
+        synchronized (this) {
+            for (Page p : logged) {
+                if (p.isDirty() != null) {
+                    p.markDirty(false, null);
+                    // unless it was stolen meanwhile
+                    if (pgBufferPool.get(p.getId()) != p) {
+                        unwritten.remove(p.getId());
+                    }
+                }
+            }
+        }
+        return logged;
+    }
+
+    /** @return the number of committed pages not yet written back */
+    public synchronized int getUnwrittenCount() {
+        return unwritten.size();
+    }
+
+    /**
+     * @return a copy of the dirty page table: the committed pages not yet
+     *   written back, with the LSN from which recovery would have to redo
+     *   them
+     */
+    synchronized Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<PageId, Long>(unwritten);
+    }
+
+    /**
+     * Write back up to maxPages committed pages. The pages with the oldest
+     * recLSN go first, since they hold back the point from which recovery
+     * has to redo the log, and are written in page id order so the writes
+     * are mostly sequential. Each page is share-locked on behalf of
+     * writerTid while it is written, so nobody can be changing it; pages
+     * that cannot be locked right away are skipped.
+     *
+     * @return the number of pages written
+     */
+    int writeBackPages(TransactionId writerTid, int maxPages) throws IOException {
+        ArrayList<PageId> candidates;
+        synchronized (this) {
+            candidates = new ArrayList<PageId>(unwritten.keySet());
+            if (candidates.size() > maxPages) {
+                candidates.sort(Comparator.comparingLong(unwritten::get));
+                candidates.subList(maxPages, candidates.size()).clear();
+            }
+        }
+        candidates.sort(Comparator.comparingInt(PageId::getTableId)
+                .thenComparingInt(PageId::getPageNumber));
+        int written = 0;
+        for (PageId pid : candidates) {
+            if (written >= maxPages) {
+                break;
+            }
+            try {
+                lockMgr.acquireLock(writerTid, pid, LockManager.LockType.ShareLock, 0);
+            } catch (TransactionAbortedException e) {
+                continue;
+            }
+            try {
+                synchronized (this) {
+                    Page p = pgBufferPool.get(pid);
+                    if (p != null && p.isDirty() == null && unwritten.containsKey(pid)) {
+                        writeBack(p);
+                        written++;
+                    }
+                }
+            } finally {
+                lockMgr.releaseLock(writerTid, pid);
             }
         }
+        return written;
+    }
+
+    /**
+     * Start a background thread that writes committed pages back so that
+     * at least cleanFraction of the frames stay clean, and that takes a
+     * checkpoint every checkpointMillis (never, if it is 0).
+     *
+     * @see BackgroundWriter
+     */
+    public void startBackgroundWriter(double cleanFraction, long intervalMillis,
+                                      long checkpointMillis) {
+        stopBackgroundWriter();
+        BackgroundWriter w = new BackgroundWriter(this, cleanFraction, intervalMillis, checkpointMillis);
+        synchronized (this) {
+            writer = w;
+        }
+        w.start();
+    }
+
+    /** Stop the background writer, if it is running. */
+    public void stopBackgroundWriter() {
+        BackgroundWriter w;
+        synchronized (this) {
+            w = writer;
+            writer = null;
+        }
+        if (w != null) {
+            w.shutdown();
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the replacement policy among the pages that
+     * match the disk, and only if there are none among the committed pages
+     * that still have to be written back, and only if there are none of
+     * those among the pages of running transactions (STEAL). Pinned pages
+     * are never chosen: an insert or delete may be changing them, so they
+     * cannot be written, and it puts them back when it is done.
      */
     private synchronized void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        // randomly discard a page
-        for (Map.Entry<PageId, Page> entry : pgBufferPool.entrySet()) {
-            PageId pid = entry.getKey();
-            Page   p   = entry.getValue();
-            if (p.isDirty() == null) {
-                // dont need to flushpage since all page evicted are not dirty
-                // flushPage(pid);
-                discardPage(pid);
+        while (true) {
+            // rather a page that matches the disk than one that needs writing
+            PageId victim = replacementPolicy.chooseVictim(pid -> {
+                Page p = pgBufferPool.get(pid);
+                return p == null || (p.isDirty() == null && !unwritten.containsKey(pid)
+                        && !pinned.containsKey(pid));
+            });
+            if (victim == null) {
+                victim = replacementPolicy.chooseVictim(pid -> {
+                    Page p = pgBufferPool.get(pid);
+                    return p == null || (p.isDirty() == null && !pinned.containsKey(pid));
+                });
+            }
+            if (victim == null) {
+                // STEAL: a page of a running transaction can go once its
+                // update is in the log, so that the transaction can be
+                // undone. Only transactions the log knows about qualify.
+                LogFile log = Database.getLogFile();
+                victim = replacementPolicy.chooseVictim(pid -> {
+                    Page p = pgBufferPool.get(pid);
+                    TransactionId dirtier = p == null ? null : p.isDirty();
+                    return p == null || (dirtier != null && log.isLive(dirtier)
+                            && !pinned.containsKey(pid));
+                });
+            }
+            if (victim == null) {
+                throw new DbException("BufferPool: evictPage: all pages are dirty or in use");
+            }
+            boolean resident = pgBufferPool.containsKey(victim);
+            try {
+                Page p = pgBufferPool.get(victim);
+                if (resident && p.isDirty() != null) {
+                    steal(p);
+                } else if (resident && unwritten.containsKey(victim)) {
+                    writeBack(p);
+                }
+            } catch (IOException e) {
+                throw new DbException("BufferPool: evictPage: " + e.getMessage());
+            }
+            // a clean page matches the disk, so this is not a discard
+            removePage(victim);
+            if (resident) {
                 return;
             }
         }
-        throw new DbException("BufferPool: evictPage: all pages are marked as dirty");
     }
 
 }
@@ -88,6 +88,9 @@ public class Catalog {
             int id = originTable.getFile().getId();
             integerStringConcurrentHashMap.remove(id);
             tables.remove(name);
+            if (originTable.getFile() != file) {
+                originTable.getFile().close();
+            }
         }
         tables.put(name, new Table(file, name, pkeyField));
         integerStringConcurrentHashMap.put(file.getId(), name);
@@ -179,16 +182,26 @@ public class Catalog {
     }
 
     /**
-     * Delete all tables from the catalog
+     * Delete all tables from the catalog, closing their files
      */
     public void clear() {
         // some code goes here
+        for (Table table : tables.values()) {
+            table.getFile().close();
+        }
         tables.clear();
         integerStringConcurrentHashMap.clear();
     }
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes a table as
+     * <pre>
+     * name (field type [pk], field type, ...) [format]
+     * </pre>
+     * where the optional format is "heap", the default, for a HeapFile, or
+     * "slotted" for a SlottedHeapFile, which stores strings at their actual
+     * length.
      *
      * @param catalogFile
      */
@@ -230,7 +243,18 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                File dataFile = new File(baseFolder + "/" + name + ".dat");
+                String format = line.substring(line.indexOf(")") + 1).trim().toLowerCase();
+                HeapFile tabHf;
+                if (format.equals("") || format.equals("heap"))
+                    tabHf = new HeapFile(dataFile, t);
+                else if (format.equals("slotted"))
+                    tabHf = new SlottedHeapFile(dataFile, t);
+                else {
+                    System.out.println("Unknown table format " + format);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
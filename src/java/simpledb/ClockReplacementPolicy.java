@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CLOCK-sweep replacement (generalized CLOCK with usage counts).
+ * <p>
+ * Every frame carries a small usage count. A newly loaded page starts at 1
+ * and every hit bumps the count, up to MAX_USAGE. When a victim is needed
+ * the clock hand sweeps the frames, decrementing counts, and evicts the first
+ * evictable frame whose count has reached 0.
+ * <p>
+ * Pages that are touched once (e.g. by a sequential scan) are reclaimed after
+ * a single pass of the hand, while heavily re-referenced pages such as the
+ * B+ tree root pointer and internal pages saturate their count and survive
+ * several full sweeps.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    /** Upper bound on a frame's usage count. */
+    static final int MAX_USAGE = 5;
+
+    // frame -> page, null if the frame is free
+    private final ArrayList<PageId> frames = new ArrayList<PageId>();
+    private final ArrayList<Integer> usage = new ArrayList<Integer>();
+    private final HashMap<PageId, Integer> frameOf = new HashMap<PageId, Integer>();
+    private final ArrayDeque<Integer> freeFrames = new ArrayDeque<Integer>();
+    private int hand = 0;
+
+    public synchronized void pageLoaded(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            bump(frame);
+            return;
+        }
+        if (freeFrames.isEmpty()) {
+            frame = frames.size();
+            frames.add(pid);
+            usage.add(1);
+        } else {
+            frame = freeFrames.poll();
+            frames.set(frame, pid);
+            usage.set(frame, 1);
+        }
+        frameOf.put(pid, frame);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null) {
+            pageLoaded(pid);
+        } else {
+            bump(frame);
+        }
+    }
+
+    private void bump(int frame) {
+        int u = usage.get(frame);
+        if (u < MAX_USAGE) {
+            usage.set(frame, u + 1);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames.set(frame, null);
+            usage.set(frame, 0);
+            freeFrames.add(frame);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        int n = frames.size();
+        if (n == 0) {
+            return null;
+        }
+        // each frame can be decremented at most MAX_USAGE times before it
+        // becomes a candidate, so this bounds the sweep
+        int maxSteps = n * (MAX_USAGE + 1);
+        for (int step = 0; step < maxSteps; step++) {
+            int frame = hand;
+            hand = (hand + 1) % n;
+            PageId pid = frames.get(frame);
+            if (pid == null) {
+                continue;
+            }
+            int u = usage.get(frame);
+            if (u > 0) {
+                usage.set(frame, u - 1);
+            } else if (evictable.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void reset() {
+        frames.clear();
+        usage.clear();
+        frameOf.clear();
+        freeFrames.clear();
+        hand = 0;
+    }
+}
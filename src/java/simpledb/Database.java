@@ -24,6 +24,7 @@ public class Database {
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        startBackgroundWriter(_bufferpool);
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -50,18 +51,40 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    private static void startBackgroundWriter(BufferPool bufferPool) {
+        bufferPool.startBackgroundWriter(BackgroundWriter.DEFAULT_CLEAN_FRACTION,
+                BackgroundWriter.DEFAULT_INTERVAL_MILLIS, BackgroundWriter.DEFAULT_CHECKPOINT_MILLIS);
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
-     * return it
+     * return it. Committed pages of the old buffer pool are written back
+     * first, as they would have been eventually.
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- make bufferPool the buffer pool, such as
+     * one with a replacement policy or off-heap frames of its own, and
+     * return it. Committed pages of the old buffer pool are written back
+     * first, as they would have been eventually.
+     */
+    public static BufferPool resetBufferPool(BufferPool bufferPool) {
         java.lang.reflect.Field bufferPoolF=null;
+        BufferPool old = _instance.get()._bufferpool;
+        old.stopBackgroundWriter();
+        try {
+            old.writeBackPages(new TransactionId(), Integer.MAX_VALUE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        startBackgroundWriter(bufferPool);
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
-
-            TransactionManager.getInstance().reset();
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -77,7 +100,9 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        // like a crash, whatever the old buffer pool did not write is lost
+        _instance.get()._bufferpool.stopBackgroundWriter();
+        _instance.getAndSet(new Database())._catalog.clear();
     }
 
 }
@@ -88,4 +88,12 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Give back the file descriptors this DbFile holds open. Called when
+     * the table is dropped from the catalog; a DbFile that is used again
+     * afterwards reopens its files.
+     */
+    public default void close() {
+    }
 }
@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile are full, so that an
+ * insert can go straight to a page with an empty slot instead of locking
+ * and reading every page of the file in turn.
+ * <p>
+ * The map is a bitmap with one bit per page, set when the page has no
+ * empty slot. It is kept in a side file next to the table (the table's file
+ * name with ".fsm" appended), using the same bit order as the HeapPage
+ * header. Pages past the end of the side file count as having room.
+ * <p>
+ * The map is not logged, so after an abort or a crash a bit may be wrong.
+ * It is only a hint: callers must check the page they are pointed at and
+ * correct the map when it was wrong.
+ *
+ * @see HeapFile#insertTuple
+ */
+class FreeSpaceMap {
+
+    static final String SUFFIX = ".fsm";
+
+    private final File file;
+    // kept open, so that changing a bit is one positional write
+    private final PagedFile pagedFile;
+    private BitSet full = new BitSet();
+
+    /**
+     * Open the free space map of a heap file. The map of an empty heap file
+     * is discarded, since it must belong to an older file at the same path.
+     */
+    FreeSpaceMap(File heapFile) {
+        file = sideFile(heapFile);
+        pagedFile = new PagedFile(file);
+        if (heapFile.length() == 0) {
+            file.delete();
+            return;
+        }
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            in.readFully(bytes);
+            in.close();
+            full = BitSet.valueOf(bytes);
+        } catch (IOException e) {
+            // the map is only a hint, start over with every page open
+            full.clear();
+        }
+    }
+
+    static File sideFile(File heapFile) {
+        return new File(heapFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Write the free space map for a heap file that was just created.
+     *
+     * @param heapFile the table's file
+     * @param full the pages that have no empty slot
+     */
+    static void create(File heapFile, BitSet full) throws IOException {
+        FileOutputStream os = new FileOutputStream(sideFile(heapFile));
+        os.write(full.toByteArray());
+        os.close();
+    }
+
+    /**
+     * @return the first page at or after from, and before numPages, that
+     *   may have an empty slot, or -1 if there is none
+     */
+    synchronized int findPage(int from, int numPages) {
+        int pgNo = full.nextClearBit(from);
+        return pgNo < numPages ? pgNo : -1;
+    }
+
+    /**
+     * Record whether a page has an empty slot. The side file is only
+     * written when the bit actually changes, one byte in place; failing to
+     * write it is not an error, since the map is only a hint.
+     */
+    /** Give back the file descriptor of the map; it is reopened if used again */
+    void close() {
+        pagedFile.close();
+    }
+
+    synchronized void update(int pgNo, boolean hasSpace) {
+        if (full.get(pgNo) != hasSpace) {
+            return;
+        }
+        full.set(pgNo, !hasSpace);
+
+        byte b = 0;
+        int first = pgNo - pgNo % 8;
+        for (int i = 0; i < 8; i++) {
+            if (full.get(first + i)) {
+                b |= (1 << i);
+            }
+        }
+        final byte bits = b;
+        try {
+            pagedFile.write(pgNo / 8, 1, buf -> buf.put(bits));
+        } catch (IOException e) {
+            // the bit on disk stays wrong, which a later insert corrects
+        }
+    }
+}
@@ -4,6 +4,17 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join. It builds a hash table on the left
+ * child and probes it with the right child. When the left child does not
+ * fit in the table, both children are split by the hash of the join field
+ * into partitions: the first partition stays in memory and is joined as
+ * the right child goes by, the others are spilled to temporary files and
+ * joined one pair at a time afterwards. A spilled partition that still
+ * does not fit is split again with another hash, and one that cannot be
+ * split (a single key with too many tuples) is joined a table-full of left
+ * tuples at a time against its right partition file. Either way each child
+ * is read once.
  */
 public class HashEquiJoin extends Operator {
 
@@ -17,7 +28,7 @@ public class HashEquiJoin extends Operator {
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -26,9 +37,18 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Constructor for a join whose hash table holds at most mapSize left
+     * tuples.
+     */
+    HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int mapSize) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.mapSize = mapSize;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -39,7 +59,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -49,49 +69,267 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
+
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+    /** The default number of left tuples the hash table holds */
     public final static int MAP_SIZE = 20000;
+    /** The number of partitions a pass splits its inputs into */
+    final static int PARTITIONS = 16;
+    /** Partitions split this many times are joined in blocks instead */
+    final static int MAX_DEPTH = 4;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    private final int mapSize;
+    transient private int mapCount = 0;
+
+    /** A stream of tuples that a pass of the join reads */
+    private interface TupleInput {
+        /** @return the next tuple, or null at the end */
+        Tuple next() throws DbException, TransactionAbortedException;
+
+        void rewind() throws DbException, TransactionAbortedException;
+
+        /** Release the input; it is not read again */
+        void close();
+    }
+
+    /** A child of the join as a TupleInput */
+    private static class ChildInput implements TupleInput {
+        private final OpIterator child;
+
+        ChildInput(OpIterator child) {
+            this.child = child;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            return child.hasNext() ? child.next() : null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        public void close() {
+            // the join closes its children
+        }
+    }
+
+    /** A partition spilled to a temporary file, as a TupleInput */
+    private static class Partition extends SpillFile implements TupleInput {
+        Partition(TupleDesc td) throws DbException {
+            super(td, "hashjoin");
+        }
+    }
+
+    /** A join of two inputs; the children, or a pair of spilled partitions */
+    private static class Pass {
+        final TupleInput left, right;
+        final int depth;
+
+        Pass(TupleInput left, TupleInput right, int depth) {
+            this.left = left;
+            this.right = right;
+            this.depth = depth;
+        }
+    }
+
+    // the passes left to run, and the one running
+    transient private ArrayDeque<Pass> passes = new ArrayDeque<Pass>();
+    transient private Pass pass = null;
+    // the partitions the running pass spills to, if it does; the first pair
+    // stays null while the first left partition is in the hash table
+    transient private Partition[] leftParts = null, rightParts = null;
+    // true if the running pass joins its left input a table-full at a time
+    transient private boolean blocks = false;
+
+    /** @return the partition of field f in a pass at depth */
+    private static int partition(Field f, int depth) {
+        int h = f.hashCode() + depth * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return Math.floorMod(h, PARTITIONS);
+    }
+
+    private void addToMap(Tuple t) {
+        ArrayList<Tuple> list = map.get(t.getField(pred.getField1()));
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(t.getField(pred.getField1()), list);
+        }
+        list.add(t);
+        mapCount++;
+    }
+
+    private void clearMap() {
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
-            }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+        mapCount = 0;
+    }
+
+    /**
+     * Fill the hash table from the left input of the running pass, until
+     * the input ends or the table holds mapSize tuples.
+     *
+     * @return true if the input ended
+     */
+    private boolean loadMap() throws DbException, TransactionAbortedException {
+        clearMap();
+        while (mapCount < mapSize) {
+            t1 = pass.left.next();
+            if (t1 == null) {
                 return true;
+            }
+            addToMap(t1);
+        }
+        return false;
+    }
+
+    /**
+     * Start the running pass: load its left input into the hash table, or
+     * as much of it as fits and split the rest into partitions.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        blocks = false;
+        leftParts = rightParts = null;
+        if (loadMap()) {
+            return;
+        }
+        if (pass.depth >= MAX_DEPTH) {
+            blocks = true;
+            return;
+        }
+        leftParts = new Partition[PARTITIONS];
+        rightParts = new Partition[PARTITIONS];
+        for (int i = 1; i < PARTITIONS; i++) {
+            leftParts[i] = new Partition(child1.getTupleDesc());
+            rightParts[i] = new Partition(child2.getTupleDesc());
+        }
+        // keep the first partition of what was read, and go on from there
+        ArrayList<Tuple> loaded = new ArrayList<Tuple>(mapCount);
+        for (ArrayList<Tuple> list : map.values()) {
+            loaded.addAll(list);
+        }
+        clearMap();
+        for (Tuple t : loaded) {
+            addLeft(t);
+        }
+        while ((t1 = pass.left.next()) != null) {
+            addLeft(t1);
+        }
+    }
+
+    private void addLeft(Tuple t) throws DbException {
+        int p = partition(t.getField(pred.getField1()), pass.depth);
+        if (p != 0 || leftParts[0] != null) {
+            leftParts[p].add(t);
+            return;
+        }
+        if (mapCount < mapSize) {
+            addToMap(t);
+            return;
+        }
+        // the first partition does not fit either: spill it too
+        leftParts[0] = new Partition(child1.getTupleDesc());
+        rightParts[0] = new Partition(child2.getTupleDesc());
+        for (ArrayList<Tuple> list : map.values()) {
+            for (Tuple l : list) {
+                leftParts[0].add(l);
+            }
+        }
+        clearMap();
+        leftParts[0].add(t);
+    }
+
+    /**
+     * Probe the hash table with a right tuple, or spill it to its partition.
+     *
+     * @return the left tuples it joins with now, or null
+     */
+    private ArrayList<Tuple> probe(Tuple t) throws DbException {
+        Field f = t.getField(pred.getField2());
+        if (leftParts != null) {
+            int p = partition(f, pass.depth);
+            if (p != 0 || leftParts[0] != null) {
+                // no left tuple, no join
+                if (leftParts[p].size() > 0) {
+                    rightParts[p].add(t);
+                }
+                return null;
+            }
+        }
+        return map.get(f);
+    }
+
+    /**
+     * End the running pass, and queue the pairs of partitions it spilled.
+     */
+    private void finishPass() {
+        clearMap();
+        if (leftParts != null) {
+            for (int i = PARTITIONS - 1; i >= 0; i--) {
+                if (leftParts[i] == null) {
+                    continue;
+                }
+                if (leftParts[i].size() > 0 && rightParts[i].size() > 0) {
+                    passes.push(new Pass(leftParts[i], rightParts[i], pass.depth + 1));
+                } else {
+                    leftParts[i].close();
+                    rightParts[i].close();
+                }
+            }
         }
-        return cnt > 0;
+        leftParts = rightParts = null;
+        pass.left.close();
+        pass.right.close();
+        pass = null;
+    }
 
+    private void reset() {
+        if (pass != null) {
+            if (leftParts != null) {
+                for (int i = 0; i < PARTITIONS; i++) {
+                    if (leftParts[i] != null) {
+                        leftParts[i].close();
+                        rightParts[i].close();
+                    }
+                }
+            }
+            pass.left.close();
+            pass.right.close();
+        }
+        for (Pass p : passes) {
+            p.left.close();
+            p.right.close();
+        }
+        passes.clear();
+        pass = null;
+        leftParts = rightParts = null;
+        clearMap();
+        this.t1 = null;
+        this.t2 = null;
+        this.listIt = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        reset();
+        passes.push(new Pass(new ChildInput(child1), new ChildInput(child2), 0));
         super.open();
     }
 
     public void close() {
         super.close();
+        reset();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        reset();
         child1.rewind();
         child2.rewind();
+        passes.push(new Pass(new ChildInput(child1), new ChildInput(child2), 0));
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -110,7 +348,7 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
@@ -131,32 +369,43 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+            listIt = null;
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+            if (pass == null) {
+                if (passes.isEmpty()) {
+                    return null;
+                }
+                pass = passes.pop();
+                build();
+            }
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            // loop around the right input
+            while ((t2 = pass.right.next()) != null) {
+                ArrayList<Tuple> l = probe(t2);
+                if (l != null) {
+                    listIt = l.iterator();
+                    break;
+                }
+            }
+            if (listIt != null) {
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
+            }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            // the right input is done: join it with the next block of a
+            // partition that does not fit, or move on to the next pass
+            if (blocks) {
+                loadMap();
+                if (mapCount > 0) {
+                    pass.right.rewind();
+                    continue;
+                }
+            }
+            finishPass();
         }
-
-        return null;
     }
 
     @Override
@@ -169,5 +418,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -8,13 +9,50 @@ import java.util.*;
  * in no particular order. Tuples are stored on pages, each of which is a fixed
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
- * constructor.
+ * constructor. Subclasses may store their pages in another format (see
+ * SlottedHeapFile) by overriding newPage().
  *
  * @author Sam Madden
  * @see simpledb.HeapPage#HeapPage
  */
 public class HeapFile implements DbFile {
 
+    /**
+     * What a HeapFile needs of its pages, whatever their format. A page of
+     * all zeros is an empty page in every format.
+     */
+    interface TuplePage extends Page {
+        void insertTuple(Tuple t) throws DbException;
+
+        void deleteTuple(Tuple t) throws DbException;
+
+        Iterator<Tuple> iterator();
+
+        /** @return true if t can be inserted into this page */
+        boolean hasRoomFor(Tuple t);
+
+        /** @return true if no tuple of the table fits on this page */
+        boolean isFull();
+
+        /**
+         * Write the bytes getPageData() would return into dst, from its
+         * position on, without allocating them.
+         */
+        void writePageData(ByteBuffer dst);
+
+        /**
+         * @return the bytes of getBeforeImage(), without making a page of
+         *   them; the caller must not change them
+         */
+        byte[] getBeforeImageData();
+
+        /**
+         * @return {from, to}: the page bytes outside [from, to) are the same
+         *   as those of the before image
+         */
+        int[] getDirtyRange();
+    }
+
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -24,13 +62,33 @@ public class HeapFile implements DbFile {
      */
     File file;
     TupleDesc tupleDesc;
-    private int numPage;
+    private final PagedFile pagedFile;
+    // cached page count, so that scans need not stat the file for every page
+    private volatile int numPage;
+    private final FreeSpaceMap freeSpace;
 
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         file = f;
         tupleDesc = td;
+        pagedFile = new PagedFile(f);
         numPage = numPages();
+        freeSpace = new FreeSpaceMap(f);
+    }
+
+    /**
+     * Delete a heap file, and the free space map next to it, when the
+     * virtual machine exits, as File.deleteOnExit does for the file alone.
+     * For temporary tables.
+     */
+    public static void deleteOnExit(File f) {
+        f.deleteOnExit();
+        FreeSpaceMap.sideFile(f).deleteOnExit();
+    }
+
+    public void close() {
+        pagedFile.close();
+        freeSpace.close();
     }
 
     /**
@@ -71,35 +129,58 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) {
         // some code goes here
         try {
-            RandomAccessFile file = new RandomAccessFile(this.file, "r");
-            byte[] data = new byte[BufferPool.getPageSize()];
+            int pageSize = BufferPool.getPageSize();
+            // HeapPage copies what it needs, so the buffer can be reused
+            byte[] data = PagedFile.scratch(pageSize);
+            int n = pagedFile.read((long) pid.getPageNumber() * pageSize, data, pageSize);
+            // past the end of the file reads as an empty page
+            Arrays.fill(data, n, pageSize, (byte) 0);
 
-            file.seek(pid.getPageNumber() * BufferPool.getPageSize());
-            file.read(data, 0, BufferPool.getPageSize());
-
-            return new HeapPage((HeapPageId) pid, data);
+            TuplePage page = newPage((HeapPageId) pid, data);
+            // repair the free space map for free whenever a page comes in
+            freeSpace.update(pid.getPageNumber(), !page.isFull());
+            return page;
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Makes a page of this file from its bytes on disk, which the page must
+     * copy what it needs from.
+     */
+    TuplePage newPage(HeapPageId pid, byte[] data) throws IOException {
+        return new HeapPage(pid, data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        RandomAccessFile file = new RandomAccessFile(this.file, "rw");
-        file.seek(page.getId().getPageNumber() * BufferPool.getPageSize());
-        file.write(page.getPageData());
-        file.close();
+        pagedFile.write((long) page.getId().getPageNumber() * BufferPool.getPageSize(),
+                BufferPool.getPageSize(), ((TuplePage) page)::writePageData);
+        synchronized (this) {
+            if (page.getId().getPageNumber() >= numPage) {
+                numPage = page.getId().getPageNumber() + 1;
+            }
+        }
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Returns the number of pages in this HeapFile. This asks the file
+     * system, in case the file was extended behind our back, and refreshes
+     * the cached count. The count only grows: a size read before a
+     * concurrent createBlankPage wrote its page must not undo the count
+     * that page added, or its page number would be handed out again.
      */
     public int numPages() {
         // some code goes here
-        return ((int)file.length() - 1 + BufferPool.getPageSize()) / BufferPool.getPageSize();
+        int n = (int) ((pagedFile.size() - 1 + BufferPool.getPageSize()) / BufferPool.getPageSize());
+        synchronized (this) {
+            numPage = Math.max(numPage, n);
+            return numPage;
+        }
     }
 
     // see DbFile.java for javadocs
@@ -107,9 +188,12 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        HeapPage heapPage = (HeapPage) getInsertablePage(tid);
+        TuplePage heapPage = getInsertablePage(tid, t);
         heapPage.insertTuple(t);
         heapPage.markDirty(true, tid);
+        if (heapPage.isFull()) {
+            freeSpace.update(heapPage.getId().getPageNumber(), false);
+        }
         ArrayList<Page> arrayList = new ArrayList<>(4);
         arrayList.add(heapPage);
         return arrayList;
@@ -125,26 +209,36 @@ public class HeapFile implements DbFile {
      * implement this feature mentioned above.
      */
 
-    private Page getInsertablePage(TransactionId transactionId) throws TransactionAbortedException, DbException, IOException {
-        for (int i = 0; i < numPage; i++) {
-            HeapPageId heapPageId = new HeapPageId(getId(), i);
-            HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(transactionId, heapPageId, Permissions.READ_WRITE);
-            if (heapPage.getNumEmptySlots() != 0) {
+    /*
+     * The free space map points us at a page that should have room, so only
+     * that page is locked and read. The map is just a hint; if the page
+     * turns out to be full, correct the map and move on. A page without room
+     * for t counts as full, even if a smaller tuple would still fit.
+     */
+    private TuplePage getInsertablePage(TransactionId transactionId, Tuple t) throws TransactionAbortedException, DbException, IOException {
+        int pgNo = -1;
+        while ((pgNo = freeSpace.findPage(pgNo + 1, numPage)) != -1) {
+            HeapPageId heapPageId = new HeapPageId(getId(), pgNo);
+            TuplePage heapPage = (TuplePage) Database.getBufferPool().getPage(transactionId, heapPageId, Permissions.READ_WRITE);
+            if (heapPage.hasRoomFor(t)) {
                 return heapPage;
             }
+            freeSpace.update(pgNo, false);
         }
         return createBlankPage(transactionId);
     }
 
 
-    private Page createBlankPage(TransactionId transactionId) throws IOException, TransactionAbortedException, DbException {
-        HeapPageId heapPageId = new HeapPageId(getId(), numPage);
-        numPage++;
-        HeapPage heapPage = new HeapPage(heapPageId, HeapPage.createEmptyPageData());
-        // dump to disk, so the buffer pool can get it from disk through readPage
-        writePage(heapPage);
-        heapPage = (HeapPage) Database.getBufferPool().getPage(transactionId, heapPageId, Permissions.READ_WRITE);
-        return heapPage;
+    private TuplePage createBlankPage(TransactionId transactionId) throws IOException, TransactionAbortedException, DbException {
+        HeapPageId heapPageId;
+        synchronized (this) {
+            heapPageId = new HeapPageId(getId(), numPage);
+            TuplePage heapPage = newPage(heapPageId, HeapPage.createEmptyPageData());
+            // dump to disk, so the buffer pool can get it from disk through readPage
+            writePage(heapPage);
+            freeSpace.update(heapPageId.getPageNumber(), true);
+        }
+        return (TuplePage) Database.getBufferPool().getPage(transactionId, heapPageId, Permissions.READ_WRITE);
     }
 
     // see DbFile.java for javadocs
@@ -154,10 +248,11 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
         ArrayList<Page> arrayList = new ArrayList<>();
         RecordId recordId = t.getRecordId();
-        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, recordId.getPageId(), Permissions.READ_WRITE);
+        TuplePage heapPage = (TuplePage) Database.getBufferPool().getPage(tid, recordId.getPageId(), Permissions.READ_WRITE);
         heapPage.deleteTuple(t);
         arrayList.add(heapPage);
         heapPage.markDirty(true, tid);
+        freeSpace.update(recordId.getPageId().getPageNumber(), true);
         return arrayList;
     }
 
@@ -168,15 +263,18 @@ public class HeapFile implements DbFile {
 
             int pageNo;
             Iterator<Tuple> iterator;
+            ReadAhead readAhead;
 
             Iterator<Tuple> getTupleInPage(HeapPageId heapPageId) throws TransactionAbortedException, DbException {
-                HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_ONLY);
+                readAhead.beforeRead(heapPageId.getPageNumber(), numPage);
+                TuplePage heapPage = (TuplePage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_ONLY);
                 return heapPage.iterator();
             }
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 pageNo = 0;
+                readAhead = new ReadAhead(HeapFile.this);
                 HeapPageId pageId = new HeapPageId(getId(), pageNo);
                 iterator = getTupleInPage(pageId);
             }
@@ -189,11 +287,11 @@ public class HeapFile implements DbFile {
                 if (iterator.hasNext()) {
                     return true;
                 }
-                while (pageNo < numPages() - 1) {
+                // only look at the file again once the cached count runs out
+                while (pageNo < numPage - 1 || pageNo < numPages() - 1) {
                     pageNo++;
                     HeapPageId heapPageId = new HeapPageId(getId(), pageNo);
-                    HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_ONLY);
-                    iterator = heapPage.iterator();
+                    iterator = getTupleInPage(heapPageId);
                     if (iterator.hasNext()) {
                         return true;
                     }
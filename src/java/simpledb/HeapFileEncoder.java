@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.BitSet;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -95,7 +96,8 @@ public class HeapFileEncoder {
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
       }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+      // each page starts with its LSN, zero for a new page
+      int nrecords = ((npagebytes - Page.LSN_SIZE) * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
       
     //  per record, we need one bit; there are nrecords per page, so we need
     // nrecords bits, i.e., ((nrecords/32)+1) integers.
@@ -114,6 +116,7 @@ public class HeapFileEncoder {
     int recordcount = 0;
     int npages = 0;
     int fieldNo = 0;
+    BitSet fullPages = new BitSet();
 
     ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
     DataOutputStream headerStream = new DataOutputStream(headerBAOS);
@@ -201,10 +204,11 @@ public class HeapFileEncoder {
             
             // pad the rest of the page with zeroes
             
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
+            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes + Page.LSN_SIZE)); i++)
                 pageStream.writeByte(0);
             
-            // write header and body to file
+            // write LSN, header and body to file
+            os.write(new byte[Page.LSN_SIZE]);
             headerStream.flush();
             headerBAOS.writeTo(os);
             pageStream.flush();
@@ -216,11 +220,14 @@ public class HeapFileEncoder {
             pageBAOS = new ByteArrayOutputStream(npagebytes);
             pageStream = new DataOutputStream(pageBAOS);
             
+            if (recordcount >= nrecords)
+                fullPages.set(npages);
             recordcount = 0;
             npages++;
         }
     }
     br.close();
     os.close();
+    FreeSpaceMap.create(outFile, fullPages);
   }
 }
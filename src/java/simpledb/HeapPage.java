@@ -2,39 +2,112 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps its bytes as they are on disk and decodes nothing up
+ * front: the tuples it returns are lazy (see Tuple), and read their fields
+ * from the page bytes when asked. Once a tuple has been handed out, the
+ * next change to the page goes to a copy of the bytes, so the tuple keeps
+ * seeing the page as it was when it was read.
+ * <p>
+ * The before image is copy on write the same way: until the page changes,
+ * it is the page bytes themselves, so a page that is only read holds one
+ * copy of them.
+ * <p>
+ * A buffer pool with off-heap frames moves the page bytes into a frame of
+ * its PageArena while the page is resident. The page then stays in its
+ * frame and the tuples and the before image get the copies instead.
  *
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage implements HeapFile.TuplePage, PageArena.FramedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
-
+    final int headerSize;
+    final int tupleSize;
+    // offset of each field within a tuple
+    final int[] fieldOffsets;
+
+    // the page bytes, with the header, the slots and the padding; the LSN
+    // is kept in lsn instead
+    private Image image;
+    // a tuple reads from image, so it must not change
+    private volatile boolean shared;
+    // the arena whose frame image is in, or null while it is on the heap
+    private PageArena arena;
+    private int frame = -1;
+
+    // the before image, or null while it is image itself, which has held
+    // the LSN of the before image in its first bytes since setBeforeImage()
     byte[] oldData;
-    private final Byte oldDataLock = new Byte((byte) 0);
+    private final Object oldDataLock = new Object();
+    // the page bytes outside [dirtyFrom, dirtyTo) are those of the before image
+    private int dirtyFrom;
+    private int dirtyTo;
 
     TransactionId dirtyTransactionId;
 
+    private volatile long lsn;
+
+    /** The bytes of a page, which lazy tuples decode their fields from */
+    private final class Image implements Tuple.Source {
+        // a frame or an array; only read with absolute gets, since several
+        // threads may read it at once. It only changes from a frame to a
+        // copy of it on the heap, before the frame changes.
+        volatile ByteBuffer data;
+
+        Image(ByteBuffer data) {
+            this.data = data;
+        }
+
+        public Field getField(int slot, int i) {
+            while (true) {
+                ByteBuffer d = data;
+                Field f = td.getFieldType(i).parse(d, slotOffset(slot) + fieldOffsets[i]);
+                // if the bytes moved meanwhile, the frame may have changed
+                // under the read; the copy has not
+                VarHandle.acquireFence();
+                if (d == data) {
+                    return f;
+                }
+            }
+        }
+
+        /** @return a copy of the bytes */
+        byte[] copy() {
+            ByteBuffer d = data;
+            byte[] b = new byte[d.capacity()];
+            d.get(0, b);
+            return b;
+        }
+
+        public RecordId getRecordId(int slot) {
+            return new RecordId(pid, slot);
+        }
+    }
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
-     * The format of a HeapPage is a set of header bytes indicating
-     * the slots of the page that are in use, some number of tuple slots.
+     * The format of a HeapPage is the page LSN, a set of header bytes
+     * indicating the slots of the page that are in use, some number of
+     * tuple slots.
      * Specifically, the number of tuples is equal to: <p>
-     * floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     * floor(((BufferPool.getPageSize() - LSN_SIZE)*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
      * <p>
      * ceiling(no. tuple slots / 8)
      * <p>
+     * The data is copied, so the caller may reuse it.
      *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
@@ -43,23 +116,32 @@ public class HeapPage implements Page {
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.fieldOffsets = new int[td.numFields()];
+        int size = 0;
+        for (int i = 0; i < fieldOffsets.length; i++) {
+            fieldOffsets[i] = size;
+            size += td.getFieldType(i).getLen();
+        }
+        this.tupleSize = size;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.headerSize = getHeaderSize();
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        int pageSize = BufferPool.getPageSize();
+        if (data.length < pageSize) {
+            throw new EOFException("a page of " + pageSize + " bytes cannot be read from " + data.length);
+        }
+        image = new Image(ByteBuffer.wrap(Arrays.copyOf(data, pageSize)));
+        lsn = image.data.getLong(0);
 
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+        // empty slots and the padding read as zeros, as getPageData()
+        // has always written them
+        byte[] bytes = image.data.array();
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                Arrays.fill(bytes, slotOffset(i), slotOffset(i) + tupleSize, (byte) 0);
+            }
         }
-        dis.close();
+        Arrays.fill(bytes, slotOffset(numSlots), pageSize, (byte) 0);
         setBeforeImage();
     }
 
@@ -70,7 +152,7 @@ public class HeapPage implements Page {
      */
     private int getNumTuples() {
         // some code goes here
-        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        return ((BufferPool.getPageSize() - LSN_SIZE) * 8) / (tupleSize * 8 + 1);
     }
 
     /**
@@ -83,17 +165,81 @@ public class HeapPage implements Page {
         return (getNumTuples() + 7) / 8;
     }
 
+    /** @return the offset of a slot in the page */
+    private int slotOffset(int slot) {
+        return LSN_SIZE + headerSize + slot * tupleSize;
+    }
+
+    /**
+     * Make image safe to change: copy it if a tuple reads from it or it is
+     * the before image
+     */
+    private void beforeWrite() {
+        synchronized (oldDataLock) {
+            boolean before = oldData == null;
+            if (!before && !shared) {
+                return;
+            }
+            byte[] copy = image.copy();
+            if (arena == null) {
+                // the page goes on in the copy
+                if (before) {
+                    oldData = image.data.array();
+                }
+                image = new Image(ByteBuffer.wrap(copy));
+            } else {
+                // the page stays in its frame, and the others get the copy
+                if (before) {
+                    oldData = copy;
+                }
+                if (shared) {
+                    image.data = ByteBuffer.wrap(copy);
+                    image = new Image(arena.frame(frame));
+                }
+            }
+            shared = false;
+        }
+    }
+
+    public void moveInto(PageArena arena) {
+        synchronized (oldDataLock) {
+            if (this.arena != null || arena.getPageSize() != image.data.capacity()) {
+                return;
+            }
+            int f = arena.allocate();
+            if (f == -1) {
+                return;
+            }
+            ByteBuffer buf = arena.frame(f);
+            buf.put(0, image.data, 0, buf.capacity());
+            // any tuples keep the bytes on the heap, which no longer change
+            image = new Image(buf);
+            shared = false;
+            this.arena = arena;
+            this.frame = f;
+        }
+    }
+
+    public void leaveArena() {
+        synchronized (oldDataLock) {
+            if (arena == null) {
+                return;
+            }
+            // the same Image, so that the tuples reading it move along
+            image.data = ByteBuffer.wrap(image.copy());
+            arena.free(frame);
+            arena = null;
+            frame = -1;
+        }
+    }
+
     /**
      * Return a view of this page before it was modified
      * -- used by recovery
      */
     public HeapPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid, oldDataRef);
+            return new HeapPage(pid, getBeforeImageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -104,10 +250,46 @@ public class HeapPage implements Page {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            // nothing else reads these bytes of image
+            image.data.putLong(0, lsn);
+            oldData = null;
+            dirtyFrom = image.data.capacity();
+            dirtyTo = 0;
+        }
+    }
+
+    public byte[] getBeforeImageData() {
+        synchronized (oldDataLock) {
+            if (oldData != null) {
+                return oldData;
+            }
+            return arena == null ? image.data.array() : image.copy();
+        }
+    }
+
+    public int[] getDirtyRange() {
+        synchronized (oldDataLock) {
+            return new int[] { Math.min(dirtyFrom, dirtyTo), dirtyTo };
+        }
+    }
+
+    /** Note that the bytes in [from, to) may now differ from oldData */
+    private void dirty(int from, int to) {
+        synchronized (oldDataLock) {
+            dirtyFrom = Math.min(dirtyFrom, from);
+            dirtyTo = Math.max(dirtyTo, to);
         }
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+        dirty(0, LSN_SIZE);
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -117,40 +299,6 @@ public class HeapPage implements Page {
 //        throw new UnsupportedOperationException("implement this");
     }
 
-    /**
-     * Suck up tuples from the source file.
-     */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
-        return t;
-    }
-
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -163,64 +311,17 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        byte[] data = image.copy();
+        ByteBuffer.wrap(data).putLong(0, lsn);
+        return data;
+    }
 
-        return baos.toByteArray();
+    public void writePageData(ByteBuffer dst) {
+        int start = dst.position();
+        ByteBuffer src = image.data;
+        dst.put(start, src, 0, src.capacity());
+        dst.position(start + src.capacity());
+        dst.putLong(start, lsn);
     }
 
     /**
@@ -252,7 +353,13 @@ public class HeapPage implements Page {
         if (!recordId.getPageId().equals(this.pid) || !isSlotUsed(recordId.tupleNo)) {
             throw new DbException("this tuple is not on this page");
         }
-        this.tuples[recordId.getTupleNumber()] = null;
+        beforeWrite();
+        int offset = slotOffset(recordId.getTupleNumber());
+        ByteBuffer data = image.data;
+        for (int i = offset; i < offset + tupleSize; i++) {
+            data.put(i, (byte) 0);
+        }
+        dirty(offset, offset + tupleSize);
         this.markSlotUsed(recordId.getTupleNumber(), false);
     }
 
@@ -277,18 +384,25 @@ public class HeapPage implements Page {
         if (unusedSlot == -1) {
             throw new DbException("this should not happen");
         }
+        beforeWrite();
+        int offset = slotOffset(unusedSlot);
+        for (int j = 0; j < fieldOffsets.length; j++) {
+            td.getFieldType(j).write(image.data, offset + fieldOffsets[j], t.getField(j));
+        }
+        dirty(offset, offset + tupleSize);
         t.setRecordId(new RecordId(this.pid, unusedSlot));
-        tuples[unusedSlot] = t;
         markSlotUsed(unusedSlot, true);
     }
 
     static final byte[] log = {1, 2, 4, 8, 16, 32, 64, (byte) 0x80};
 
     private int getUnusedSlot() {
-        for (int i = 0; i < header.length; i++) {
-            if (!(header[i] == (byte) 0xff)) {
+        ByteBuffer data = image.data;
+        for (int i = 0; i < headerSize; i++) {
+            byte header = data.get(LSN_SIZE + i);
+            if (!(header == (byte) 0xff)) {
                 for (int j = 0; j < 8; j++) {
-                    if ((header[i] & log[j]) == 0) {
+                    if ((header & log[j]) == 0) {
                         return i * 8 + j;
                     }
                 }
@@ -342,15 +456,22 @@ public class HeapPage implements Page {
     public int getNumEmptySlots() {
         // some code goes here
 //        return header.length * 8 - getNumUsedSlots();
-        return getNumTuples() - getNumUsedSlots();
+        return numSlots - getNumUsedSlots();
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() != 0;
+    }
+
+    public boolean isFull() {
+        return getNumEmptySlots() == 0;
     }
 
     public int getNumUsedSlots() {
+        ByteBuffer data = image.data;
         int sum = 0;
-        for (int i = 0; i < header.length; i++) {
-            sum += table[header[i] & 0xff]
-            //  + table[(header[i] >> 8) & 0xff] + table[(header[i] >> 16) & 0xff] + table[(header[i] >> 24) & 0xff]
-            ;
+        for (int i = 0; i < headerSize; i++) {
+            sum += table[data.get(LSN_SIZE + i) & 0xff];
         }
         return sum;
     }
@@ -360,7 +481,11 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        return ((int) (header[i / 8]) & (1 << (i % 8))) != 0;
+        return isSlotUsed(image.data, i);
+    }
+
+    private static boolean isSlotUsed(ByteBuffer data, int i) {
+        return ((int) (data.get(LSN_SIZE + i / 8)) & (1 << (i % 8))) != 0;
     }
 
     /**
@@ -369,39 +494,45 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
+        ByteBuffer data = image.data;
+        int at = LSN_SIZE + i / 8;
         byte b = (byte) (1 << (i % 8));
         if (value) {
-            header[i / 8] = (byte) (header[i / 8] | b);
+            data.put(at, (byte) (data.get(at) | b));
         } else {
-            header[i / 8] = (byte) (header[i / 8] & ~b);
+            data.put(at, (byte) (data.get(at) & ~b));
         }
+        dirty(LSN_SIZE + i / 8, LSN_SIZE + i / 8 + 1);
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * The tuples are lazy, and the page as it is now is what they read.
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-//        return new Iterator<Tuple>() {
-//            int current = 0;
-
-//            public boolean hasNext() {
-//                while (current < tuples.length) {
-//                    if (isSlotUsed(current)) {
-//                        return true;
-//                    }
-//                    current++;
-//                }
-//                return false;
-//            }
-//
-//            public Tuple next() {
-//                return tuples[current++];
-//            }
-//        };
-
-        return Arrays.stream(this.tuples).filter(Objects::nonNull).iterator();
+        final Image snapshot = image;
+        shared = true;
+        return new Iterator<Tuple>() {
+            int current = 0;
+
+            public boolean hasNext() {
+                while (current < numSlots) {
+                    if (isSlotUsed(snapshot.data, current)) {
+                        return true;
+                    }
+                    current++;
+                }
+                return false;
+            }
+
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return new Tuple(td, snapshot, current++);
+            }
+        };
     }
 }
-
@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins each tuple of its left (outer) child with the
+ * tuples of its right (inner) child that an index finds for it: for each
+ * outer tuple the index is searched again, with an IndexPredicate on the
+ * value of the join field, so only the leaves that hold matches are read.
+ * The right child must be an index on the join field, such as a BTreeScan
+ * of a BTreeFile keyed on it.
+ * <p>
+ * The outer child may be sorted on the join field first, so that searches
+ * come in key order and read the leaves of the index from left to right.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private OpIterator child1;
+    private IndexOpIterator child2;
+    private boolean sortOuter;
+    private TupleDesc comboTD;
+    // the outer child, as it is read: child1 or child1 sorted
+    transient private OpIterator outer = null;
+    transient private Tuple t1 = null;
+    // true once the index is open
+    transient private boolean searched = false;
+
+    /**
+     * Constructor. Accepts the children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The predicate to use to join the children; field2 must be
+     *            the field child2 indexes, and the operator a comparison an
+     *            IndexPredicate can make
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Index for the right(inner) relation to join
+     * @param sortOuter
+     *            true to sort child1 on the join field before joining
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1,
+            IndexOpIterator child2, boolean sortOuter) {
+        if (p.getOperator() == Predicate.Op.NOT_EQUALS || p.getOperator() == Predicate.Op.LIKE) {
+            throw new IllegalArgumentException("an index cannot search for " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.sortOuter = sortOuter;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public boolean isSortOuter() {
+        return sortOuter;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return the predicate on the inner tuples that match outer tuple t:
+     *   outer op inner is inner op' outer, with op' op mirrored
+     */
+    private IndexPredicate innerPredicate(Tuple t) {
+        Predicate.Op op;
+        switch (pred.getOperator()) {
+        case LESS_THAN:
+            op = Predicate.Op.GREATER_THAN;
+            break;
+        case LESS_THAN_OR_EQ:
+            op = Predicate.Op.GREATER_THAN_OR_EQ;
+            break;
+        case GREATER_THAN:
+            op = Predicate.Op.LESS_THAN;
+            break;
+        case GREATER_THAN_OR_EQ:
+            op = Predicate.Op.LESS_THAN_OR_EQ;
+            break;
+        default:
+            op = pred.getOperator();
+        }
+        return new IndexPredicate(op, t.getField(pred.getField1()));
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        outer = sortOuter ? new OrderBy(pred.getField1(), true, child1) : child1;
+        outer.open();
+        searched = false;
+        t1 = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (searched) {
+            child2.close();
+        }
+        if (outer != null && outer != child1) {
+            // the sort closes child1 itself
+            outer.close();
+        } else {
+            child1.close();
+        }
+        outer = null;
+        searched = false;
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        outer.rewind();
+        t1 = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple and an inner tuple
+     * that satisfy the join predicate, as in {@link Join}.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && child2.hasNext()) {
+                Tuple t2 = child2.next();
+                Tuple t = new Tuple(comboTD);
+                int td1n = t1.getTupleDesc().numFields();
+                for (int i = 0; i < td1n; i++)
+                    t.setField(i, t1.getField(i));
+                for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+                    t.setField(td1n + i, t2.getField(i));
+                return t;
+            }
+            if (!outer.hasNext()) {
+                return null;
+            }
+            t1 = outer.next();
+            if (searched) {
+                child2.rewind(innerPredicate(t1));
+            } else {
+                child2.open(innerPredicate(t1));
+                searched = true;
+            }
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = (IndexOpIterator) children[1];
+    }
+
+}
@@ -14,6 +14,27 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /**
+     * The physical join operators a logical join can be instantiated as, in
+     * order of preference when their costs tie
+     */
+    public enum JoinAlgorithm {
+        /** {@link HashEquiJoin}: equality joins only */
+        HASH,
+        /** {@link Join}: sorts blocks of both children and merges them */
+        BLOCK_SORT,
+        /**
+         * {@link IndexNestedLoopJoin}, with the left child sorted: equality
+         * joins with a table whose BTreeFile is keyed on the join field
+         */
+        INDEX
+    }
+
+    // the bytes of a block of Join, and the tuples HashEquiJoin holds in
+    // memory before it spills
+    private static final int BLOCK_BYTES = 1 << 20;
+    private static final int HASH_TUPLES = HashEquiJoin.MAP_SIZE;
+
     /**
      * Constructor
      * 
@@ -54,11 +75,25 @@ public class JoinOptimizer {
             throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
         }
 
+        JoinAlgorithm algorithm = lj.algorithm;
+        if (algorithm == null) {
+            // not costed: hashing is never much worse for an equality join
+            algorithm = lj.p == Predicate.Op.EQUALS ? JoinAlgorithm.HASH : JoinAlgorithm.BLOCK_SORT;
+        }
+        BTreeScan index = null;
+        if (algorithm == JoinAlgorithm.INDEX) {
+            index = indexScan(plan2, lj.f2QuantifiedName);
+            if (index == null) {
+                // the right child is not a plain scan of the index after all
+                algorithm = JoinAlgorithm.HASH;
+            }
+        }
+
         if (lj instanceof LogicalSubplanJoinNode) {
             t2id = 0;
         } else {
             try {
-                t2id = plan2.getTupleDesc().fieldNameToIndex(
+                t2id = (index != null ? index : plan2).getTupleDesc().fieldNameToIndex(
                         lj.f2QuantifiedName);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field "
@@ -68,20 +103,61 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        switch (algorithm) {
+        case HASH:
+            j = new HashEquiJoin(p, plan1, plan2);
+            break;
+        case INDEX:
+            j = new IndexNestedLoopJoin(p, plan1, index, true);
+            break;
+        default:
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
     }
 
     /**
-     * Estimate the cost of a join.
+     * @return a BTreeScan of the table plan scans, if plan is a SeqScan of a
+     *   BTreeFile keyed on the field with the given alias-qualified name, or
+     *   null
+     */
+    private static BTreeScan indexScan(OpIterator plan, String field) {
+        if (!(plan instanceof SeqScan)) {
+            return null;
+        }
+        SeqScan scan = (SeqScan) plan;
+        if (!isKey(scan.tableId, scan.getAlias(), field)) {
+            return null;
+        }
+        return new BTreeScan(scan.transactionId, scan.tableId, scan.getAlias(), null);
+    }
+
+    /**
+     * @return true if table id is a BTreeFile keyed on the field with the
+     *   given name, qualified with alias as a scan of the table names it
+     */
+    private static boolean isKey(int id, String alias, String field) {
+        DbFile f = Database.getCatalog().getDatabaseFile(id);
+        if (!(f instanceof BTreeFile)) {
+            return false;
+        }
+        try {
+            return BTreeScan.aliasedTupleDesc(id, alias).fieldNameToIndex(field) == ((BTreeFile) f).keyField();
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Estimate the cost of a join, with the join algorithm that suits it
+     * best (see {@link #chooseJoin}).
      * 
-     * The cost of the join should be calculated based on the join algorithm (or
-     * algorithms) that you implemented for Lab 2. It should be a function of
-     * the amount of data that must be read over the course of the query, as
-     * well as the number of CPU opertions performed by your join. Assume that
-     * the cost of a single predicate application is roughly 1.
+     * The cost of the join is a function of the amount of data that must be
+     * read over the course of the query, as well as the number of CPU
+     * operations performed by the join. The cost of a single predicate
+     * application is roughly 1.
      * 
      * 
      * @param j
@@ -102,19 +178,134 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * Estimate the cost of a join, as estimateJoinCost does.
+     *
+     * @param innerIsTable
+     *            false if the right-hand side is the result of other joins
+     *            rather than the table j.t2Alias
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + card1 * cost2 + card1 * card2;
+            return estimateJoinCost(j, chooseJoin(j, card1, card2, cost1, cost2, innerIsTable),
+                    card1, card2, cost1, cost2);
         }
     }
 
+    /**
+     * Choose the cheapest join algorithm for a join; the arguments are those
+     * of {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     */
+    public JoinAlgorithm chooseJoin(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        return chooseJoin(j, card1, card2, cost1, cost2, true);
+    }
+
+    private JoinAlgorithm chooseJoin(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable) {
+        JoinAlgorithm best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (JoinAlgorithm a : JoinAlgorithm.values()) {
+            if (a == JoinAlgorithm.INDEX && !innerIsTable) {
+                continue;
+            }
+            double cost = estimateJoinCost(j, a, card1, card2, cost1, cost2);
+            if (cost < bestCost) {
+                best = a;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the cost of a join with a given algorithm.
+     *
+     * @return the cost, or Double.MAX_VALUE if the algorithm cannot run the
+     *   join
+     */
+    double estimateJoinCost(LogicalJoinNode j, JoinAlgorithm algorithm,
+            int card1, int card2, double cost1, double cost2) {
+        switch (algorithm) {
+        case HASH: {
+            if (j.p != Predicate.Op.EQUALS) {
+                return Double.MAX_VALUE;
+            }
+            // build and probe, plus writing and reading back what spills:
+            // all but one partition, once per level of partitioning
+            double cost = cost1 + cost2 + card1 + card2;
+            if (card1 > HASH_TUPLES) {
+                int levels = (int) Math.ceil(Math.log((double) card1 / HASH_TUPLES)
+                        / Math.log(HashEquiJoin.PARTITIONS));
+                double spilled = (HashEquiJoin.PARTITIONS - 1.0) / HashEquiJoin.PARTITIONS;
+                cost += 2 * levels * spilled * (cost1 + cost2 + card1 + card2);
+            }
+            return cost;
+        }
+        case INDEX: {
+            if (j.p != Predicate.Op.EQUALS || !isIndexed(j.t2Alias, j.f2QuantifiedName)) {
+                return Double.MAX_VALUE;
+            }
+            // sort the left child, then search the index once per left
+            // tuple; in key order the searches read each leaf at most once
+            double pages2 = Math.max(1, Math.ceil((double) card2 * tupleSize(j.t2Alias)
+                    / BufferPool.getPageSize()));
+            double leaves = Math.min(card1, pages2);
+            return cost1 + card1 * log2(card1) + leaves * cost2 / pages2
+                    + card1 * log2(card2) + card1;
+        }
+        default: {
+            // the right child is read once per block of the left child; each
+            // block of either is sorted, and each pair of blocks merged
+            int block1 = Math.max(1, BLOCK_BYTES / tupleSize(j.t1Alias));
+            int block2 = Math.max(1, BLOCK_BYTES / tupleSize(j.t2Alias));
+            double blocks1 = Math.ceil((double) card1 / block1);
+            double sort1 = card1 * log2(Math.min(card1, block1));
+            double sort2 = blocks1 * card2 * log2(Math.min(card2, block2));
+            double merge = j.p == Predicate.Op.EQUALS
+                    ? card1 + blocks1 * card2
+                    : (double) card1 * card2;
+            return cost1 + Math.max(1, blocks1) * cost2 + sort1 + sort2 + merge;
+        }
+        }
+    }
+
+    /**
+     * @return true if the table with the given alias is an unfiltered scan
+     *   of a BTreeFile keyed on the field with the given alias-qualified name
+     */
+    private boolean isIndexed(String alias, String field) {
+        Integer id = alias == null ? null : p.getTableId(alias);
+        if (id == null || p.isFiltered(alias)) {
+            return false;
+        }
+        return isKey(id, alias, field);
+    }
+
+    private static double log2(double x) {
+        return x > 1 ? Math.log(x) / Math.log(2) : 0;
+    }
+
+    /**
+     * @return the size of a tuple of the table with the given alias, or of
+     *   an int if that table is not known
+     */
+    private int tupleSize(String alias) {
+        Integer id = alias == null ? null : p.getTableId(alias);
+        if (id == null) {
+            return Type.INT_TYPE.getLen();
+        }
+        return Database.getCatalog().getTupleDesc(id).getSize();
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -330,6 +521,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // false for the side that is the result of the joins in prevBest
+        boolean leftIsTable = true, rightIsTable = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -365,6 +558,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                leftIsTable = false;
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -381,6 +575,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                rightIsTable = false;
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -394,10 +589,10 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, rightIsTable);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, leftIsTable);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -409,6 +604,19 @@ public class JoinOptimizer {
         if (cost1 >= bestCostSoFar)
             return null;
 
+        if (!(j instanceof LogicalSubplanJoinNode)) {
+            // the node may be in other plans, with other inputs, so the
+            // algorithm for this one goes on a copy
+            LogicalJoinNode chosen = new LogicalJoinNode(j.t1Alias, j.t2Alias,
+                    j.f1PureName, j.f2PureName, j.p);
+            if (j == joinToRemove) {
+                chosen.algorithm = chooseJoin(j, t1card, t2card, t1cost, t2cost, rightIsTable);
+            } else {
+                chosen.algorithm = chooseJoin(j, t2card, t1card, t2cost, t1cost, leftIsTable);
+            }
+            j = chosen;
+        }
+
         CostCard cc = new CostCard();
 
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
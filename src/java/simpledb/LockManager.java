@@ -0,0 +1,441 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager keeps the page-level shared / exclusive locks used by
+ * BufferPool to implement strict two-phase locking.
+ * <p>
+ * There is no global monitor: every page has its own Lock object holding the
+ * granted group and a FIFO queue of waiting requests, and all blocking and
+ * waking happens on that object's monitor. Requests on different pages
+ * therefore never contend, and releasing a page only wakes the transactions
+ * queued on that page.
+ * <p>
+ * Requests are granted in arrival order, except that a lock upgrade (a sole
+ * shared holder asking for an exclusive lock) jumps to the head of the
+ * queue. Consecutive shared requests at the head of the queue are granted
+ * together.
+ * <p>
+ * Deadlocks are found with a wait-for graph that is only maintained on the
+ * blocking path: a request that has to wait records which transactions it
+ * waits for and checks for a cycle through itself, so a deadlock is broken
+ * by the request that closes it. The youngest transaction on the cycle is
+ * aborted.
+ *
+ * @Threadsafe
+ */
+class LockManager {
+    enum LockType {
+        ShareLock, ExclusiveLock
+    }
+
+    /** A request waiting in a page's queue */
+    static class LockRequest {
+        final TransactionId tid;
+        final LockType type;
+
+        LockRequest(TransactionId tid, LockType type) {
+            this.tid = tid;
+            this.type = type;
+        }
+    }
+
+    /**
+     * The lock on a single page. All fields are protected by the Lock's own
+     * monitor.
+     */
+    static class Lock {
+        LockType type;
+        final PageId pageId;
+        final ArrayList<TransactionId> holders;
+        final LinkedList<LockRequest> waiters;
+        // set once the lock has been removed from the lock table; a thread
+        // that finds a retired lock must look it up again
+        boolean retired;
+
+        public Lock(PageId pageId) {
+            this.type = LockType.ShareLock;
+            this.pageId = pageId;
+            this.holders = new ArrayList<>();
+            this.waiters = new LinkedList<>();
+            this.retired = false;
+        }
+
+        public LockType getType() {
+            return type;
+        }
+
+        public PageId getPageId() {
+            return pageId;
+        }
+
+        public ArrayList<TransactionId> getHolders() {
+            return holders;
+        }
+
+        /**
+         * @return true if tid already holds this lock in a mode at least as
+         *   strong as the requested one
+         */
+        boolean isHeldBy(TransactionId tid, LockType reqLock) {
+            if (!holders.contains(tid)) {
+                return false;
+            }
+            return type == LockType.ExclusiveLock || reqLock == LockType.ShareLock;
+        }
+
+        boolean isUpgrade(TransactionId tid, LockType reqLock) {
+            return reqLock == LockType.ExclusiveLock && type == LockType.ShareLock && holders.contains(tid);
+        }
+
+        /**
+         * @return true if the request is compatible with the granted group
+         */
+        boolean compatible(TransactionId tid, LockType reqLock) {
+            if (holders.isEmpty()) {
+                return true;
+            }
+            if (reqLock == LockType.ShareLock) {
+                return type == LockType.ShareLock;
+            }
+            // exclusive request: only an upgrade by the sole holder
+            return holders.size() == 1 && holders.get(0).equals(tid);
+        }
+
+        /**
+         * A queued request may be granted once it is compatible with the
+         * granted group and every request ahead of it in the queue has been
+         * granted, or is a shared request that it can share with.
+         */
+        boolean grantable(LockRequest req) {
+            if (!compatible(req.tid, req.type)) {
+                return false;
+            }
+            for (LockRequest ahead : waiters) {
+                if (ahead == req) {
+                    return true;
+                }
+                if (ahead.type == LockType.ExclusiveLock || req.type == LockType.ExclusiveLock) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the transactions that req is waiting for: the holders it
+         *   conflicts with, and the requests queued ahead of it that it
+         *   cannot share with
+         */
+        Set<TransactionId> blockers(LockRequest req) {
+            HashSet<TransactionId> blockers = new HashSet<>();
+            if (!compatible(req.tid, req.type)) {
+                for (TransactionId h : holders) {
+                    if (!h.equals(req.tid)) {
+                        blockers.add(h);
+                    }
+                }
+            }
+            for (LockRequest ahead : waiters) {
+                if (ahead == req) {
+                    break;
+                }
+                if ((ahead.type == LockType.ExclusiveLock || req.type == LockType.ExclusiveLock)
+                        && !ahead.tid.equals(req.tid)) {
+                    blockers.add(ahead.tid);
+                }
+            }
+            return blockers;
+        }
+
+        void grant(TransactionId tid, LockType reqLock) {
+            if (!holders.contains(tid)) {
+                holders.add(tid);
+            }
+            if (reqLock == LockType.ExclusiveLock) {
+                assert holders.size() == 1;
+                type = LockType.ExclusiveLock;
+            } else if (holders.size() == 1) {
+                type = LockType.ShareLock;
+            }
+        }
+    }
+
+    /** Passed as timeout to wait until the lock is granted or a deadlock is found */
+    public static final long NO_TIMEOUT = -1;
+
+    private final ConcurrentHashMap<PageId, Lock> lockTable;
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> transactionTable;
+
+    // wait-for graph: waiting transaction -> transactions it waits for.
+    // waitsFor, waitingOn and victims are protected by the monitor of
+    // waitsFor, which is only taken on the blocking path.
+    private final HashMap<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>();
+    // waiting transaction -> the lock it is queued on
+    private final HashMap<TransactionId, Lock> waitingOn = new HashMap<>();
+    // transactions chosen to break a deadlock that have not noticed yet
+    private final HashSet<TransactionId> victims = new HashSet<>();
+
+    public LockManager(int lockTabCap, int transTabCap) {
+        this.lockTable = new ConcurrentHashMap<>(lockTabCap);
+        this.transactionTable = new ConcurrentHashMap<>(transTabCap);
+    }
+
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<PageId> lockSet = transactionTable.get(tid);
+        return lockSet != null && lockSet.contains(pid);
+    }
+
+    private void updateTransactionTable(TransactionId tid, PageId pid) {
+        transactionTable.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    /**
+     * Acquire a lock on pid for tid, blocking on the page's wait queue until
+     * the lock can be granted. Deadlocks are detected as soon as they form.
+     *
+     * @throws TransactionAbortedException if tid was chosen as the victim
+     *   of a deadlock
+     */
+    public void acquireLock(TransactionId tid, PageId pid, LockType reqLock)
+            throws TransactionAbortedException {
+        acquireLock(tid, pid, reqLock, NO_TIMEOUT);
+    }
+
+    /**
+     * Acquire a lock on pid for tid, blocking on the page's wait queue until
+     * the lock can be granted.
+     * <p>
+     * Whenever the request has to wait, the edges from tid to the
+     * transactions it is waiting for are added to the wait-for graph and the
+     * graph is searched for a cycle through tid. If one is found, the
+     * youngest transaction on the cycle (latest start timestamp) is chosen
+     * as the victim: if that is tid this call aborts, otherwise the victim
+     * is woken up and aborts from its own acquireLock call.
+     *
+     * @param timeout give up after this many ms, or NO_TIMEOUT to wait
+     *   until the lock is granted or tid is chosen as a deadlock victim
+     * @throws TransactionAbortedException if tid was chosen as the victim
+     *   of a deadlock, or the timeout expired
+     */
+    public void acquireLock(TransactionId tid, PageId pid, LockType reqLock, long timeout)
+            throws TransactionAbortedException {
+        long start = System.currentTimeMillis();
+        Lock lock;
+        LockRequest req;
+        while (true) {
+            lock = lockTable.computeIfAbsent(pid, Lock::new);
+            synchronized (lock) {
+                if (lock.retired) {
+                    // released and removed after we looked it up
+                    continue;
+                }
+                if (lock.isHeldBy(tid, reqLock)) {
+                    return;
+                }
+                req = new LockRequest(tid, reqLock);
+                if (lock.isUpgrade(tid, reqLock)) {
+                    lock.waiters.addFirst(req);
+                } else {
+                    lock.waiters.addLast(req);
+                }
+                // a queued lock is never retired, so we can leave and
+                // re-enter its monitor below
+                break;
+            }
+        }
+
+        while (true) {
+            Lock victimLock;
+            synchronized (lock) {
+                if (lock.grantable(req)) {
+                    lock.waiters.remove(req);
+                    lock.grant(tid, reqLock);
+                    updateTransactionTable(tid, pid);
+                    stopWaiting(tid);
+                    if (reqLock == LockType.ShareLock && !lock.waiters.isEmpty()) {
+                        // the next queued shared requests may now share with us
+                        lock.notifyAll();
+                    }
+                    return;
+                }
+                long remaining = timeout - (System.currentTimeMillis() - start);
+                if (timeout != NO_TIMEOUT && remaining <= 0) {
+                    giveUp(lock, req);
+                }
+                victimLock = waitFor(lock, req);
+                if (victimLock == null) {
+                    try {
+                        lock.wait(timeout == NO_TIMEOUT ? 0 : remaining);
+                    } catch (InterruptedException e) {
+                        giveUp(lock, req);
+                    }
+                }
+            }
+            if (victimLock != null) {
+                // wake the victim outside our own monitor so that two
+                // detectors never hold each other's locks
+                synchronized (victimLock) {
+                    victimLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Record which transactions req is blocked by and look for a deadlock.
+     * Must be called while holding the monitor of lock.
+     *
+     * @return the lock the deadlock victim is waiting on, if a victim other
+     *   than req's transaction was chosen and needs to be woken up; null
+     *   otherwise
+     * @throws TransactionAbortedException if req's transaction has been
+     *   chosen as a victim
+     */
+    private Lock waitFor(Lock lock, LockRequest req) throws TransactionAbortedException {
+        TransactionId tid = req.tid;
+        TransactionId victim;
+        synchronized (waitsFor) {
+            if (victims.contains(tid)) {
+                giveUp(lock, req);
+            }
+            waitsFor.put(tid, lock.blockers(req));
+            waitingOn.put(tid, lock);
+
+            List<TransactionId> cycle = findCycle(tid);
+            if (cycle == null) {
+                return null;
+            }
+            victim = youngest(cycle);
+            Debug.log(1, "LockManager: deadlock among %d transactions, aborting %d", cycle.size(), victim.getId());
+            if (victim.equals(tid)) {
+                giveUp(lock, req);
+            }
+            // the victim no longer waits for anybody as far as other
+            // detectors are concerned
+            waitsFor.remove(victim);
+            victims.add(victim);
+            return waitingOn.get(victim);
+        }
+    }
+
+    /**
+     * Search the wait-for graph for a cycle through tid.
+     *
+     * @return the transactions on the cycle, starting with tid, or null
+     */
+    private List<TransactionId> findCycle(TransactionId tid) {
+        LinkedList<TransactionId> path = new LinkedList<>();
+        HashSet<TransactionId> visited = new HashSet<>();
+        path.add(tid);
+        return findCycle(tid, tid, path, visited) ? path : null;
+    }
+
+    private boolean findCycle(TransactionId start, TransactionId cur,
+                              LinkedList<TransactionId> path, HashSet<TransactionId> visited) {
+        Set<TransactionId> next = waitsFor.get(cur);
+        if (next == null) {
+            return false;
+        }
+        for (TransactionId t : next) {
+            if (t.equals(start)) {
+                return true;
+            }
+            if (visited.add(t)) {
+                path.addLast(t);
+                if (findCycle(start, t, path, visited)) {
+                    return true;
+                }
+                path.removeLast();
+            }
+        }
+        return false;
+    }
+
+    private static TransactionId youngest(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        for (TransactionId t : cycle) {
+            if (victim == null
+                    || t.getStartTimestamp() > victim.getStartTimestamp()
+                    || (t.getStartTimestamp() == victim.getStartTimestamp() && t.getId() > victim.getId())) {
+                victim = t;
+            }
+        }
+        return victim;
+    }
+
+    /** Remove tid from the wait-for graph once it stops waiting. */
+    private void stopWaiting(TransactionId tid) {
+        synchronized (waitsFor) {
+            waitsFor.remove(tid);
+            waitingOn.remove(tid);
+            // a stale victim choice must not abort a later request
+            victims.remove(tid);
+        }
+    }
+
+    /**
+     * Withdraw req from the queue of lock and abort. Must be called while
+     * holding the monitor of lock.
+     */
+    private void giveUp(Lock lock, LockRequest req) throws TransactionAbortedException {
+        stopWaiting(req.tid);
+        lock.waiters.remove(req);
+        if (lock.holders.isEmpty() && lock.waiters.isEmpty()) {
+            lock.retired = true;
+            lockTable.remove(lock.pageId, lock);
+        } else {
+            // requests queued behind us may be grantable now
+            lock.notifyAll();
+        }
+        throw new TransactionAbortedException();
+    }
+
+    public void releaseLock(TransactionId tid, PageId pid) {
+        // remove from trans table
+        Set<PageId> lockSet = transactionTable.get(tid);
+        if (lockSet != null) {
+            lockSet.remove(pid);
+        }
+        // remove from lock table
+        Lock lock = lockTable.get(pid);
+        if (lock == null) {
+            return;
+        }
+        synchronized (lock) {
+            if (!lock.holders.remove(tid)) {
+                return;
+            }
+            if (lock.holders.isEmpty() && lock.waiters.isEmpty()) {
+                // nobody is interested in this page any more
+                lock.retired = true;
+                lockTable.remove(pid, lock);
+            } else {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    public void releaseLocksOnTransaction(TransactionId tid) {
+        Set<PageId> lockSet = transactionTable.remove(tid);
+        if (lockSet != null) {
+            for (PageId pid : lockSet) {
+                releaseLock(tid, pid);
+            }
+        }
+    }
+
+    /**
+     * @return a snapshot of the pages tid holds locks on, or null if it
+     *   holds none
+     */
+    public ArrayList<PageId> getLockList(TransactionId tid) {
+        Set<PageId> lockSet = transactionTable.get(tid);
+        if (lockSet == null) {
+            return null;
+        }
+        return new ArrayList<>(lockSet);
+    }
+}
@@ -0,0 +1,168 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LogBuffer is the tail of the log that has not been written to the log
+ * segments yet: a ring of bytes that appenders reserve space in with an
+ * atomic add on the end of the log, and then fill concurrently, without
+ * taking a lock. An append costs a copy into the ring.
+ * <p>
+ * Draining writes the longest prefix of filled reservations to the
+ * segments. Only one thread drains at a time; an appender that finds the
+ * ring full drains it itself, so appends make progress without a flusher
+ * thread.
+ *
+ * @see LogFile
+ */
+class LogBuffer {
+
+    static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private static final int INT_SIZE = 4;
+    private static final int LONG_SIZE = 8;
+
+    private final byte[] ring;
+    // log offset of the next byte to reserve
+    private final AtomicLong reserved = new AtomicLong();
+    // reservations that are filled, by offset, until drain() counts them
+    private final ConcurrentSkipListMap<Long, Integer> filled = new ConcurrentSkipListMap<Long, Integer>();
+    // everything before filledTo is filled. protected by drainLock
+    private long filledTo;
+    // everything before drained is in the segments
+    private volatile long drained;
+    private final ReentrantLock drainLock = new ReentrantLock();
+
+    LogBuffer(int capacity) {
+        ring = new byte[capacity];
+    }
+
+    /**
+     * Make the log end at offset, forgetting anything buffered. There may
+     * be no appends in progress.
+     */
+    void reset(long offset) {
+        drainLock.lock();
+        try {
+            filled.clear();
+            reserved.set(offset);
+            filledTo = offset;
+            drained = offset;
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /** @return the offset at which the next record will be appended */
+    long end() {
+        return reserved.get();
+    }
+
+    /** @return the offset up to which the log is in the segments */
+    long drained() {
+        return drained;
+    }
+
+    /**
+     * Append a record: its type and transaction id, len bytes of body, and
+     * its own offset, which lets the log be read backward.
+     *
+     * @return the offset of the record, which is its LSN
+     */
+    long append(int type, long tid, byte[] body, int len, LogSegments segments) throws IOException {
+        int total = recordSize(len);
+        if (total > ring.length) {
+            throw new IOException("log record of " + total + " bytes does not fit in the log buffer");
+        }
+        long start = reserved.getAndAdd(total);
+        while (start + total - drained > ring.length) {
+            // the ring is full: write out what the appenders before us
+            // have filled, which frees up the space we need
+            drain(segments);
+            if (start + total - drained > ring.length) {
+                Thread.yield();
+            }
+        }
+        long pos = start;
+        pos = putBigEndian(pos, type, INT_SIZE);
+        pos = putBigEndian(pos, tid, LONG_SIZE);
+        pos = put(pos, body, len);
+        putBigEndian(pos, start, LONG_SIZE);
+        filled.put(start, total);
+        return start;
+    }
+
+    /** @return the size of a record with len bytes of body */
+    static int recordSize(int len) {
+        return INT_SIZE + LONG_SIZE + len + LONG_SIZE;
+    }
+
+    /**
+     * Write the filled prefix of the buffer to the segments.
+     *
+     * @return the offset up to which the log is in the segments
+     */
+    long drain(LogSegments segments) throws IOException {
+        drainLock.lock();
+        try {
+            Map.Entry<Long, Integer> e;
+            while ((e = filled.firstEntry()) != null && e.getKey() == filledTo) {
+                filledTo += e.getValue();
+                filled.remove(e.getKey());
+            }
+            long from = drained;
+            if (filledTo > from) {
+                int i = index(from);
+                int len = (int) (filledTo - from);
+                int first = Math.min(len, ring.length - i);
+                segments.write(from, ring, i, first);
+                if (first < len) {
+                    segments.write(from + first, ring, 0, len - first);
+                }
+                drained = filledTo;
+            }
+            return drained;
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * Drain until everything before upTo is in the segments, waiting for
+     * appenders that are still filling their space.
+     *
+     * @return the offset up to which the log is in the segments
+     */
+    long drainTo(long upTo, LogSegments segments) throws IOException {
+        long d = drain(segments);
+        while (d < upTo) {
+            Thread.yield();
+            d = drain(segments);
+        }
+        return d;
+    }
+
+    private int index(long offset) {
+        return (int) (offset % ring.length);
+    }
+
+    /** Store the low size bytes of v big-endian at offset, like DataOutput */
+    private long putBigEndian(long offset, long v, int size) {
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            ring[index(offset++)] = (byte) (v >>> shift);
+        }
+        return offset;
+    }
+
+    private long put(long offset, byte[] b, int len) {
+        int i = index(offset);
+        int first = Math.min(len, ring.length - i);
+        System.arraycopy(b, 0, ring, i, first);
+        System.arraycopy(b, first, ring, 0, len - first);
+        return offset + len;
+    }
+}
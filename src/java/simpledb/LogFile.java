@@ -2,7 +2,14 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.lang.reflect.*;
 
 /**
@@ -17,8 +24,9 @@ import java.lang.reflect.*;
  Many of the methods here are synchronized (to prevent concurrent log
  writes from happening); many of the methods in BufferPool are also
  synchronized (for similar reasons.)  Problem is that BufferPool writes
- log records (on page flushed) and the log file flushes BufferPool
- pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+ log records (on page flushed) and the log file reads the BufferPool's
+ dirty page table (on checkpoints) and discards its pages (on
+ recovery.)  This can lead to deadlock.  For
  that reason, any LogFile operation that needs to access the BufferPool
  must not be declared synchronized and must begin with a block like:
 
@@ -35,15 +43,27 @@ import java.lang.reflect.*;
  */
 
 /**
- <p> The format of the log file is as follows:
+ <p> The format of the log is as follows:
 
  <ul>
 
- <li> The first long integer of the file represents the offset of the
- last written checkpoint, or -1 if there are no checkpoints
+ <li> The log file itself holds two long integers.  The first is the
+ offset of the last written checkpoint, or -1 if there are no
+ checkpoints.  The second is the offset of the oldest record the log
+ keeps.
 
- <li> All additional data in the log consists of log records.  Log
- records are variable length.
+ <li> The records are stored in fixed-size, preallocated segment files
+ next to the log file (see LogSegments).  An offset is a position in the
+ sequence of segments, so it never changes while the record is kept, and
+ it is the record's log sequence number (LSN).  Starting over with the
+ log begins past the old segments, so LSNs keep growing and the LSNs
+ stamped on pages stay comparable to those of the records.  Truncation
+ moves the oldest offset forward and deletes the segments before it in
+ the background.
+
+ <li> All data in the segments consists of log records.  Log
+ records are variable length.  The log ends at the first record that is
+ incomplete, which includes the zeros a segment is preallocated with.
 
  <li> Each log record begins with an integer type and a long integer
  transaction id.
@@ -51,46 +71,142 @@ import java.lang.reflect.*;
  <li> Each log record ends with a long integer file offset representing
  the position in the log file where the record began.
 
- <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
- CHECKPOINT
+ <li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+ and CHECKPOINT
 
  <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
  <li>UPDATE RECORDS consist of two entries, a before image and an
  after image.  These images are serialized Page objects, and can be
  accessed with the LogFile.readPageData() and LogFile.writePageData()
- methods.  See LogFile.print() for an example.
+ methods.  See LogFile.print() for an example.  Once the record is
+ appended, the page is stamped with its LSN (see Page.getLSN()), and
+ recovery only redoes the record if the page on disk has an older LSN.
+
+ <li>DELTA records log an update as the runs of bytes it changed (see
+ PageDelta) instead of two full images: the page class name, the
+ serialized PageId, and for each run its offset with the bytes before
+ and after.  They are used when the before image is the page as the log
+ last left it and only a small part of the page changed, such as a tuple
+ inserted into or deleted from a slot.  Updates that restructure a page
+ still log full images.
 
  <li> CHECKPOINT records consist of active transactions at the time
- the checkpoint was taken and their first log record on disk.  The format
- of the record is an integer count of the number of transactions, as well
- as a long integer transaction id and a long integer first record offset
- for each active transaction.
+ the checkpoint was taken and their first log record on disk, followed
+ by the dirty page table of the buffer pool.  The format of the record is
+ an integer count of the number of transactions, as well as a long
+ integer transaction id and a long integer first record offset for each
+ active transaction, then an integer count of dirty pages, and for each
+ a serialized PageId and the page's long integer recLSN.  The recLSN is
+ the LSN of the oldest update of the page that may not be on disk, so
+ recovery starts redo at the smallest of them.
 
  </ul>
 
+ <p> <u> Group commit: </u>
+ <p>
+
+ Log records are appended to an in-memory ring buffer (see LogBuffer)
+ without taking the LogFile monitor: an appender reserves the space for
+ its record with an atomic add on the end of the log, which also gives
+ the record its LSN, and copies the record in while other appenders do
+ the same.  The buffer is only written to the segments when the log is
+ forced, or before the log is read.  A committer waits until the log is
+ durable up to the end of its own COMMIT record, and no further.
+ <p>
+ By default the committer forces the log itself: it writes the filled
+ part of the buffer and calls fsync, one committer at a time, and the
+ committers that queued up behind it usually find their records durable
+ already.  In group-commit mode (see enableGroupCommit()) force() instead
+ enqueues a request and blocks on it, and a single flusher thread writes
+ everything that is pending with one write and one fsync, completing all
+ the requests that it covers.  The flusher waits at most maxDelayMicros
+ after the first request of a batch, or until maxBatchBytes of log are
+ pending.
+ <p>
+ BEGIN, COMMIT and ABORT records are appended together with the change
+ they make to the running transactions, under a read lock that only a
+ checkpoint takes exclusively, so that the transactions a checkpoint
+ records are exactly those whose BEGIN and not whose end precedes it.
+
  */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    // the checkpoint pointer and the offset of the oldest record
+    private final RandomAccessFile header;
+    private final LogSegments segments;
+    // reads records that are in the segments; used by one thread at a time
+    private final LogSegments.Reader in;
+    // no call to recover() and no append to log
+    volatile boolean recoveryUndecided;
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    // checkpoint pointer and oldest offset
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+
+    private static final byte[] NO_BODY = new byte[0];
+
+    private long logStart = 0; // protected by this
+    // guards the header file, so that a checkpoint can point it at its
+    // record without holding this. taken after this when both are held
+    private final Object headerLock = new Object();
+    // what the header holds. protected by headerLock
+    private long headerCheckpoint = NO_CHECKPOINT_ID;
+    private long headerStart = 0;
+    final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    // records that are not in the segments yet
+    private final LogBuffer buffer = new LogBuffer(LogBuffer.DEFAULT_CAPACITY);
+    // shared by appenders of BEGIN, COMMIT and ABORT records, exclusive
+    // for a checkpoint
+    private final ReentrantReadWriteLock xactionLock = new ReentrantReadWriteLock();
+    // serializes writing out the buffer and fsyncing it
+    private final ReentrantLock forceLock = new ReentrantLock();
+    // everything before durableOffset is on disk. written under forceLock
+    private volatile long durableOffset = 0;
+
+    // group commit state, protected by this
+    private boolean groupCommit = false;
+    private long maxDelayMicros;
+    private int maxBatchBytes;
+    private Thread flusher;
+    private final ArrayList<ForceRequest> forceRequests = new ArrayList<ForceRequest>();
+    int forceCount = 0; // number of fsyncs, for tests and benchmarks. protected by forceLock
+    // threads that redo and undo pages in recover(). protected by this
+    private int recoveryThreads = 1;
+
+    /** The body of a record, serialized before it is appended */
+    private static class RecordBody extends ByteArrayOutputStream {
+        long appendTo(LogBuffer buffer, int type, long tid, LogSegments segments)
+                throws IOException {
+            return buffer.append(type, tid, buf, count, segments);
+        }
+    }
 
-    long currentOffset = -1;
-    int totalRecords = 0; // for PatchTest //protected by this
+    /** A committer waiting for the log to become durable up to upTo */
+    private static class ForceRequest {
+        final long upTo;
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        ForceRequest(long upTo) {
+            this.upTo = upTo;
+        }
+    }
 
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // appends of BEGIN, COMMIT and ABORT records hold the read side of
+    // xactionLock while they change it
+    Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
 
     /** Constructor.
      Initialize and back the log file with the specified file.
@@ -104,8 +220,15 @@ public class LogFile {
      @param f The log file's name
      */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor, with segments of the given size. */
+    LogFile(File f, long segmentSize) throws IOException {
         this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        header = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
+        in = segments.new Reader();
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -123,19 +246,82 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
+        totalRecords.incrementAndGet();
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            synchronized (this) {
+                if (recoveryUndecided) {
+                    // nobody appends before the log is started over
+                    startOver();
+                    recoveryUndecided = false;
+                }
+            }
         }
     }
 
+    /** Throw away the old log and start an empty one. */
+    private void startOver() throws IOException {
+        // pages may still carry LSNs from the old log, so the new LSNs
+        // have to start past all of them. Two segments on, since the old
+        // log may still be preparing its next segment; that also keeps
+        // records away from offset 0, which is the LSN of a page that was
+        // never logged.
+        long last = 0;
+        synchronized (headerLock) {
+            if (header.length() >= HEADER_SIZE) {
+                header.seek(LONG_SIZE);
+                last = header.readLong() / segments.getSegmentSize();
+            }
+            TreeSet<Long> old = segments.list();
+            if (!old.isEmpty()) {
+                last = Math.max(last, old.last());
+            }
+            segments.deleteAll();
+            logStart = (last + 2) * segments.getSegmentSize();
+            writeHeader(NO_CHECKPOINT_ID, logStart);
+        }
+        resetOffsets(logStart);
+    }
+
+    /** Point the log file at a checkpoint and the oldest record, durably.
+     The caller holds headerLock. */
+    private void writeHeader(long checkpoint, long start) throws IOException {
+        header.seek(0);
+        header.writeLong(checkpoint);
+        header.writeLong(start);
+        header.getChannel().force(false);
+        headerCheckpoint = checkpoint;
+        headerStart = start;
+    }
+
+    /** Forget any buffered data; the log now ends at length. Nothing may
+     be appended meanwhile. */
+    private void resetOffsets(long length) {
+        forceLock.lock();
+        try {
+            buffer.reset(length);
+            durableOffset = length;
+            in.setLimit(length);
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    /** Write all records appended so far to the segments (no fsync), so
+     that the reader sees them.
+     @return the end of the last of them */
+    private long flushBuffer() throws IOException {
+        long end = buffer.drainTo(buffer.end(), segments);
+        in.setLimit(end);
+        return end;
+    }
+
+    /** @return the number of bytes in the records the log keeps */
+    public synchronized long getLogSize() {
+        return buffer.end() - logStart;
+    }
+
     public synchronized int getTotalRecords() {
-        return totalRecords;
+        return totalRecords.get();
     }
 
     /** Write an abort record to the log for the specified tid, force
@@ -155,12 +341,14 @@ public class LogFile {
                 rollback(tid);
 
                 preAppend();
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                xactionLock.readLock().lock();
+                try {
+                    buffer.append(ABORT_RECORD, tid.getId(), NO_BODY, 0, segments);
+                    tidToFirstLogRecord.remove(tid.getId());
+                } finally {
+                    xactionLock.readLock().unlock();
+                }
                 force();
-                tidToFirstLogRecord.remove(tid.getId());
             }
         }
     }
@@ -170,16 +358,19 @@ public class LogFile {
 
      @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        long lsn;
+        xactionLock.readLock().lock();
+        try {
+            lsn = buffer.append(COMMIT_RECORD, tid.getId(), NO_BODY, 0, segments);
+            tidToFirstLogRecord.remove(tid.getId());
+        } finally {
+            xactionLock.readLock().unlock();
+        }
+        // only our own record has to be durable, not those appended since
+        force(lsn + LogBuffer.recordSize(0));
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -190,70 +381,197 @@ public class LogFile {
 
      @see simpledb.Page#getBeforeImage
      */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
             throws IOException  {
-        preAppend();
-        long begin = raf.getFilePointer();
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        logWrite(tid, before, after, false);
+    }
+
+    /** Write an update record to disk for the specified tid and page.
+     If delta is set, and at most half of the page changed, only the
+     changed bytes are logged (a DELTA record); otherwise both images are
+     (an UPDATE record).
+     @param tid The transaction performing the write
+     @param before The before image of the page
+     @param after The after image of the page
+     @param delta true if before is the page as the last record logged for
+       it left it, so that the record can be redone on top of that one
+     */
+    public void logWrite(TransactionId tid, Page before, Page after,
+                         boolean delta)
+            throws IOException  {
+        byte[] afterData = after.getPageData();
+        logWrite(tid, before.getPageData(), after, afterData, 0, afterData.length, delta);
+    }
+
+    /** Write an update record to disk for the specified tid and page,
+     against the before image the page keeps (see Page.getBeforeImage()).
+     A HeapFile page writes its bytes into a per-thread array and hands out
+     its before image as bytes, so neither image is copied or parsed, and
+     only the bytes it changed are compared for a delta.
+     @see #logWrite(TransactionId, Page, Page, boolean)
+     */
+    public void logWrite(TransactionId tid, Page after, boolean delta)
+            throws IOException  {
+        if (after instanceof HeapFile.TuplePage) {
+            HeapFile.TuplePage p = (HeapFile.TuplePage) after;
+            byte[] before = p.getBeforeImageData();
+            byte[] afterData = PagedFile.scratch(before.length);
+            p.writePageData(ByteBuffer.wrap(afterData, 0, before.length));
+            int[] dirty = p.getDirtyRange();
+            logWrite(tid, before, after, afterData, dirty[0], dirty[1], delta);
+        } else {
+            logWrite(tid, after.getBeforeImage(), after, delta);
+        }
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** afterData holds the page bytes of after, and may be longer than the
+     page, which is before.length bytes; they only differ from before in
+     [from, to) */
+    private void logWrite(TransactionId tid, byte[] before, Page after,
+                          byte[] afterData, int from, int to, boolean delta)
+            throws IOException  {
+        // serialized outside the buffer, so that the space reserved in it
+        // is filled right away
+        RecordBody images = new RecordBody();
+        DataOutputStream imagesOut = new DataOutputStream(images);
+        int type = UPDATE_RECORD;
+        if (delta) {
+            PageDelta d = PageDelta.diff(before, afterData, from, to);
+            if (d.changedBytes() * 2 <= d.getPageSize()) {
+                type = DELTA_RECORD;
+                imagesOut.writeUTF(after.getClass().getName());
+                writePageId(imagesOut, after.getId());
+                d.writeTo(imagesOut);
+            }
+        }
+        if (type == UPDATE_RECORD) {
+            writePageData(imagesOut, after, before, before.length);
+            writePageData(imagesOut, after, afterData, before.length);
+        }
+
+        preAppend();
+        long lsn = images.appendTo(buffer, type, tid.getId(), segments);
+        after.setLSN(lsn);
+        Debug.log("WRITE OFFSET = " + lsn);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        byte[] pageData = p.getPageData();
+        writePageData(raf, p, pageData, pageData.length);
+   }
+
+    /** Write the first len bytes of pageData as the page data of p */
+    void writePageData(DataOutput raf, Page p, byte[] pageData, int len) throws IOException {
         PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
 
         raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        writePageId(raf, pid);
 
+        raf.writeInt(len);
+        raf.write(pageData, 0, len);
+    }
+
+    void writePageId(DataOutput raf, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        raf.writeUTF(pid.getClass().getName());
         raf.writeInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
             raf.writeInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-   }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    }
 
-        String pageClassName = raf.readUTF();
+    PageId readPageId(DataInput raf) throws IOException {
         String idClassName = raf.readUTF();
-
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
             Object[] idArgs = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
                 idArgs[i] = new Integer(raf.readInt());
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException e){
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    Page readPageData(DataInput raf) throws IOException {
+        String pageClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+
+        int pageSize = raf.readInt();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData);
+        return newPage(pageClassName, pid, pageData);
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData);
+    /** The contents of a DELTA record */
+    private static class DeltaRecord {
+        final String pageClassName;
+        final PageId pid;
+        final PageDelta delta;
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        DeltaRecord(String pageClassName, PageId pid, PageDelta delta) {
+            this.pageClassName = pageClassName;
+            this.pid = pid;
+            this.delta = delta;
+        }
+    }
+
+    private DeltaRecord readDeltaRecord(DataInput raf) throws IOException {
+        String pageClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+        return new DeltaRecord(pageClassName, pid, PageDelta.readFrom(raf));
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    private void writeDeltaRecord(DataOutput out, DeltaRecord rec) throws IOException {
+        out.writeUTF(rec.pageClassName);
+        writePageId(out, rec.pid);
+        rec.delta.writeTo(out);
+    }
+
+    /**
+     Redo or undo a DELTA record on a page.
+     @param onDisk the page as it is on disk, or null if it is not there yet
+     @return the page after the change
+     */
+    private Page applyDelta(DeltaRecord rec, Page onDisk, boolean redo) throws IOException {
+        byte[] data = onDisk == null ? new byte[rec.delta.getPageSize()] : onDisk.getPageData();
+        data = redo ? rec.delta.redo(data) : rec.delta.undo(data);
+        return newPage(rec.pageClassName, rec.pid, data);
+    }
+
+    /** @return a new page of the named class with the given contents */
+    Page newPage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
+
+            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+
+            Object[] pageArgs;
+            if (pageConsts[0].getParameterCount() == 3) {
+                // B+ tree pages also need the key field of their file
+                BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                pageArgs = new Object[] { pid, pageData, f.keyField() };
+            } else {
+                pageArgs = new Object[] { pid, pageData };
+            }
+
+            return (Page)pageConsts[0].newInstance(pageArgs);
 
         } catch (ClassNotFoundException e){
             e.printStackTrace();
@@ -268,15 +586,13 @@ public class LogFile {
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
      @param tid The transaction that is beginning
 
      */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
             throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -284,44 +600,71 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn;
+        xactionLock.readLock().lock();
+        try {
+            lsn = buffer.append(BEGIN_RECORD, tid.getId(), NO_BODY, 0, segments);
+            tidToFirstLogRecord.put(tid.getId(), lsn);
+        } finally {
+            xactionLock.readLock().unlock();
+        }
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN OFFSET = " + lsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+     is fuzzy: it records the running transactions and the dirty page
+     table of the buffer pool, but writes no pages, so it holds up the
+     buffer pool only for as long as it takes to copy the table and
+     append the record; forcing the record and pointing the header at it
+     happen after both monitors are released.  Pages reach the disk
+     through the background writer, and recovery redoes the log from the
+     oldest recLSN in the table.
+     */
     public void logCheckpoint() throws IOException {
+        long startCpOffset, endCpOffset;
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1);
-
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                RecordBody body = new RecordBody();
+                DataOutputStream out = new DataOutputStream(body);
+                // no transaction begins or ends while the record is
+                // appended, so that it lists those that are running
+                xactionLock.writeLock().lock();
+                try {
+                    Map<Long, Long> running = new HashMap<Long, Long>(tidToFirstLogRecord);
+                    // taken together with appending the record, so that every
+                    // update logged before it is on disk or in the table
+                    Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+
+                    out.writeInt(running.size());
+                    for (Map.Entry<Long, Long> e : running.entrySet()) {
+                        Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                        out.writeLong(e.getKey());
+                        out.writeLong(e.getValue());
+                    }
+
+                    out.writeInt(dirtyPages.size());
+                    for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                        writePageId(out, e.getKey());
+                        out.writeLong(e.getValue());
+                    }
+
+                    startCpOffset = body.appendTo(buffer, CHECKPOINT_RECORD, -1, segments);
+                    endCpOffset = buffer.end();
+                } finally {
+                    xactionLock.writeLock().unlock();
                 }
+            }
+        }
 
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+        // the record must be durable before we point at it
+        force(endCpOffset);
+        synchronized (headerLock) {
+            // a checkpoint that started later may have got here first
+            if (startCpOffset > headerCheckpoint) {
+                writeHeader(startCpOffset, headerStart);
             }
         }
 
@@ -329,94 +672,42 @@ public class LogFile {
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-     consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+     consumption.  Nothing is copied: the log file is pointed past the
+     records that the last checkpoint no longer needs, and the segments
+     before them are deleted in the background, so committers are only
+     held up while the checkpoint record is read.
+     */
+    public void logTruncate() throws IOException {
+        long minLogRecord;
+        synchronized (this) {
+            preAppend();
+            synchronized (headerLock) {
+                long cpLoc = headerCheckpoint;
+                if (cpLoc == NO_CHECKPOINT_ID) {
+                    return;
                 }
-            }
-        }
-
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                    case UPDATE_RECORD : {
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    }
-                    case CHECKPOINT_RECORD : {
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    }
-                    case BEGIN_RECORD : {
-                        tidToFirstLogRecord.put(record_tid, newStart);
-                        break;
+                // the checkpoint record is durable, so it is in the segments
+                in.setLimit(buffer.drained());
+
+                minLogRecord = cpLoc;
+                Map<Long, Long> outstanding = new HashMap<Long, Long>();
+                Map<PageId, Long> dirtyPages = new HashMap<PageId, Long>();
+                readCheckpoint(cpLoc, outstanding, dirtyPages);
+                for (long firstLogRecord : outstanding.values()) {
+                    if (firstLogRecord < minLogRecord) {
+                        minLogRecord = firstLogRecord;
                     }
                 }
-
-                logNew.writeLong(newStart);
-                raf.readLong();
-            } catch (EOFException e) {
-                break;
+                // redo may start before the checkpoint
+                minLogRecord = Math.min(minLogRecord, redoOffset(dirtyPages));
+                if (minLogRecord <= logStart) {
+                    return;
+                }
+                logStart = minLogRecord;
+                writeHeader(cpLoc, logStart);
             }
         }
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
+        segments.deleteBefore(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -440,206 +731,651 @@ public class LogFile {
     }
 
     private void rollbackInternal(long tid)throws NoSuchElementException, IOException {
-        Long begin = tidToFirstLogRecord.get(tid);
+        rollbackInternal(Collections.singleton(tid));
+    }
 
-        raf.seek(raf.length() - LONG_SIZE);
-        long logPtr = raf.readLong();
+    /** Undo the updates of all of tids in one backward pass over the log,
+     so that the before image of the oldest update of each page is the
+     one that ends up on disk.
+     */
+    private void rollbackInternal(Set<Long> tids)throws NoSuchElementException, IOException {
+        rollbackInternal(tids, new PageWorkers(1));
+    }
+
+    /** Undo the updates of all of tids, handing the page writes to
+     workers. The caller has to wait for them to finish.
+     */
+    private void rollbackInternal(Set<Long> tids, PageWorkers workers)
+            throws NoSuchElementException, IOException {
+        if (tids.isEmpty()) {
+            return;
+        }
+        long begin = Long.MAX_VALUE;
+        for (Long tid : tids) {
+            begin = Math.min(begin, tidToFirstLogRecord.get(tid));
+        }
+        long end = flushBuffer();
+
+        in.seek(end - LONG_SIZE);
+        long logPtr = in.readLong();
         while (begin < logPtr) {
             // backword scanning
 
-            raf.seek(logPtr);
-            int type = raf.readInt();
+            in.seek(logPtr);
+            int type = in.readInt();
             long record_tid;
             switch (type) {
                 case UPDATE_RECORD:
-                    record_tid = raf.readLong();
-                    if (record_tid == tid) {
-                        Page before = this.readPageData(raf);
-                        Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
+                    record_tid = in.readLong();
+                    if (tids.contains(record_tid)) {
+                        final Page before = this.readPageData(in);
                         Database.getBufferPool().discardPage(before.getId());
-                        break;
+                        workers.submit(before.getId(), () ->
+                                Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before));
                     }
+                    break;
+                case DELTA_RECORD:
+                    record_tid = in.readLong();
+                    if (tids.contains(record_tid)) {
+                        // the page on disk has this update and no later
+                        // one of another transaction, so it can be undone
+                        final DeltaRecord rec = readDeltaRecord(in);
+                        Database.getBufferPool().discardPage(rec.pid);
+                        workers.submit(rec.pid, () -> {
+                            DbFile file = Database.getCatalog().getDatabaseFile(rec.pid.getTableId());
+                            file.writePage(applyDelta(rec, readDiskPage(file, rec.pid), false));
+                        });
+                    }
+                    break;
                 default:
                     break;
             }
 
-            raf.seek(logPtr - LONG_SIZE);
-            logPtr = raf.readLong();
+            in.seek(logPtr - LONG_SIZE);
+            logPtr = in.readLong();
+        }
+    }
+
+    /**
+     Read the checkpoint record at cpOffset, leaving the file positioned
+     after its contents.
+
+     @param activeXactions filled with the first log record of each
+       transaction that was running, if not null
+     @param dirtyPages filled with the recLSN of each dirty page, if not
+       null
+     */
+    private void readCheckpoint(long cpOffset, Map<Long, Long> activeXactions,
+                                Map<PageId, Long> dirtyPages) throws IOException {
+        in.seek(cpOffset);
+        int cpType = in.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
+
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+
+        int numOutstanding = in.readInt();
+        for (int i = 0; i < numOutstanding; i++) {
+            long tid = in.readLong();
+            long firstLogRecord = in.readLong();
+            if (activeXactions != null) {
+                activeXactions.put(tid, firstLogRecord);
+            }
+        }
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            PageId pid = readPageId(in);
+            long recLSN = in.readLong();
+            if (dirtyPages != null) {
+                dirtyPages.put(pid, recLSN);
+            }
+        }
+    }
+
+    /**
+     Find the end of the log: the offset after the last complete record
+     from start on.  A record is complete if it parses and ends with its
+     own offset; the zeros of a preallocated segment and a record torn by
+     a crash do not.
+     */
+    private long findEnd(long start) throws IOException {
+        TreeSet<Long> existing = segments.list();
+        if (existing.isEmpty()) {
+            return start;
+        }
+        in.setLimit((existing.last() + 1) * segments.getSegmentSize());
+        long end = start;
+        try {
+            while (true) {
+                in.seek(end);
+                int type = in.readInt();
+                in.readLong(); // tid
+                switch (type) {
+                    case UPDATE_RECORD:
+                        skipPageData(in);
+                        skipPageData(in);
+                        break;
+                    case DELTA_RECORD:
+                        in.readUTF();
+                        skipPageId(in);
+                        PageDelta.readFrom(in);
+                        break;
+                    case CHECKPOINT_RECORD: {
+                        int numOutstanding = in.readInt();
+                        skipCount(in, numOutstanding, 2 * LONG_SIZE);
+                        int numDirty = in.readInt();
+                        if (numDirty < 0) {
+                            throw new StreamCorruptedException();
+                        }
+                        while (numDirty-- > 0) {
+                            skipPageId(in);
+                            in.readLong();
+                        }
+                        break;
+                    }
+                    case ABORT_RECORD:
+                    case COMMIT_RECORD:
+                    case BEGIN_RECORD:
+                        break;
+                    default:
+                        return end;
+                }
+                if (in.readLong() != end) {
+                    return end;
+                }
+                end = in.getFilePointer();
+            }
+        } catch (EOFException | FileNotFoundException | StreamCorruptedException e) {
+            return end;
+        }
+    }
+
+    private void skipPageId(DataInput raf) throws IOException {
+        raf.readUTF();
+        skipCount(raf, raf.readInt(), INT_SIZE);
+    }
+
+    private void skipPageData(DataInput raf) throws IOException {
+        raf.readUTF();
+        skipPageId(raf);
+        skipCount(raf, raf.readInt(), 1);
+    }
+
+    /** Skip count items of size bytes, which must all be there */
+    private void skipCount(DataInput raf, int count, int size) throws IOException {
+        if (count < 0) {
+            throw new StreamCorruptedException();
+        }
+        long len = (long) count * size;
+        while (len > 0) {
+            int n = raf.skipBytes((int) Math.min(len, Integer.MAX_VALUE));
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            len -= n;
+        }
+    }
+
+    /** @return the offset of the oldest record that may have to be redone
+     for one of dirtyPages, or Long.MAX_VALUE if there are none */
+    private long redoOffset(Map<PageId, Long> dirtyPages) {
+        long offset = Long.MAX_VALUE;
+        for (long recLSN : dirtyPages.values()) {
+            // a recLSN taken before the log was started over or truncated
+            // lies before all of its records
+            offset = Math.min(offset, Math.max(recLSN, logStart));
         }
-        // restore
-        raf.seek(currentOffset);
+        return offset;
+    }
+
+    /** @return a lower bound on the LSN of the next record appended */
+    long nextLSN() {
+        return buffer.end();
+    }
+
+    /** @return true if tid has begun and has not committed or aborted */
+    boolean isLive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
     }
 
     /** Shutdown the logging system, writing out whatever state
      is necessary so that start up can happen quickly (without
      extensive recovery.)
      */
-    public synchronized void shutdown() {
-        try {
-            logCheckpoint();
-            raf.close();
-        } catch (IOException e) {
-            System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
-            e.printStackTrace();
+    public void shutdown() {
+        synchronized (Database.getBufferPool()) {
+            synchronized (this) {
+                try {
+                    // a checkpoint writes no pages, so write them here to
+                    // leave recovery nothing to redo
+                    Database.getBufferPool().flushAllPages();
+                    logCheckpoint();
+                    disableGroupCommit();
+                    forceNow();
+                    segments.close();
+                    synchronized (headerLock) {
+                        header.close();
+                    }
+                } catch (IOException e) {
+                    System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
     /** Recover the database system by ensuring that the updates of
      committed transactions are installed and that the
      updates of uncommitted transactions are not installed.
+     <p>
+     The buffer pool may have written uncommitted pages (STEAL) and not
+     written committed ones (NO FORCE), so recovery repeats history: it
+     redoes the log from the oldest recLSN in the dirty page table of the
+     last checkpoint, then undoes the transactions that never finished and
+     logs an abort for each of them, so that a later recovery does not undo
+     them again on top of newer committed updates.  Updates of transactions
+     that aborted are not redone, since their rollback is already on disk.
+     <p>
+     The pages are redone and undone on setRecoveryThreads() threads,
+     partitioned by page (see PageWorkers).
      */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 this.recoveryUndecided = false;
-                // some code goes here
-                currentOffset = raf.length();
-                if (currentOffset - LONG_SIZE > 0) {
-                    raf.seek(currentOffset - LONG_SIZE);
-                    long iter = raf.readLong();
-
-                    raf.seek(0);
-                    long lastCheckPoint = raf.readLong();
-                    if (lastCheckPoint == -1L) {
-
-                        lastCheckPoint = LONG_SIZE;
+                if (header.length() < HEADER_SIZE) {
+                    // there is no log
+                    startOver();
+                    return;
+                }
+                long lastCheckPoint;
+                synchronized (headerLock) {
+                    header.seek(0);
+                    lastCheckPoint = header.readLong();
+                    logStart = header.readLong();
+                    headerCheckpoint = lastCheckPoint;
+                    headerStart = logStart;
+                }
+                long end = findEnd(logStart);
+                // a torn record may follow; it must not look like one
+                // once records are appended in front of it
+                segments.zeroFrom(end);
+                resetOffsets(end);
+                if (end > logStart) {
+
+                    // analysis
+                    // the checkpoint gives the running transactions and
+                    // the dirty pages, and so where redo has to start
+                    Map<Long, Long> firstRecord = new HashMap<>();
+                    Map<PageId, Long> dirtyPages = new HashMap<>();
+                    long redoStart = logStart;
+                    if (lastCheckPoint != NO_CHECKPOINT_ID) {
+                        readCheckpoint(lastCheckPoint, firstRecord, dirtyPages);
+                        redoStart = Math.min(lastCheckPoint, redoOffset(dirtyPages));
                     }
 
-                    Set<Long> transactions = new HashSet<>();
-                    Set<Long> commits = new HashSet<>();
-                    // find check point
-                    // analyse stage
-
-                    // backward start from last record
-                    while (iter >= lastCheckPoint) {
-                        raf.seek(iter);
-                        int type = raf.readInt();
-                        long record_tid;
+                    // backward from the last record: which transactions
+                    // began and which finished
+                    Set<Long> finished = new HashSet<>();
+                    Set<Long> aborted = new HashSet<>();
+                    in.seek(end - LONG_SIZE);
+                    long iter = in.readLong();
+                    while (iter >= redoStart) {
+                        in.seek(iter);
+                        int type = in.readInt();
+                        long record_tid = in.readLong();
                         switch (type) {
                             case UPDATE_RECORD:
+                            case DELTA_RECORD:
+                            case CHECKPOINT_RECORD:
                                 break;
                             case ABORT_RECORD:
+                                aborted.add(record_tid);
+                                finished.add(record_tid);
                                 break;
                             case COMMIT_RECORD:
-                                record_tid = raf.readLong();
-                                commits.add(record_tid);
+                                finished.add(record_tid);
                                 break;
                             case BEGIN_RECORD:
-                                record_tid = raf.readLong();
-                                transactions.add(record_tid);
-                                break;
-                            case CHECKPOINT_RECORD:
-                                // checkPoint = iter;
-                                assert lastCheckPoint == iter;
-                                // format
-                                raf.seek(raf.getFilePointer() + LONG_SIZE);
-
-                                int numActiveTransactions = raf.readInt();
-                                for (int i = 0; i < numActiveTransactions; ++i) {
-                                    // add active transactions
-                                    record_tid = raf.readLong();
-                                    long first_pos = raf.readLong();
-                                    transactions.add(record_tid);
-                                    tidToFirstLogRecord.put(record_tid, first_pos);
-                                }
+                                firstRecord.put(record_tid, iter);
                                 break;
                             default:
-                                System.out.print(iter);
-                                System.out.println("myType: " + type);
-                                throw new IOException("analysis");
+                                throw new IOException("analysis: bad record type " + type + " at " + iter);
                         }
-                        // assume log are correct
-                        if (iter > LONG_SIZE) {
-                            raf.seek(iter - LONG_SIZE);
-                            iter = raf.readLong();
-                        } else {
-                            iter = -1;
+                        if (iter == logStart) {
+                            break;
+                        }
+                        in.seek(iter - LONG_SIZE);
+                        iter = in.readLong();
+                    }
+
+                    // the transactions that never finished
+                    Set<Long> losers = new HashSet<>();
+                    tidToFirstLogRecord.clear();
+                    for (Map.Entry<Long, Long> e : firstRecord.entrySet()) {
+                        if (!finished.contains(e.getKey())) {
+                            losers.add(e.getKey());
+                            tidToFirstLogRecord.put(e.getKey(), e.getValue());
                         }
                     }
 
                     // redo
-                    // forward direction start from last checkpoint
-                    iter = lastCheckPoint;
-                    while (iter < currentOffset) {
-                        // System.out.println(iter);
-                        raf.seek(iter);
-                        int type = raf.readInt();
-                        long record_tid;
-                        switch (type) {
-                            case UPDATE_RECORD:
-                                // redo
-                                // raf.readInt();
-                                raf.seek(raf.getFilePointer() + LONG_SIZE);
-                                Page before = this.readPageData(raf);
-                                Page after = this.readPageData(raf);
-                                Database.getCatalog().getDatabaseFile(after.getId().getTableId()).writePage(after);
-                                Database.getBufferPool().discardPage(after.getId());
-
-                                iter = raf.getFilePointer();
-                                break;
-                            case ABORT_RECORD:
-                                // redo
-                                record_tid = raf.readLong();
-                                if (tidToFirstLogRecord.get(record_tid) == null) {
-                                    throw new IOException("ABORT: transaction " + record_tid + "is not live");
+                    // forward from redoStart; before the checkpoint only
+                    // the dirty pages can be missing an update. This thread
+                    // parses the records and decides which to redo, the
+                    // workers read and write the pages
+                    PageWorkers workers = new PageWorkers(recoveryThreads);
+                    try {
+                        // LSNs of the pages on disk, read once per page
+                        Map<PageId, Long> diskLSN = new ConcurrentHashMap<>();
+                        iter = redoStart;
+                        while (iter < end) {
+                            in.seek(iter);
+                            int type = in.readInt();
+                            long record_tid = in.readLong();
+                            switch (type) {
+                                case UPDATE_RECORD: {
+                                    final long lsn = iter;
+                                    this.readPageData(in); // before image
+                                    final Page after = this.readPageData(in);
+                                    boolean redo = !aborted.contains(record_tid);
+                                    if (redo && iter < lastCheckPoint) {
+                                        Long recLSN = dirtyPages.get(after.getId());
+                                        redo = recLSN != null && recLSN <= lsn;
+                                    }
+                                    if (redo) {
+                                        Database.getBufferPool().discardPage(after.getId());
+                                        workers.submit(after.getId(), () -> redoUpdate(after, lsn, diskLSN));
+                                    }
+                                    break;
                                 }
+                                case DELTA_RECORD: {
+                                    final long lsn = iter;
+                                    final DeltaRecord rec = readDeltaRecord(in);
+                                    boolean redo = !aborted.contains(record_tid);
+                                    if (redo && iter < lastCheckPoint) {
+                                        Long recLSN = dirtyPages.get(rec.pid);
+                                        redo = recLSN != null && recLSN <= lsn;
+                                    }
+                                    if (redo) {
+                                        Database.getBufferPool().discardPage(rec.pid);
+                                        workers.submit(rec.pid, () -> redoDelta(rec, lsn, diskLSN));
+                                    }
+                                    break;
+                                }
+                                case CHECKPOINT_RECORD:
+                                    readCheckpoint(iter, null, null);
+                                    break;
+                                default:
+                                    // ABORT, COMMIT and BEGIN have no contents
+                                    break;
+                            }
+                            iter = in.getFilePointer() + LONG_SIZE;
+                        }
 
-                                iter = raf.getFilePointer();
+                        // undo, backward; the undo of a page queues behind
+                        // its redo
+                        rollbackInternal(losers, workers);
+                        workers.finish();
+                    } finally {
+                        workers.shutdown();
+                    }
+                    for (Long tid : losers) {
+                        buffer.append(ABORT_RECORD, tid, NO_BODY, 0, segments);
+                        tidToFirstLogRecord.remove(tid);
+                    }
+                    if (!losers.isEmpty()) {
+                        force();
+                    }
+                }
+            }
+        }
+    }
 
+    /** Redo an UPDATE record, unless the page on disk already has it */
+    private void redoUpdate(Page after, long lsn, Map<PageId, Long> diskLSN) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(after.getId().getTableId());
+        Long pageLSN = diskLSN.get(after.getId());
+        if (pageLSN == null) {
+            pageLSN = readPageLSN(file, after.getId());
+        }
+        if (pageLSN < lsn) {
+            after.setLSN(lsn);
+            file.writePage(after);
+            pageLSN = lsn;
+        }
+        diskLSN.put(after.getId(), pageLSN);
+    }
 
-                                rollbackInternal(record_tid);
-                                transactions.remove(record_tid);
-                                break;
-                            case COMMIT_RECORD:
-                                // nothing;
-                                record_tid = raf.readLong();
-                                // raf.seek(raf.getFilePointer() + LONG_SIZE);
-                                tidToFirstLogRecord.remove(record_tid);
-                                iter = raf.getFilePointer();
-                                break;
-                            case BEGIN_RECORD:
-                                // nothing;
-                                record_tid = raf.readLong();
-                                tidToFirstLogRecord.put(record_tid, iter);
-                                iter = raf.getFilePointer();
+    /** Redo a DELTA record, unless the page on disk already has it */
+    private void redoDelta(DeltaRecord rec, long lsn, Map<PageId, Long> diskLSN) throws IOException {
+        Long pageLSN = diskLSN.get(rec.pid);
+        if (pageLSN != null && pageLSN >= lsn) {
+            return;
+        }
+        // the delta applies to the page as the records before it left it
+        DbFile file = Database.getCatalog().getDatabaseFile(rec.pid.getTableId());
+        Page onDisk = readDiskPage(file, rec.pid);
+        pageLSN = onDisk == null ? 0 : onDisk.getLSN();
+        if (pageLSN < lsn) {
+            Page after = applyDelta(rec, onDisk, true);
+            after.setLSN(lsn);
+            file.writePage(after);
+            pageLSN = lsn;
+        }
+        diskLSN.put(rec.pid, pageLSN);
+    }
 
-                                break;
-                            case CHECKPOINT_RECORD:
-                                // do nothing
-                                assert lastCheckPoint == iter;
+    /**
+     Set the number of threads that recover() redoes and undoes pages on.
+     The log is still read by a single thread, which hands each record to
+     the thread of its page, so the records of a page are applied in log
+     order.  1, the default, applies them in the reading thread.
+     */
+    public synchronized void setRecoveryThreads(int n) {
+        recoveryThreads = Math.max(1, n);
+    }
 
-                                raf.seek(raf.getFilePointer() + LONG_SIZE);
+    /** @return a page as it is on disk, null if it is not there */
+    private Page readDiskPage(DbFile file, PageId pid) {
+        try {
+            return file.readPage(pid);
+        } catch (IllegalArgumentException e) {
+            // past the end of the file
+            return null;
+        }
+    }
 
-                                int numActiveTransactions = raf.readInt();
-                                iter = raf.getFilePointer() + numActiveTransactions * LONG_SIZE * 2;
-                                break;
-                            default:
-                                System.out.println("type: " + type);
-                                throw new IOException("analysis");
-                        }
+    /** @return the LSN of a page as it is on disk, 0 if it is not there */
+    private long readPageLSN(DbFile file, PageId pid) {
+        Page p = readDiskPage(file, pid);
+        return p == null ? 0 : p.getLSN();
+    }
 
-                        iter += LONG_SIZE;
-                    }
+    /** Print out a human readable represenation of the log */
+    public void print() throws IOException {
+        // some code goes here
+    }
 
-                    // undo
-                    for (Long tid : transactions) {
-                        if (!commits.contains(tid)) {
-                            assert tidToFirstLogRecord.containsKey(tid);
-                            rollbackInternal(tid);
-                        }
-                    }
+    /**
+     Make every log record appended so far durable.  In group-commit mode
+     the caller blocks until the flusher thread has included its records
+     in a batch, unless it holds the LogFile monitor, in which case the
+     log is forced directly.
+     */
+    public void force() throws IOException {
+        force(buffer.end());
+    }
+
+    /** Make the log durable up to offset upTo, which is the end of a
+     record that has been appended.  See force(). */
+    void force(long upTo) throws IOException {
+        if (durableOffset >= upTo) {
+            return;
+        }
+        if (Thread.holdsLock(this)) {
+            // the flusher needs the monitor, so waiting for it would deadlock
+            forceTo(upTo);
+            return;
+        }
+        ForceRequest req;
+        synchronized (this) {
+            if (!groupCommit) {
+                req = null;
+            } else {
+                req = new ForceRequest(upTo);
+                forceRequests.add(req);
+                if (forceRequests.size() == 1 || buffer.end() - durableOffset >= maxBatchBytes) {
+                    notifyAll();
                 }
             }
         }
+        if (req == null) {
+            forceTo(upTo);
+            return;
+        }
+        try {
+            req.done.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while waiting for group commit", e);
+        } catch (ExecutionException e) {
+            throw new IOException("group commit failed", e.getCause());
+        }
     }
 
-    /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        // some code goes here
+    /**
+     Write out the buffer and fsync it in the calling thread, unless
+     another thread has made the log durable up to upTo in the meantime.
+     Everything that is filled when the buffer is written out goes along,
+     so committers that wait for the lock usually find their records
+     durable already.
+     */
+    private void forceTo(long upTo) throws IOException {
+        forceLock.lock();
+        try {
+            upTo = Math.min(upTo, buffer.end());
+            if (durableOffset >= upTo) {
+                return;
+            }
+            long drained = buffer.drainTo(upTo, segments);
+            segments.force();
+            forceCount++;
+            durableOffset = drained;
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    /** Make everything appended so far durable in the calling thread,
+     completing the group-commit requests it covers. */
+    private synchronized void forceNow() throws IOException {
+        forceTo(buffer.end());
+        for (Iterator<ForceRequest> it = forceRequests.iterator(); it.hasNext(); ) {
+            ForceRequest r = it.next();
+            if (r.upTo <= durableOffset) {
+                r.done.complete(null);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     Switch to group commit.  Committers enqueue a request in force() and a
+     background flusher thread makes all pending records durable with a
+     single write and fsync.
+
+     @param maxDelayMicros how long the flusher waits for more committers
+       after the first request of a batch arrives
+     @param maxBatchBytes flush without waiting any longer once this many
+       bytes of log are pending
+     */
+    public synchronized void enableGroupCommit(long maxDelayMicros, int maxBatchBytes) {
+        this.maxDelayMicros = maxDelayMicros;
+        this.maxBatchBytes = maxBatchBytes;
+        if (groupCommit) {
+            return;
+        }
+        groupCommit = true;
+        flusher = new Thread(this::flusherLoop, "LogFile-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** Go back to forcing the log in the committing thread. */
+    public void disableGroupCommit() {
+        Thread t;
+        synchronized (this) {
+            if (!groupCommit) {
+                return;
+            }
+            groupCommit = false;
+            t = flusher;
+            flusher = null;
+            notifyAll();
+        }
+        if (t != Thread.currentThread() && !Thread.holdsLock(this)) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized boolean isGroupCommitEnabled() {
+        return groupCommit;
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    private void flusherLoop() {
+        while (true) {
+            ArrayList<ForceRequest> batch;
+            synchronized (this) {
+                try {
+                    while (groupCommit && forceRequests.isEmpty()) {
+                        wait();
+                    }
+                    // give other committers a chance to join the batch
+                    long deadline = System.nanoTime() + maxDelayMicros * 1000;
+                    while (groupCommit && buffer.end() - durableOffset < maxBatchBytes) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) {
+                            break;
+                        }
+                        wait(left / 1000000, (int) (left % 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    // fall through and flush what we have
+                }
+                if (forceRequests.isEmpty()) {
+                    if (!groupCommit) {
+                        return;
+                    }
+                    // served by a direct force in the meantime
+                    continue;
+                }
+                batch = new ArrayList<ForceRequest>(forceRequests);
+                forceRequests.clear();
+            }
+            // outside the monitor, so that committers can append and
+            // queue up for the next batch while this one is written
+            try {
+                forceTo(buffer.end());
+            } catch (IOException e) {
+                fail(batch, e);
+                continue;
+            }
+            for (ForceRequest r : batch) {
+                r.done.complete(null);
+            }
+        }
+    }
+
+    private static void fail(List<ForceRequest> batch, IOException e) {
+        for (ForceRequest r : batch) {
+            r.done.completeExceptionally(e);
+        }
     }
 
 }
@@ -0,0 +1,417 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files
+ * next to the log file, named after it with the number of the segment
+ * appended. Segment n holds the bytes at log offsets n * segmentSize up to
+ * (n + 1) * segmentSize, so an offset, and so an LSN, never changes for as
+ * long as the log keeps the record.
+ * <p>
+ * Segments are preallocated: a background thread creates the next segment
+ * zero-filled and synced while the current one is being appended to, so
+ * appends only overwrite blocks of a file that already has its final
+ * size, and forcing them does not have to write file metadata. Bytes past
+ * the end of the log read as zeros, which is no valid record type.
+ * <p>
+ * Truncating the log deletes the segments wholly before an offset, also
+ * in the background.
+ *
+ * @see LogFile
+ */
+class LogSegments {
+
+    static final long DEFAULT_SEGMENT_SIZE = 1 << 20;
+    // the size of the zero-filled buffer that segments are created with
+    private static final int FILL_CHUNK = 64 * 1024;
+
+    private static final ExecutorService background = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "log-segments");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+
+    // open segments by number. protected by this
+    private final TreeMap<Long, FileChannel> open = new TreeMap<Long, FileChannel>();
+    // segments written to since the last force. protected by this
+    private final HashSet<Long> unforced = new HashSet<Long>();
+    // segments before this one are deleted or about to be. protected by this
+    private long firstKept = 0;
+    private boolean closed = false;
+
+    /**
+     * @param log the log file; segments go in the same directory
+     * @param segmentSize the number of bytes in each segment
+     */
+    LogSegments(File log, long segmentSize) {
+        File abs = log.getAbsoluteFile();
+        this.dir = abs.getParentFile();
+        this.prefix = abs.getName() + ".";
+        this.segmentSize = segmentSize;
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    private File segmentFile(long n) {
+        return new File(dir, prefix + String.format("%012d", n));
+    }
+
+    /** @return the numbers of the segments on disk, in order */
+    synchronized TreeSet<Long> list() {
+        TreeSet<Long> segments = new TreeSet<Long>();
+        String[] names = dir.list();
+        if (names == null) {
+            return segments;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix)) {
+                try {
+                    segments.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        return segments;
+    }
+
+    /** Delete all segments, to start over with an empty log. */
+    synchronized void deleteAll() throws IOException {
+        closeAll();
+        for (long n : list()) {
+            Files.deleteIfExists(segmentFile(n).toPath());
+        }
+        // and whatever fill() left behind in a crash
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix) && name.endsWith(".tmp")) {
+                    Files.deleteIfExists(new File(dir, name).toPath());
+                }
+            }
+        }
+        firstKept = 0;
+    }
+
+    /**
+     * Reads the log sequentially from any offset up to a limit, through a
+     * buffer, so that parsing records field by field does not cost a
+     * system call per field.
+     */
+    class Reader extends DataInputStream {
+        Reader() {
+            super(new Input());
+        }
+
+        /** Position the reader at log offset pos */
+        void seek(long pos) {
+            ((Input) in).seek(pos);
+        }
+
+        /** @return the log offset of the next byte read */
+        long getFilePointer() {
+            return ((Input) in).pos;
+        }
+
+        /** Set the offset at which reads hit end of file, and drop the
+         buffer, since the log may have changed */
+        void setLimit(long limit) {
+            ((Input) in).setLimit(limit);
+        }
+    }
+
+    private class Input extends InputStream {
+        private final byte[] buf = new byte[FILL_CHUNK];
+        private long bufStart = 0;
+        private int bufLen = 0;
+        private long pos = 0;
+        private long limit = 0;
+
+        void seek(long pos) {
+            this.pos = pos;
+        }
+
+        void setLimit(long limit) {
+            this.limit = limit;
+            bufLen = 0;
+        }
+
+        /** @return false at the limit */
+        private boolean fill() throws IOException {
+            if (pos >= bufStart && pos < bufStart + bufLen) {
+                return true;
+            }
+            if (pos >= limit) {
+                return false;
+            }
+            int len = (int) Math.min(buf.length, limit - pos);
+            int n = LogSegments.this.read(pos, buf, 0, len);
+            if (n < 0) {
+                throw new FileNotFoundException("log segment of offset " + pos + " is gone");
+            }
+            bufStart = pos;
+            bufLen = n;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buf[(int) (pos++ - bufStart)] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int i = (int) (pos - bufStart);
+            int n = Math.min(len, bufLen - i);
+            System.arraycopy(buf, i, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, limit - pos));
+            pos += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Read up to len bytes at log offset pos, stopping at the end of a
+     * segment.
+     *
+     * @return the number of bytes read, -1 if the segment does not exist
+     */
+    int read(long pos, byte[] b, int off, int len) throws IOException {
+        long n = pos / segmentSize;
+        FileChannel ch = channel(n, false);
+        if (ch == null) {
+            return -1;
+        }
+        int inSegment = (int) Math.min(len, (n + 1) * segmentSize - pos);
+        ByteBuffer buf = ByteBuffer.wrap(b, off, inSegment);
+        long filePos = pos - n * segmentSize;
+        while (buf.hasRemaining()) {
+            int r = ch.read(buf, filePos + buf.position() - off);
+            if (r < 0) {
+                // a segment that was not filled in full
+                Arrays.fill(b, buf.position(), off + inSegment, (byte) 0);
+                break;
+            }
+        }
+        return inSegment;
+    }
+
+    /**
+     * Write len bytes of b at log offset pos, creating the segments they
+     * go to if the background thread has not done so yet.
+     */
+    void write(long pos, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long n = pos / segmentSize;
+            FileChannel ch = channel(n, true);
+            int inSegment = (int) Math.min(len, (n + 1) * segmentSize - pos);
+            ByteBuffer buf = ByteBuffer.wrap(b, off, inSegment);
+            long filePos = pos - n * segmentSize;
+            while (buf.hasRemaining()) {
+                ch.write(buf, filePos + buf.position() - off);
+            }
+            pos += inSegment;
+            off += inSegment;
+            len -= inSegment;
+        }
+    }
+
+    /** Overwrite the log with zeros from pos to the end of its segment. */
+    void zeroFrom(long pos) throws IOException {
+        long end = (pos / segmentSize + 1) * segmentSize;
+        byte[] zeros = new byte[FILL_CHUNK];
+        while (pos < end) {
+            int len = (int) Math.min(zeros.length, end - pos);
+            write(pos, zeros, 0, len);
+            pos += len;
+        }
+    }
+
+    /**
+     * Make everything written so far durable. Segments have their final
+     * size already, so only their data has to be synced.
+     */
+    void force() throws IOException {
+        ArrayList<FileChannel> toForce = new ArrayList<FileChannel>();
+        synchronized (this) {
+            for (long n : unforced) {
+                FileChannel ch = open.get(n);
+                if (ch != null) {
+                    toForce.add(ch);
+                }
+            }
+            unforced.clear();
+        }
+        for (FileChannel ch : toForce) {
+            ch.force(false);
+        }
+    }
+
+    /**
+     * Delete the segments that lie wholly before log offset pos, in the
+     * background.
+     */
+    void deleteBefore(long pos) {
+        final long keep = pos / segmentSize;
+        synchronized (this) {
+            if (keep <= firstKept) {
+                return;
+            }
+            firstKept = keep;
+            for (Iterator<Map.Entry<Long, FileChannel>> it = open.headMap(keep).entrySet().iterator();
+                 it.hasNext(); ) {
+                closeQuietly(it.next().getValue());
+                it.remove();
+            }
+        }
+        submit(() -> {
+            for (long n : list().headSet(keep)) {
+                Files.deleteIfExists(segmentFile(n).toPath());
+            }
+        });
+    }
+
+    /** Close all segments; the background work still queued is dropped. */
+    synchronized void close() {
+        closed = true;
+        closeAll();
+    }
+
+    private void closeAll() {
+        for (FileChannel ch : open.values()) {
+            closeQuietly(ch);
+        }
+        open.clear();
+        unforced.clear();
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            // nothing to lose, reads and writes went through already
+        }
+    }
+
+    private synchronized FileChannel channel(long n, boolean forWrite) throws IOException {
+        if (closed) {
+            throw new IOException("log is closed");
+        }
+        FileChannel ch = open.get(n);
+        if (ch == null || !ch.isOpen()) {
+            File f = segmentFile(n);
+            if (!f.exists()) {
+                if (!forWrite) {
+                    return null;
+                }
+                // the background thread did not get to it
+                install(n, fill());
+            }
+            ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            open.put(n, ch);
+            if (forWrite) {
+                // have the next one ready by the time this one is full
+                final long next = n + 1;
+                submit(() -> {
+                    File tmp = fill();
+                    synchronized (LogSegments.this) {
+                        if (!closed && next >= firstKept && !segmentFile(next).exists()) {
+                            install(next, tmp);
+                        } else {
+                            Files.deleteIfExists(tmp.toPath());
+                        }
+                    }
+                });
+            }
+        }
+        if (forWrite) {
+            unforced.add(n);
+        }
+        return ch;
+    }
+
+    /**
+     * @return a new zero-filled and synced file of the segment size, under
+     *   a temporary name
+     */
+    private File fill() throws IOException {
+        File tmp = Files.createTempFile(dir.toPath(), prefix, ".tmp").toFile();
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer zeros = ByteBuffer.allocate(FILL_CHUNK);
+            long pos = 0;
+            while (pos < segmentSize) {
+                zeros.clear();
+                zeros.limit((int) Math.min(FILL_CHUNK, segmentSize - pos));
+                pos += ch.write(zeros, pos);
+            }
+            ch.force(true);
+        }
+        return tmp;
+    }
+
+    /**
+     * Rename a file made by fill() into place as segment n, so that a
+     * segment file always has its full size. The caller holds the monitor
+     * and has checked that segment n does not exist.
+     */
+    private void install(long n, File tmp) throws IOException {
+        Files.move(tmp.toPath(), segmentFile(n).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDir();
+    }
+
+    private void syncDir() {
+        try (FileChannel d = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException e) {
+            // not supported everywhere; the segment is synced itself
+        }
+    }
+
+    /** Work for the background thread */
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    private void submit(final Task task) {
+        try {
+            background.execute(() -> {
+                try {
+                    task.run();
+                } catch (IOException e) {
+                    // best effort: a missing segment is created on first
+                    // write, an old one is deleted by the next truncation
+                    Debug.log("log segments: " + e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+}
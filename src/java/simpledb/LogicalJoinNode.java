@@ -23,6 +23,9 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The physical join the optimizer chose for this join (may be null) */
+    public JoinOptimizer.JoinAlgorithm algorithm;
+
     public LogicalJoinNode() {
     }
 
@@ -33,8 +33,9 @@ public class LogicalPlan {
     private boolean hasAgg = false;
     private String aggOp;
     private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
     private String query;
 //    private Query owner;
 
@@ -76,6 +77,19 @@ public class LogicalPlan {
         return tableMap.get(alias);
     }
     
+    /**
+     * @return true if a filter in the WHERE clause applies to the table
+     *   with the given alias
+     */
+    boolean isFiltered(String alias) {
+        for (LogicalFilterNode f : filters) {
+            if (f.tableAlias.equals(alias)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public HashMap<String,Integer> getTableAliasToIdMapping()
     {
         return this.tableMap;
@@ -203,16 +217,16 @@ public class LogicalPlan {
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  Fields are sorted on
+        in the order they are added, the first most significant.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAscs.addElement(asc);
         hasOrderBy = true;
     }
 
@@ -476,7 +490,13 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                ascs[i] = oByAscs.elementAt(i);
+            }
+            node = new OrderBy(oByIndexes, ascs, node);
         }
 
         return new Project(outFields, outTypes, node);
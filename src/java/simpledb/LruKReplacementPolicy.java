@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum, SIGMOD '93).
+ * <p>
+ * The policy remembers the times of the last K references to every resident
+ * page and evicts the page whose K-th most recent reference is the oldest
+ * (its "backward K-distance" is the largest). Pages with fewer than K
+ * references have an infinite backward K-distance and are evicted first,
+ * least recently used first.
+ * <p>
+ * With the default K = 2 a sequential scan, which touches each page once,
+ * only ever competes with other once-referenced pages, so it cannot push out
+ * pages that are re-referenced regularly, such as BTreeRootPtrPage and
+ * BTreeInternalPage.
+ * <p>
+ * Time is a logical clock that ticks once per reference. Reference history
+ * is dropped when a page leaves the pool.
+ */
+public class LruKReplacementPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private long clock = 0;
+
+    private final HashMap<PageId, History> histories = new HashMap<PageId, History>();
+    // resident pages, ordered by eviction preference
+    private final TreeSet<History> queue = new TreeSet<History>();
+
+    private class History implements Comparable<History> {
+        final PageId pid;
+        // ring buffer of the last k reference times, newest at head
+        final long[] refs = new long[k];
+        int count = 0;
+        int head = -1;
+
+        History(PageId pid) {
+            this.pid = pid;
+        }
+
+        void reference(long time) {
+            head = (head + 1) % k;
+            refs[head] = time;
+            if (count < k) {
+                count++;
+            }
+        }
+
+        long last() {
+            return refs[head];
+        }
+
+        /** time of the K-th most recent reference, or -1 if there are fewer than K */
+        long kth() {
+            if (count < k) {
+                return -1;
+            }
+            return refs[(head + 1) % k];
+        }
+
+        public int compareTo(History o) {
+            int c = Long.compare(kth(), o.kth());
+            if (c != 0) {
+                return c;
+            }
+            // reference times are unique, so this is a total order
+            return Long.compare(last(), o.last());
+        }
+    }
+
+    public LruKReplacementPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of references remembered per page; k = 1 is plain LRU
+     */
+    public LruKReplacementPolicy(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("LRU-K needs k >= 1");
+        }
+        this.k = k;
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        pageAccessed(pid);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null) {
+            h = new History(pid);
+            histories.put(pid, h);
+        } else {
+            queue.remove(h);
+        }
+        h.reference(clock++);
+        queue.add(h);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = histories.remove(pid);
+        if (h != null) {
+            queue.remove(h);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        for (History h : queue) {
+            if (evictable.canEvict(h.pid)) {
+                return h.pid;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void reset() {
+        histories.clear();
+        queue.clear();
+        clock = 0;
+    }
+}
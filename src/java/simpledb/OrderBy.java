@@ -4,6 +4,13 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * It is an external merge sort. Child tuples are read into runs of at most
+ * a memory budget's worth, by TupleDesc.getSize, and each run is sorted.
+ * Input that fits in one run is returned from memory; otherwise each run is
+ * spilled to a temporary file and the runs are merged with a loser tree,
+ * MAX_FAN_IN at a time, into longer runs until one merge of what is left
+ * gives the result. Files are only ever written and read in order.
  */
 public class OrderBy extends Operator {
 
@@ -11,11 +18,21 @@ public class OrderBy extends Operator {
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private int[] orderByFields;
+    private boolean[] ascs;
     private String orderByFieldName;
     private Iterator<Tuple> it;
     private boolean asc;
 
+    /** The default number of bytes of tuples a run holds */
+    public final static int SORT_BUDGET = 1 << 24;
+    /** The most runs merged at once */
+    final static int MAX_FAN_IN = 64;
+
+    private final int runSize;
+    // the merge of the last runs, when the input is spilled
+    transient private LoserTree merge = null;
+
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
      * 
@@ -27,11 +44,40 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: on the first,
+     * then, among tuples equal on it, on the second, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, OpIterator child) {
+        this(orderbyFields, ascs, child, SORT_BUDGET);
+    }
+
+    /**
+     * Creates a new OrderBy node whose runs hold at most budget bytes of
+     * tuples.
+     */
+    OrderBy(int[] orderbyFields, boolean[] ascs, OpIterator child, int budget) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length) {
+            throw new IllegalArgumentException("need one direction for each of at least one field");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.asc = ascs[0];
+        this.runSize = Math.max(2, budget / td.getSize());
     }
     
     public boolean isASC()
@@ -41,13 +87,23 @@ public class OrderBy extends Operator {
     
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
+
+    /** @return the fields the sort is applied to, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each of getOrderByFields(), true if it is ascending */
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
@@ -56,21 +112,66 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        TupleComparator cmp = new TupleComparator(orderByFields, ascs);
+        ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+        // read a run at a time, and sort it; spill all runs but a lone one
+        while (true) {
+            while (childTups.size() < runSize && child.hasNext())
+                childTups.add((Tuple) child.next());
+            Collections.sort(childTups, cmp);
+            if (runs.isEmpty() && !child.hasNext())
+                break;
+            SpillFile run = new SpillFile(td, "orderby");
+            for (Tuple t : childTups)
+                run.add(t);
+            runs.add(run);
+            childTups.clear();
+            if (!child.hasNext())
+                break;
+        }
+        if (runs.isEmpty()) {
+            it = childTups.iterator();
+        } else {
+            // merge until one merge is left; it is done as tuples are read
+            while (runs.size() > MAX_FAN_IN) {
+                ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+                for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                    List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + MAX_FAN_IN));
+                    if (group.size() == 1) {
+                        merged.add(group.get(0));
+                        continue;
+                    }
+                    SpillFile run = new SpillFile(td, "orderby");
+                    LoserTree tree = new LoserTree(group, cmp);
+                    Tuple t;
+                    while ((t = tree.next()) != null)
+                        run.add(t);
+                    tree.close();
+                    merged.add(run);
+                }
+                runs = merged;
+            }
+            merge = new LoserTree(runs, cmp);
+        }
         super.open();
     }
 
     public void close() {
         super.close();
         it = null;
+        childTups.clear();
+        if (merge != null) {
+            merge.close();
+            merge = null;
+        }
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (merge != null)
+            merge.rewind();
+        else
+            it = childTups.iterator();
     }
 
     /**
@@ -82,6 +183,8 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null)
+            return merge.next();
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -98,26 +201,109 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
+    /**
+     * A k-way merge of sorted runs. Each internal node of the tree holds the
+     * run whose head lost the match played there, and the root the overall
+     * winner, so taking the smallest head replays only the matches on its
+     * run's path: log k comparisons a tuple. Equal heads go to the earlier
+     * run, which keeps the sort stable.
+     */
+    private static class LoserTree {
+        private final SpillFile[] runs;
+        private final Tuple[] heads;
+        // tree[0] is the winner; tree[1..k-1] the losers; run i is leaf k+i
+        private final int[] tree;
+        private final Comparator<Tuple> cmp;
+
+        LoserTree(List<SpillFile> runs, Comparator<Tuple> cmp) throws DbException {
+            this.runs = runs.toArray(new SpillFile[runs.size()]);
+            this.heads = new Tuple[this.runs.length];
+            this.tree = new int[this.runs.length];
+            this.cmp = cmp;
+            rewind();
+        }
+
+        /** Start the merge from the first tuple of each run again */
+        void rewind() throws DbException {
+            for (int i = 0; i < runs.length; i++) {
+                runs[i].rewind();
+                heads[i] = runs[i].next();
+            }
+            tree[0] = play(1);
+        }
+
+        /** @return whether run a's head comes before run b's */
+        private boolean beats(int a, int b) {
+            if (heads[a] == null || heads[b] == null)
+                return heads[b] == null && (heads[a] != null || a < b);
+            int c = cmp.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /** Play the matches below node, keeping the losers; @return the winner */
+        private int play(int node) {
+            if (node >= runs.length)
+                return node - runs.length;
+            int a = play(2 * node), b = play(2 * node + 1);
+            if (beats(a, b)) {
+                tree[node] = b;
+                return a;
+            }
+            tree[node] = a;
+            return b;
+        }
+
+        /** @return the smallest head, or null when all runs are read */
+        Tuple next() throws DbException {
+            int w = tree[0];
+            Tuple t = heads[w];
+            if (t == null)
+                return null;
+            heads[w] = runs[w].next();
+            for (int node = (w + runs.length) / 2; node > 0; node /= 2) {
+                if (beats(tree[node], w)) {
+                    int loser = w;
+                    w = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = w;
+            return t;
+        }
+
+        void close() {
+            for (SpillFile run : runs)
+                run.close();
+        }
+    }
+
 }
 
 class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+    int[] fields;
+    boolean[] ascs;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] ascs) {
+        this.fields = fields;
+        this.ascs = ascs;
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = (o1).getField(fields[i]);
+            Field t2 = (o2).getField(fields[i]);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return ascs[i] ? 1 : -1;
+            else
+                return ascs[i] ? -1 : 1;
+        }
+        return 0;
     }
     
 }
@@ -9,9 +9,17 @@ package simpledb;
  *
  * For recovery purposes, pages MUST have a single constructor of the form:
  *     Page(PageId id, byte[] data)
+ * <p>
+ * Pages also carry the log sequence number (LSN) of the last logged update
+ * to them, so that recovery can tell whether an update already reached
+ * the disk. Pages that keep it on disk store it in their first LSN_SIZE
+ * bytes.
  */
 public interface Page {
 
+    /** Bytes taken by the page LSN at the start of a page */
+    int LSN_SIZE = 8;
+
     /**
      * Return the id of this page.  The id is a unique identifier for a page
      * that can be used to look up the page on disk or determine if the page
@@ -56,4 +64,16 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * @return the LSN of the last logged update to this page, or 0 if none
+     *   is known
+     * @see LogFile#logWrite
+     */
+    public long getLSN();
+
+    /**
+     * Set the LSN of the last logged update to this page.
+     */
+    public void setLSN(long lsn);
 }
@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PageArena is a fixed set of page frames allocated off the Java heap, in
+ * direct ByteBuffers, for the BufferPool to keep page bytes in. A page that
+ * moves into a frame holds no copy of its bytes on the heap, so the heap a
+ * buffer pool needs does not grow with its size, and the garbage collector
+ * never has to trace or copy the frames.
+ * <p>
+ * A frame is numbered, and pinned from allocate() until it is given back
+ * with free(). The buffer pool pins a frame for as long as the page in it
+ * is resident (see FramedPage).
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy, boolean)
+ */
+class PageArena {
+
+    /** A page that can keep its bytes in a frame of an arena */
+    interface FramedPage extends Page {
+        /**
+         * Move the bytes of this page into a frame of arena. The page stays
+         * where it is if arena has no free frame.
+         */
+        void moveInto(PageArena arena);
+
+        /**
+         * Give the frame of this page back to its arena, if it has one. The
+         * page, and any tuple still reading its bytes, go on with a copy of
+         * them on the heap.
+         */
+        void leaveArena();
+    }
+
+    // a direct buffer can hold at most 2 GB, so large arenas take several
+    private static final int MAX_SLAB_BYTES = 1 << 30;
+
+    private final int pageSize;
+    private final int framesPerSlab;
+    private final ByteBuffer[] slabs;
+    // the numbers of the free frames, a stack; protected by this
+    private final int[] freeFrames;
+    private int numFree;
+
+    /**
+     * Allocate an arena of numFrames frames of pageSize bytes each.
+     */
+    PageArena(int numFrames, int pageSize) {
+        this.pageSize = pageSize;
+        this.framesPerSlab = Math.max(1, MAX_SLAB_BYTES / pageSize);
+        int numSlabs = (numFrames + framesPerSlab - 1) / framesPerSlab;
+        this.slabs = new ByteBuffer[numSlabs];
+        for (int i = 0; i < numSlabs; i++) {
+            int frames = Math.min(framesPerSlab, numFrames - i * framesPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect(frames * pageSize);
+        }
+        this.freeFrames = new int[numFrames];
+        // frame 0 on top, so the first pages fill the first slab
+        for (int i = 0; i < numFrames; i++) {
+            freeFrames[i] = numFrames - 1 - i;
+        }
+        this.numFree = numFrames;
+    }
+
+    /** @return the size of a frame */
+    int getPageSize() {
+        return pageSize;
+    }
+
+    /** @return the number of frames */
+    int getNumFrames() {
+        return freeFrames.length;
+    }
+
+    /** @return the number of frames no page is in */
+    synchronized int getNumFree() {
+        return numFree;
+    }
+
+    /**
+     * Pin a free frame.
+     *
+     * @return the number of the frame, or -1 if all frames are in use
+     */
+    synchronized int allocate() {
+        if (numFree == 0) {
+            return -1;
+        }
+        return freeFrames[--numFree];
+    }
+
+    /**
+     * Unpin a frame, so that it can be allocated again. Its bytes must not
+     * be used any more.
+     */
+    synchronized void free(int frame) {
+        if (frame < 0 || frame >= freeFrames.length || numFree == freeFrames.length) {
+            throw new IllegalArgumentException("frame " + frame + " is not in use");
+        }
+        freeFrames[numFree++] = frame;
+    }
+
+    /**
+     * @return a buffer over the bytes of frame, from 0 to the page size,
+     *   which only absolute gets and puts may be used on
+     */
+    ByteBuffer frame(int frame) {
+        ByteBuffer slab = slabs[frame / framesPerSlab];
+        return slab.slice((frame % framesPerSlab) * pageSize, pageSize);
+    }
+}
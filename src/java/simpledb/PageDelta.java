@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PageDelta is the part of a page that an update changed: the runs of
+ * bytes that differ between the before image and the after image, with
+ * both versions of each run. For a tuple inserted into or deleted from a
+ * slot that is the header bits of the slot and the bytes of the tuple, so
+ * LogFile logs a delta instead of two full page images whenever it is
+ * small.
+ * <p>
+ * A delta can only be redone on the page as its before image left it, and
+ * undone on the page as its after image left it; recovery makes sure of
+ * that by replaying the log in order.
+ *
+ * @see LogFile#logWrite(TransactionId, Page, Page, boolean)
+ */
+class PageDelta {
+
+    /** Runs less than this many bytes apart are logged as one run, since
+     each run costs an offset and a length */
+    static final int MIN_GAP = 8;
+
+    private final int pageSize;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int pageSize, int[] offsets, byte[][] before, byte[][] after) {
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the runs of bytes that differ between before and after,
+     *   which must be the images of the same page
+     */
+    static PageDelta diff(byte[] before, byte[] after) {
+        if (before.length != after.length) {
+            throw new IllegalArgumentException("page images differ in size");
+        }
+        return diff(before, after, 0, after.length);
+    }
+
+    /**
+     * @return the runs of bytes that differ between before and after, which
+     *   must be the same outside of [from, to); after may be longer than the
+     *   page, which is before.length bytes
+     */
+    static PageDelta diff(byte[] before, byte[] after, int from, int to) {
+        if (after.length < before.length || from < 0 || to > before.length) {
+            throw new IllegalArgumentException("bad page images or range");
+        }
+        ArrayList<int[]> runs = new ArrayList<int[]>();
+        int i = from;
+        while (i < to) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the run over short stretches of equal bytes
+            for (int j = end; j < to && j < end + MIN_GAP; j++) {
+                if (before[j] != after[j]) {
+                    end = j + 1;
+                }
+            }
+            runs.add(new int[] { start, end });
+            i = end;
+        }
+        int[] offsets = new int[runs.size()];
+        byte[][] b = new byte[runs.size()][];
+        byte[][] a = new byte[runs.size()][];
+        for (int r = 0; r < runs.size(); r++) {
+            int start = runs.get(r)[0];
+            int end = runs.get(r)[1];
+            offsets[r] = start;
+            b[r] = Arrays.copyOfRange(before, start, end);
+            a[r] = Arrays.copyOfRange(after, start, end);
+        }
+        return new PageDelta(before.length, offsets, b, a);
+    }
+
+    /** @return the size of the page the delta applies to */
+    int getPageSize() {
+        return pageSize;
+    }
+
+    /** @return the number of bytes that changed */
+    int changedBytes() {
+        int n = 0;
+        for (byte[] run : after) {
+            n += run.length;
+        }
+        return n;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    static PageDelta readFrom(DataInput in) throws IOException {
+        int pageSize = in.readInt();
+        int numRuns = in.readInt();
+        if (pageSize < 0 || numRuns < 0 || numRuns > pageSize) {
+            // not a delta, such as the end of the log
+            throw new StreamCorruptedException("bad page delta");
+        }
+        int[] offsets = new int[numRuns];
+        byte[][] b = new byte[numRuns][];
+        byte[][] a = new byte[numRuns][];
+        for (int r = 0; r < numRuns; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            if (offsets[r] < 0 || len < 0 || len > pageSize - offsets[r]) {
+                throw new StreamCorruptedException("bad page delta");
+            }
+            b[r] = new byte[len];
+            in.readFully(b[r]);
+            a[r] = new byte[len];
+            in.readFully(a[r]);
+        }
+        return new PageDelta(pageSize, offsets, b, a);
+    }
+
+    /** @return a copy of data with the after image of every run (redo) */
+    byte[] redo(byte[] data) {
+        return apply(data, after);
+    }
+
+    /** @return a copy of data with the before image of every run (undo) */
+    byte[] undo(byte[] data) {
+        return apply(data, before);
+    }
+
+    private byte[] apply(byte[] data, byte[][] runs) {
+        byte[] result = Arrays.copyOf(data, pageSize);
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(runs[r], 0, result, offsets[r], runs[r].length);
+        }
+        return result;
+    }
+}
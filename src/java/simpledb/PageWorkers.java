@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * PageWorkers applies the page writes of recovery on a fixed set of
+ * threads, partitioned by PageId. All the work for a page goes to the same
+ * thread and runs in the order it was submitted, so the records of a page
+ * are still redone (or undone) in log order, while different pages are
+ * read and written in parallel.
+ * <p>
+ * The submitting thread parses the log; the workers only touch the
+ * DbFiles, never the BufferPool, since the submitter holds its monitor.
+ * With a single thread the work runs in the submitting thread and nothing
+ * is queued.
+ *
+ * @see LogFile#setRecoveryThreads
+ */
+class PageWorkers {
+
+    /** Work queued per thread before the submitter blocks */
+    static final int QUEUE_CAPACITY = 1024;
+
+    /** The work for one log record */
+    interface Work {
+        void run() throws IOException;
+    }
+
+    private static final Work STOP = () -> { };
+
+    private final Thread[] threads;
+    private final BlockingQueue<Work>[] queues;
+    // first exception thrown by a worker; the rest of the work is skipped
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    /**
+     * Starts the worker threads.
+     *
+     * @param numThreads the number of threads; 1 or less runs the work in
+     *   the submitting thread
+     */
+    @SuppressWarnings("unchecked")
+    PageWorkers(int numThreads) {
+        int n = numThreads > 1 ? numThreads : 0;
+        threads = new Thread[n];
+        queues = new BlockingQueue[n];
+        for (int i = 0; i < n; i++) {
+            final BlockingQueue<Work> queue = new ArrayBlockingQueue<Work>(QUEUE_CAPACITY);
+            queues[i] = queue;
+            threads[i] = new Thread(() -> drain(queue), "recovery-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    private void drain(BlockingQueue<Work> queue) {
+        try {
+            while (true) {
+                Work w = queue.take();
+                if (w == STOP) {
+                    return;
+                }
+                if (failure.get() == null) {
+                    try {
+                        w.run();
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // shut down
+        }
+    }
+
+    /**
+     * Queue the work for a page behind the work already queued for it,
+     * blocking while the queue of its thread is full.
+     */
+    void submit(PageId pid, Work w) throws IOException {
+        if (threads.length == 0) {
+            w.run();
+            return;
+        }
+        rethrow();
+        try {
+            queues[Math.floorMod(pid.hashCode(), threads.length)].put(w);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while queueing recovery work");
+        }
+    }
+
+    /**
+     * Wait for all the submitted work to finish and stop the threads.
+     *
+     * @throws IOException if any of the work failed
+     */
+    void finish() throws IOException {
+        try {
+            for (BlockingQueue<Work> queue : queues) {
+                queue.put(STOP);
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            shutdown();
+            throw new InterruptedIOException("interrupted while waiting for recovery work");
+        }
+        rethrow();
+    }
+
+    /** Stop the threads without waiting for the queued work */
+    void shutdown() {
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+    }
+
+    private void rethrow() throws IOException {
+        Throwable e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new IOException(e);
+        }
+    }
+}
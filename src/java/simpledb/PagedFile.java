@@ -0,0 +1,158 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * PagedFile is the one FileChannel a DbFile keeps open on its backing file.
+ * Pages are read and written with positional I/O through reusable direct
+ * buffers, so a page access costs no open, close or seek system call and
+ * allocates nothing.
+ * <p>
+ * Positional reads and writes on a FileChannel may run concurrently, so
+ * the channel is shared by all threads; the buffers are per thread. The
+ * channel is opened on first use, and reopened if an interrupted thread
+ * or close() closed it.
+ *
+ * @see HeapFile
+ * @see BTreeFile
+ */
+class PagedFile {
+
+    private static final ThreadLocal<ByteBuffer> directBuffer = new ThreadLocal<ByteBuffer>();
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>();
+
+    private final File file;
+    private volatile FileChannel channel;
+
+    PagedFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns a per-thread array of at least len bytes to read a page into,
+     * or to serialize one into (see LogFile.logWrite()). It is overwritten
+     * by the next call in the same thread, so it may only be handed to code
+     * that copies what it needs out of it.
+     */
+    static byte[] scratch(int len) {
+        byte[] b = scratch.get();
+        if (b == null || b.length < len) {
+            b = new byte[len];
+            scratch.set(b);
+        }
+        return b;
+    }
+
+    private static ByteBuffer directBuffer(int len) {
+        ByteBuffer buf = directBuffer.get();
+        if (buf == null || buf.capacity() < len) {
+            buf = ByteBuffer.allocateDirect(len);
+            directBuffer.set(buf);
+        }
+        buf.clear();
+        buf.limit(len);
+        return buf;
+    }
+
+    private FileChannel channel(boolean create) throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null || !ch.isOpen()) {
+                    if (create) {
+                        ch = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                                StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                    } else {
+                        ch = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                                StandardOpenOption.WRITE);
+                    }
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Read up to len bytes at position into dst, retrying short reads.
+     *
+     * @return the number of bytes read, less than len only at end of file
+     */
+    int read(long position, byte[] dst, int len) throws IOException {
+        FileChannel ch = channel(false);
+        ByteBuffer buf = directBuffer(len);
+        int n = 0;
+        while (n < len) {
+            int r = ch.read(buf, position + n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        buf.flip();
+        buf.get(dst, 0, n);
+        return n;
+    }
+
+    /**
+     * Write all of src at position, extending the file if needed.
+     */
+    void write(long position, byte[] src) throws IOException {
+        write(position, src.length, buf -> buf.put(src));
+    }
+
+    /**
+     * Write len bytes at position, extending the file if needed, which fill
+     * puts into the buffer it is given, so that a page can write itself
+     * without making a byte array of its contents first.
+     */
+    void write(long position, int len, Consumer<ByteBuffer> fill) throws IOException {
+        FileChannel ch = channel(true);
+        ByteBuffer buf = directBuffer(len);
+        fill.accept(buf);
+        if (buf.position() != len) {
+            throw new IOException("wrote " + buf.position() + " bytes of a page of " + len);
+        }
+        buf.flip();
+        long pos = position;
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+    }
+
+    /**
+     * @return the length of the file, from the open channel if there is one
+     */
+    long size() {
+        FileChannel ch = channel;
+        if (ch != null && ch.isOpen()) {
+            try {
+                return ch.size();
+            } catch (IOException e) {
+                // fall back to the file system
+            }
+        }
+        return file.length();
+    }
+
+    /**
+     * Close the channel, if it is open, to give back its file descriptor.
+     * The next read or write opens it again.
+     */
+    synchronized void close() {
+        FileChannel ch = channel;
+        channel = null;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // nothing was buffered, there is nothing to lose
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ReadAhead watches the pages a HeapFile iterator reads and, once the
+ * scan has read a few pages in a row, prefetches the next pages into the
+ * BufferPool on a background I/O thread. A cold sequential scan then
+ * finds its next page resident instead of waiting for every read in turn.
+ * <p>
+ * Prefetching takes no locks. A prefetched page is just the on-disk copy
+ * sitting in the pool: the scan still locks every page through
+ * BufferPool.getPage before it looks at it, and BufferPool.prefetchPage
+ * never replaces a page that is already resident.
+ * <p>
+ * The window of pages kept in flight adapts to how fast the scan consumes
+ * them. It doubles whenever the scan catches up with a prefetch that has
+ * not finished, and halves when a prefetched page was evicted again before
+ * the scan got to it. It never grows past a quarter of the buffer pool.
+ *
+ * @see BufferPool#prefetchPage
+ */
+class ReadAhead {
+
+    /** Pages read in a row before prefetching starts */
+    static final int SEQUENTIAL_THRESHOLD = 2;
+    static final int INITIAL_WINDOW = 2;
+    static final int MAX_WINDOW = 64;
+    static final int IO_THREADS = 2;
+
+    private static final ExecutorService ioExecutor = Executors.newFixedThreadPool(IO_THREADS, r -> {
+        Thread t = new Thread(r, "read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final DbFile file;
+    private final BufferPool bufferPool;
+
+    private int window = INITIAL_WINDOW;
+    // last page the scan read, and how many pages in a row it has read
+    private int last = -1;
+    private int run = 0;
+    // pages issuedFrom..issuedTo have been handed to the I/O threads
+    private int issuedFrom = 0;
+    private int issuedTo = -1;
+    private final Set<Integer> inFlight = ConcurrentHashMap.newKeySet();
+
+    ReadAhead(DbFile file) {
+        this.file = file;
+        this.bufferPool = Database.getBufferPool();
+    }
+
+    /** @return the current read-ahead window, in pages */
+    int getWindow() {
+        return window;
+    }
+
+    /**
+     * Called by the scan just before it reads a page.
+     *
+     * @param pgNo the page the scan is about to read
+     * @param numPages the number of pages in the file
+     */
+    void beforeRead(int pgNo, int numPages) {
+        if (pgNo != last + 1) {
+            // not sequential (or a rewind): start over
+            run = 0;
+            window = INITIAL_WINDOW;
+            issuedFrom = 0;
+            issuedTo = -1;
+        } else {
+            run++;
+        }
+        last = pgNo;
+        if (run < SEQUENTIAL_THRESHOLD) {
+            return;
+        }
+
+        if (pgNo >= issuedFrom && pgNo <= issuedTo) {
+            if (inFlight.contains(pgNo)) {
+                // the scan is waiting on us
+                window = Math.min(window * 2, maxWindow());
+            } else if (!bufferPool.isResident(new HeapPageId(file.getId(), pgNo))) {
+                // read too far ahead; the page was pushed out before use
+                window = Math.max(window / 2, 1);
+            }
+        }
+
+        if (issuedTo < pgNo) {
+            issuedFrom = pgNo + 1;
+            issuedTo = pgNo;
+        }
+        int target = Math.min(pgNo + window, numPages - 1);
+        for (int p = issuedTo + 1; p <= target; p++) {
+            submit(p);
+        }
+        issuedTo = Math.max(issuedTo, target);
+    }
+
+    private int maxWindow() {
+        return Math.max(1, Math.min(MAX_WINDOW, bufferPool.getCapacity() / 4));
+    }
+
+    private void submit(final int pgNo) {
+        final PageId pid = new HeapPageId(file.getId(), pgNo);
+        inFlight.add(pgNo);
+        try {
+            ioExecutor.execute(() -> {
+                try {
+                    bufferPool.prefetchPage(file, pid);
+                } catch (Exception e) {
+                    // best effort: the scan will read the page itself
+                } finally {
+                    inFlight.remove(pgNo);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(pgNo);
+        }
+    }
+}
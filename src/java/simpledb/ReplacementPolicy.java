@@ -0,0 +1,55 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool should give
+ * up when it runs out of frames. The BufferPool reports every hit, load and
+ * removal of a page; the policy keeps whatever bookkeeping it needs and
+ * proposes victims in order of preference.
+ * <p>
+ * Implementations must be thread safe, since BufferPool calls into them from
+ * every transaction thread.
+ *
+ * @see BufferPool#evictPage
+ * @see ClockReplacementPolicy
+ * @see LruKReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Callback used while choosing a victim, so that the policy can skip
+     * pages the BufferPool is not allowed to evict (e.g. dirty pages under
+     * NO STEAL).
+     */
+    interface Evictable {
+        boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Record that a page has just been read from disk (or otherwise
+     * installed) into the buffer pool.
+     */
+    void pageLoaded(PageId pid);
+
+    /**
+     * Record a reference to a page that is already resident.
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Forget about a page that has left the buffer pool.
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Choose the page to evict next.
+     *
+     * @param evictable tells the policy which resident pages may be evicted
+     * @return the victim, or null if no resident page is evictable
+     */
+    PageId chooseVictim(Evictable evictable);
+
+    /**
+     * Drop all bookkeeping.
+     */
+    void reset();
+}
@@ -0,0 +1,28 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * SlottedHeapFile is a HeapFile whose pages are SlottedHeapPages, which
+ * store tuples as variable-length records. A string takes its actual
+ * length plus two bytes instead of Type.STRING_TYPE.getLen(), so a table
+ * of mostly short strings needs a fraction of the pages, and scanning it
+ * a fraction of the I/O. Each tuple also costs a four byte slot, so tables
+ * of ints alone are smaller as plain HeapFiles.
+ * <p>
+ * Tables are stored in this format if their line in the catalog file
+ * ends with "slotted" (see Catalog.loadSchema()).
+ *
+ * @see SlottedHeapPage
+ */
+public class SlottedHeapFile extends HeapFile {
+
+    public SlottedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    @Override
+    TuplePage newPage(HeapPageId pid, byte[] data) throws IOException {
+        return new SlottedHeapPage(pid, data);
+    }
+}
@@ -0,0 +1,399 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * SlottedHeapPage is a page of a SlottedHeapFile. Unlike HeapPage, whose
+ * slots all have the fixed size of the TupleDesc, it stores each tuple as a
+ * variable-length record, with strings at their actual length, and finds
+ * the records through a slot directory.
+ * <p>
+ * The tuples read from disk are lazy (see Tuple): they decode their fields
+ * from a copy of the bytes the page was read from, which never changes, so
+ * a scan that looks at a few fields decodes only those.
+ * <p>
+ * The before image is made when the page first changes after
+ * setBeforeImage(), so a page that is only read holds one copy of its
+ * bytes.
+ *
+ * @see SlottedHeapFile
+ * @see HeapPage
+ */
+public class SlottedHeapPage implements HeapFile.TuplePage {
+
+    /** The page LSN and the number of slots */
+    static final int HEADER_SIZE = LSN_SIZE + 2;
+    /** The offset and the length of a record */
+    static final int SLOT_SIZE = 4;
+    /** The length that precedes the bytes of a string */
+    static final int STRING_LEN_SIZE = 2;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    // by slot number; null for an empty slot, and the last one is never empty
+    final ArrayList<Tuple> tuples;
+    // the total length of the records of the tuples
+    int usedBytes;
+
+    // the before image, or null while the page has not changed since
+    // setBeforeImage(), which left its LSN in oldLSN
+    byte[] oldData;
+    private long oldLSN;
+    private final Object oldDataLock = new Object();
+
+    TransactionId dirtyTransactionId;
+
+    private volatile long lsn;
+
+    /** The bytes a page was read from, and where its records are */
+    private final class Image implements Tuple.Source {
+        final byte[] data;
+        final int[] offsets;
+
+        Image(byte[] data, int numSlots) {
+            this.data = data;
+            this.offsets = new int[numSlots];
+        }
+
+        public Field getField(int slot, int i) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            int pos = offsets[slot];
+            // the fields before i only have to be skipped
+            for (int j = 0; j < i; j++) {
+                if (td.getFieldType(j) == Type.INT_TYPE) {
+                    pos += Type.INT_TYPE.getLen();
+                } else {
+                    pos += STRING_LEN_SIZE + (buf.getShort(pos) & 0xffff);
+                }
+            }
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                return new IntField(buf.getInt(pos));
+            }
+            int len = buf.getShort(pos) & 0xffff;
+            return new StringField(new String(data, pos + STRING_LEN_SIZE, len), Type.STRING_LEN);
+        }
+
+        public RecordId getRecordId(int slot) {
+            return new RecordId(pid, slot);
+        }
+    }
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     * The format of a SlottedHeapPage is the page LSN, the number of slots
+     * as an unsigned short, and a slot directory that holds the offset and
+     * the length of the record of each slot, as unsigned shorts, with an
+     * offset of 0 for an empty slot. The records are packed at the end of
+     * the page, the one of the first slot last, so that the free space is
+     * in the middle, between the directory and the records.
+     * <p>
+     * A record holds the fields of a tuple in order: an int in 4 bytes, and
+     * a string as its unsigned short length followed by that many bytes.
+     * <p>
+     * A page of all zeros has no slots, so HeapPage.createEmptyPageData()
+     * makes an empty SlottedHeapPage as well. Offsets are unsigned shorts,
+     * so pages can be at most 64 KB.
+     *
+     * @see BufferPool#getPageSize()
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        int pageSize = BufferPool.getPageSize();
+        if (data.length < pageSize) {
+            throw new EOFException("a page of " + pageSize + " bytes cannot be read from " + data.length);
+        }
+        byte[] copy = Arrays.copyOf(data, pageSize);
+        ByteBuffer buf = ByteBuffer.wrap(copy);
+
+        lsn = buf.getLong();
+        int numSlots = buf.getShort() & 0xffff;
+        if (HEADER_SIZE + numSlots * SLOT_SIZE > pageSize) {
+            throw new IOException("slotted page " + id.getPageNumber() + " has too many slots: " + numSlots);
+        }
+        Image image = new Image(copy, numSlots);
+        tuples = new ArrayList<Tuple>(numSlots);
+        for (int i = 0; i < numSlots; i++) {
+            int offset = buf.getShort(HEADER_SIZE + i * SLOT_SIZE) & 0xffff;
+            int length = buf.getShort(HEADER_SIZE + i * SLOT_SIZE + 2) & 0xffff;
+            if (offset == 0) {
+                tuples.add(null);
+                continue;
+            }
+            if (offset + length > pageSize) {
+                throw new IOException("slot " + i + " of slotted page " + id.getPageNumber() + " is out of bounds");
+            }
+            image.offsets[i] = offset;
+            tuples.add(new Tuple(td, image, i));
+            usedBytes += length;
+        }
+        // the bytes are what getPageData() would make of them, and the
+        // tuples only read them, so they are the before image as well
+        synchronized (oldDataLock) {
+            oldData = copy;
+        }
+    }
+
+    /** @return the length of the record of t */
+    static int recordSize(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            switch (td.getFieldType(j)) {
+                case INT_TYPE:
+                    size += Type.INT_TYPE.getLen();
+                    break;
+                case STRING_TYPE:
+                    size += STRING_LEN_SIZE + ((StringField) t.getField(j)).getValue().length();
+                    break;
+            }
+        }
+        return size;
+    }
+
+    /** @return the length of the record of a tuple whose strings are empty */
+    private int minRecordSize() {
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            size += td.getFieldType(j) == Type.INT_TYPE ? Type.INT_TYPE.getLen() : STRING_LEN_SIZE;
+        }
+        return size;
+    }
+
+    /**
+     * Return a view of this page before it was modified
+     * -- used by recovery
+     */
+    public SlottedHeapPage getBeforeImage() {
+        try {
+            return new SlottedHeapPage(pid, getBeforeImageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = null;
+            oldLSN = lsn;
+        }
+    }
+
+    public byte[] getBeforeImageData() {
+        synchronized (oldDataLock) {
+            if (oldData != null) {
+                return oldData;
+            }
+            byte[] data = getPageData();
+            ByteBuffer.wrap(data).putLong(0, oldLSN);
+            return data;
+        }
+    }
+
+    /** Make the before image before the page first changes */
+    private void beforeWrite() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                oldData = getBeforeImageData();
+            }
+        }
+    }
+
+    /** Any change can move every record, so the whole page is dirty */
+    public int[] getDirtyRange() {
+        return new int[] { 0, BufferPool.getPageSize() };
+    }
+
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, with
+     * the records packed at the end of the page in slot order.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     * @see #SlottedHeapPage
+     */
+    public byte[] getPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        writePageData(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    public void writePageData(ByteBuffer dst) {
+        int pageSize = BufferPool.getPageSize();
+        // positions are relative to the start of the page
+        ByteBuffer buf = dst.slice(dst.position(), pageSize);
+        dst.position(dst.position() + pageSize);
+        buf.putLong(lsn);
+        buf.putShort((short) tuples.size());
+        int directoryEnd = HEADER_SIZE + tuples.size() * SLOT_SIZE;
+        // dst may hold anything, and the page bytes go in around it
+        for (int i = buf.position(); i < directoryEnd; i++) {
+            buf.put(i, (byte) 0);
+        }
+
+        int end = pageSize;
+        for (int i = 0; i < tuples.size(); i++) {
+            Tuple t = tuples.get(i);
+            if (t == null) {
+                // an empty slot is all zeros
+                continue;
+            }
+            int length = recordSize(t);
+            end -= length;
+            buf.putShort(HEADER_SIZE + i * SLOT_SIZE, (short) end);
+            buf.putShort(HEADER_SIZE + i * SLOT_SIZE + 2, (short) length);
+
+            buf.position(end);
+            for (int j = 0; j < td.numFields(); j++) {
+                Field f = t.getField(j);
+                if (f.getType() == Type.INT_TYPE) {
+                    buf.putInt(((IntField) f).getValue());
+                } else {
+                    String s = ((StringField) f).getValue();
+                    buf.putShort((short) s.length());
+                    // one byte per char, as StringField.serialize() does
+                    for (int k = 0; k < s.length(); k++) {
+                        buf.put((byte) s.charAt(k));
+                    }
+                }
+            }
+        }
+        // the free space
+        for (int i = directoryEnd; i < end; i++) {
+            buf.put(i, (byte) 0);
+        }
+    }
+
+    /** @return the number of bytes neither the directory nor a record uses */
+    public int getFreeSpace() {
+        return BufferPool.getPageSize() - HEADER_SIZE - tuples.size() * SLOT_SIZE - usedBytes;
+    }
+
+    /** @return the number of the first empty slot, or -1 if there is none */
+    private int getUnusedSlot() {
+        return tuples.indexOf(null);
+    }
+
+    /** @return true if a record of length bytes fits on this page */
+    private boolean fits(int length) {
+        int needed = length + (getUnusedSlot() == -1 ? SLOT_SIZE : 0);
+        return needed <= getFreeSpace();
+    }
+
+    public boolean hasRoomFor(Tuple t) {
+        return fits(recordSize(t));
+    }
+
+    public boolean isFull() {
+        return !fits(minRecordSize());
+    }
+
+    /**
+     * Delete the specified tuple from the page, emptying its slot. The
+     * space of its record is free right away.
+     *
+     * @param t The tuple to delete
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *                     already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId recordId = t.getRecordId();
+        int slot = recordId.getTupleNumber();
+        if (!recordId.getPageId().equals(this.pid) || !isSlotUsed(slot)) {
+            throw new DbException("this tuple is not on this page");
+        }
+        beforeWrite();
+        usedBytes -= recordSize(tuples.get(slot));
+        tuples.set(slot, null);
+        // trailing empty slots leave the directory
+        while (!tuples.isEmpty() && tuples.get(tuples.size() - 1) == null) {
+            tuples.remove(tuples.size() - 1);
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the page, in the first empty slot or in
+     * a new one; the tuple is updated to reflect that it is now stored on
+     * this page.
+     *
+     * @param t The tuple to add.
+     * @throws DbException if the page has no room for the tuple or tupledesc
+     *                     is mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!this.td.equals(t.getTupleDesc())) {
+            throw new DbException("tuple descriptor is mismatch.");
+        }
+        if (!hasRoomFor(t)) {
+            throw new DbException("the page is full.");
+        }
+        beforeWrite();
+        int slot = getUnusedSlot();
+        if (slot == -1) {
+            slot = tuples.size();
+            tuples.add(null);
+        }
+        t.setRecordId(new RecordId(this.pid, slot));
+        tuples.set(slot, t);
+        usedBytes += recordSize(t);
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirtyTransactionId = dirty ? tid : null;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return this.dirtyTransactionId;
+    }
+
+    /** @return the number of tuples on this page */
+    public int getNumUsedSlots() {
+        int n = 0;
+        for (Tuple t : tuples) {
+            if (t != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < tuples.size() && tuples.get(i) != null;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return tuples.stream().filter(Objects::nonNull).iterator();
+    }
+}
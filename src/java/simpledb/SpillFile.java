@@ -0,0 +1,120 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * A temporary file of tuples that an operator spills when its input does
+ * not fit in memory: written once with add(), then read back, from the
+ * start as often as needed, with next().
+ * <p>
+ * Tuples are written field by field with no page layout around them, and
+ * strings take their own length rather than the Type.STRING_LEN they take
+ * on a page, so files are small and read and written in order.
+ */
+class SpillFile {
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private int size = 0;
+    private int read = 0;
+
+    /**
+     * Create an empty spill file for tuples of td.
+     *
+     * @param prefix the start of the name of the file, after its operator
+     */
+    SpillFile(TupleDesc td, String prefix) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile(prefix, ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        } catch (IOException e) {
+            throw new DbException("cannot spill: " + e.getMessage());
+        }
+    }
+
+    /** @return the number of tuples added */
+    int size() {
+        return size;
+    }
+
+    void add(Tuple t) throws DbException {
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    out.writeInt(((IntField) f).getValue());
+                } else {
+                    String s = ((StringField) f).getValue();
+                    if (s.length() > Type.STRING_LEN) {
+                        s = s.substring(0, Type.STRING_LEN);
+                    }
+                    out.writeShort(s.length());
+                    out.writeBytes(s);
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot spill: " + e.getMessage());
+        }
+        size++;
+    }
+
+    /** @return the next tuple, or null after the last one added */
+    public Tuple next() throws DbException {
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (read == size) {
+                return null;
+            }
+            if (in == null) {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            }
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    t.setField(i, new IntField(in.readInt()));
+                } else {
+                    byte[] bs = new byte[in.readShort()];
+                    in.readFully(bs);
+                    t.setField(i, new StringField(new String(bs), Type.STRING_LEN));
+                }
+            }
+            read++;
+            return t;
+        } catch (IOException e) {
+            throw new DbException("cannot read spilled tuples: " + e.getMessage());
+        }
+    }
+
+    /** Read the tuples from the first again */
+    public void rewind() {
+        closeStreams();
+        read = 0;
+    }
+
+    private void closeStreams() {
+        try {
+            if (out != null) {
+                out.close();
+            }
+            if (in != null) {
+                in.close();
+            }
+        } catch (IOException e) {
+            // the file is going away, or is read from the start again
+        }
+        out = null;
+        in = null;
+    }
+
+    /** Delete the file; it is not read again */
+    public void close() {
+        closeStreams();
+        file.delete();
+    }
+}
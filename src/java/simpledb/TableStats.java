@@ -98,7 +98,9 @@ public class TableStats {
         SeqScan scan = new SeqScan(tid, tableid, "");
 
         this.numFields = scan.getTupleDesc().numFields();
-        this.numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(tableid)).numPages();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        this.numPages = file instanceof BTreeFile ? ((BTreeFile) file).numPages()
+                : ((HeapFile) file).numPages();
         int maxs[] = new int[numFields];
         int mins[] = new int[numFields];
         // unsafe should convert based on type
@@ -47,8 +47,9 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //log all the dirty pages for this transaction; the pages
+                //themselves are written back later
+                Database.getBufferPool().logPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -10,16 +12,32 @@ import java.util.Objects;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page may be lazy: it decodes a field from the page's
+ * bytes the first time the field is asked for, so a tuple that a filter
+ * rejects after looking at one field costs no other Field objects.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    /** The bytes that the fields of lazy tuples are decoded from */
+    interface Source {
+        Field getField(int slot, int i);
+
+        RecordId getRecordId(int slot);
+    }
+
     TupleDesc tupleDesc;
+    // null, or fields not decoded yet, until a lazy tuple is asked for them
     Field[] fields;
 
     private RecordId recordId;
 
+    // where the fields of a lazy tuple come from, which must not change
+    private transient Source source;
+    private transient int slot;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -32,6 +50,16 @@ public class Tuple implements Serializable {
         fields = new Field[tupleDesc.numFields()];
     }
 
+    /**
+     * Create a lazy tuple whose fields and RecordId come from slot of
+     * source.
+     */
+    Tuple(TupleDesc td, Source source, int slot) {
+        tupleDesc = td;
+        this.source = source;
+        this.slot = slot;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -46,6 +74,9 @@ public class Tuple implements Serializable {
      */
     public RecordId getRecordId() {
         // some code goes here
+        if (recordId == null && source != null) {
+            recordId = source.getRecordId(slot);
+        }
         return recordId;
     }
 
@@ -67,6 +98,9 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
+        if (fields == null) {
+            fields = new Field[tupleDesc.numFields()];
+        }
         fields[i] = f;
     }
 
@@ -76,7 +110,28 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return fields[i];
+        Field f = fields == null ? null : fields[i];
+        if (f == null && source != null) {
+            f = source.getField(slot, i);
+            setField(i, f);
+        }
+        return f;
+    }
+
+    /** Decode all the fields of a lazy tuple */
+    private Field[] materialize() {
+        if (source != null) {
+            for (int i = 0; i < tupleDesc.numFields(); i++) {
+                getField(i);
+            }
+        }
+        return fields;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        getRecordId();
+        out.defaultWriteObject();
     }
 
     /**
@@ -92,7 +147,7 @@ public class Tuple implements Serializable {
     public String toString() {
         return "Tuple{" +
                 "tupleDesc=" + tupleDesc +
-                ", fields=" + Arrays.toString(fields) +
+                ", fields=" + Arrays.toString(materialize()) +
                 '}';
     }
 
@@ -102,13 +157,13 @@ public class Tuple implements Serializable {
         if (!(o instanceof Tuple)) return false;
         Tuple tuple = (Tuple) o;
         return Objects.equals(tupleDesc, tuple.tupleDesc) &&
-                Arrays.equals(fields, tuple.fields);
+                Arrays.equals(materialize(), tuple.materialize());
     }
 
     @Override
     public int hashCode() {
         int result = Objects.hash(tupleDesc);
-        result = 31 * result + Arrays.hashCode(fields);
+        result = 31 * result + Arrays.hashCode(materialize());
         return result;
     }
 
@@ -117,7 +172,7 @@ public class Tuple implements Serializable {
      */
     public Iterator<Field> fields() {
         // some code goes here
-        return Arrays.stream(fields).iterator();
+        return Arrays.stream(materialize()).iterator();
     }
 
     /**
@@ -125,6 +180,8 @@ public class Tuple implements Serializable {
      */
     public void resetTupleDesc(TupleDesc td) {
         // some code goes here
+        // the fields are decoded by the types of the old one
+        materialize();
         tupleDesc = td;
     }
 }
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,16 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
+        @Override
+        public void write(ByteBuffer buf, int offset, Field f) {
+            buf.putInt(offset, ((IntField) f).getValue());
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +53,32 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = Math.max(0, Math.min(buf.getInt(offset), STRING_LEN));
+            if (buf.hasArray()) {
+                return new StringField(new String(buf.array(), buf.arrayOffset() + offset + 4, strLen), STRING_LEN);
+            }
+            byte[] b = new byte[strLen];
+            buf.get(offset + 4, b);
+            return new StringField(new String(b), STRING_LEN);
+        }
+
+        @Override
+        public void write(ByteBuffer buf, int offset, Field f) {
+            String s = ((StringField) f).getValue();
+            int strLen = Math.min(s.length(), STRING_LEN);
+            buf.putInt(offset, strLen);
+            int pos = offset + 4;
+            // one byte per char, as StringField.serialize() does
+            for (int i = 0; i < strLen; i++) {
+                buf.put(pos + i, (byte) s.charAt(i));
+            }
+            for (int i = strLen; i < STRING_LEN; i++) {
+                buf.put(pos + i, (byte) 0);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +97,17 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object with the
+   *   contents that write() left at offset in buf, which may be a direct
+   *   buffer. buf itself is not changed.
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
+  /**
+   * Write f in the format that parse() reads, getLen() bytes at offset in
+   * buf.
+   */
+    public abstract void write(ByteBuffer buf, int offset, Field f);
+
 }
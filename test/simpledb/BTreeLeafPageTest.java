@@ -190,7 +190,7 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 	 */
 	@Test public void getNumEmptySlots() throws Exception {
 		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
-		assertEquals(482, page.getNumEmptySlots());
+		assertEquals(481, page.getNumEmptySlots());
 	}
 
 	/**
@@ -202,7 +202,7 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		for (int i = 0; i < 20; ++i)
 			assertTrue(page.isSlotUsed(i));
 
-		for (int i = 20; i < 502; ++i)
+		for (int i = 20; i < 501; ++i)
 			assertFalse(page.isSlotUsed(i));
 	}
 
@@ -262,7 +262,7 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		int free = page0.getNumEmptySlots();
 
 		// NOTE(ghuo): this nested loop existence check is slow, but it
-		// shouldn't make a difference for n = 502 slots.
+		// shouldn't make a difference for n = 501 slots.
 
 		for (int i = 0; i < free; ++i) {
 			Tuple addition = BTreeUtility.getBTreeTuple(i, 2);
@@ -336,6 +336,29 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * The before image is the page as setBeforeImage() left it, whatever
+	 * changed since.
+	 */
+	@Test public void beforeImage() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		page.setLSN(42);
+		page.setBeforeImage();
+		byte[] clean = page.getPageData();
+
+		page.setLSN(43);
+		page.setRightSiblingId(new BTreePageId(-1, 7, BTreePageId.LEAF));
+		page.insertTuple(BTreeUtility.getBTreeTuple(1, 2));
+		BTreeLeafPage before = page.getBeforeImage();
+		assertEquals(42, before.getLSN());
+		assertEquals(null, before.getRightSiblingId());
+		assertEquals(page.getNumEmptySlots() + 1, before.getNumEmptySlots());
+		assertTrue(Arrays.equals(clean, before.getPageData()));
+
+		page.setBeforeImage();
+		assertTrue(Arrays.equals(page.getPageData(), page.getBeforeImage().getPageData()));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,132 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BackgroundWriterTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 4;
+    private static final int TUPLES_PER_PAGE = 503;
+    private static final long TIMEOUT = 5000;
+
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, PAGES * TUPLES_PER_PAGE, null, null);
+        Database.resetBufferPool(2);
+        // the tests drive the writer themselves
+        Database.getBufferPool().stopBackgroundWriter();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().stopBackgroundWriter();
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /** Delete the first tuple on a page in a committed transaction. */
+    private void deleteOneAndCommit(int pgNo) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteOne(t.getId(), pgNo);
+        t.commit();
+    }
+
+    private void deleteOne(TransactionId tid, int pgNo) throws Exception {
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid(pgNo), Permissions.READ_WRITE);
+        p.deleteTuple(p.iterator().next());
+        p.markDirty(true, tid);
+    }
+
+    private int emptySlotsOnDisk(int pgNo) {
+        return ((HeapPage) hf.readPage(pid(pgNo))).getNumEmptySlots();
+    }
+
+    /**
+     * A commit only forces the log; the page is written back later.
+     */
+    @Test public void commitLeavesPageToWriter() throws Exception {
+        deleteOneAndCommit(0);
+        assertEquals(0, emptySlotsOnDisk(0));
+        assertEquals(1, Database.getBufferPool().getUnwrittenCount());
+
+        assertEquals(1, Database.getBufferPool().writeBackPages(new TransactionId(), 10));
+        assertEquals(1, emptySlotsOnDisk(0));
+        assertEquals(0, Database.getBufferPool().getUnwrittenCount());
+    }
+
+    /**
+     * A page locked by a running transaction is skipped by the writer.
+     */
+    @Test public void writerSkipsLockedPage() throws Exception {
+        deleteOneAndCommit(0);
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().getPage(tid, pid(0), Permissions.READ_WRITE);
+        assertEquals(0, Database.getBufferPool().writeBackPages(new TransactionId(), 10));
+        assertEquals(0, emptySlotsOnDisk(0));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, Database.getBufferPool().writeBackPages(new TransactionId(), 10));
+    }
+
+    /**
+     * Committed pages that are not on disk yet can still be evicted.
+     */
+    @Test public void evictsCommittedPages() throws Exception {
+        deleteOneAndCommit(0);
+        deleteOneAndCommit(1);
+        // the pool only has two frames
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().getPage(tid, pid(2), Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, Database.getBufferPool().getUnwrittenCount());
+        assertTrue(emptySlotsOnDisk(0) + emptySlotsOnDisk(1) == 1);
+    }
+
+    /**
+     * An abort goes back to the last committed version of the page, even
+     * if that version has not been written back.
+     */
+    @Test public void abortKeepsCommittedVersion() throws Exception {
+        deleteOneAndCommit(0);
+        Transaction t = new Transaction();
+        t.start();
+        deleteOne(t.getId(), 0);
+        t.abort();
+
+        TransactionId tid = new TransactionId();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid(0), Permissions.READ_ONLY);
+        assertEquals(1, p.getNumEmptySlots());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The writer thread writes committed pages back on its own.
+     */
+    @Test public void writerThreadWritesBack() throws Exception {
+        Database.getBufferPool().startBackgroundWriter(1.0, 10, 0);
+        deleteOneAndCommit(0);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (Database.getBufferPool().getUnwrittenCount() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(1, emptySlotsOnDisk(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BackgroundWriterTest.class);
+    }
+}
@@ -0,0 +1,164 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolLoadTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 8;
+    private static final int POOL_PAGES = 3;
+
+    /** A heap file whose reads are slow, and which counts them */
+    static class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        // the most pages resident or being read at once
+        final AtomicInteger maxInUse = new AtomicInteger();
+
+        SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            int inUse = inFlight.incrementAndGet();
+            for (int i = 0; i < numPages(); i++) {
+                if (Database.getBufferPool().isResident(new HeapPageId(getId(), i))) {
+                    inUse++;
+                }
+            }
+            maxInUse.accumulateAndGet(inUse, Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            inFlight.decrementAndGet();
+            return super.readPage(pid);
+        }
+    }
+
+    private SlowHeapFile createTable() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 991 * PAGES, 1000, null,
+                new ArrayList<ArrayList<Integer>>());
+        SlowHeapFile table = new SlowHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    /** Run one thread per pid, each reading its page in a transaction of its own */
+    private List<Page> getPages(List<PageId> pids) throws Exception {
+        final Page[] pages = new Page[pids.size()];
+        final Throwable[] errors = new Throwable[pids.size()];
+        Thread[] threads = new Thread[pids.size()];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            final PageId pid = pids.get(i);
+            threads[i] = new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    pages[n] = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                    Database.getBufferPool().transactionComplete(tid);
+                } catch (Throwable e) {
+                    errors[n] = e;
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (Throwable e : errors) {
+            if (e != null) {
+                throw new AssertionError(e);
+            }
+        }
+        return Arrays.asList(pages);
+    }
+
+    /**
+     * Concurrent misses on a page read it once, and all get the same Page.
+     */
+    @Test public void singleFlight() throws Exception {
+        SlowHeapFile table = createTable();
+        PageId pid = new HeapPageId(table.getId(), 0);
+        List<Page> pages = getPages(Collections.nCopies(5, pid));
+        assertEquals(1, table.reads.get());
+        for (Page p : pages) {
+            assertSame(pages.get(0), p);
+        }
+    }
+
+    /**
+     * Concurrent misses on different pages never hold more pages, resident
+     * or being read, than the pool has room for.
+     */
+    @Test public void capacity() throws Exception {
+        Database.resetBufferPool(POOL_PAGES);
+        SlowHeapFile table = createTable();
+        List<PageId> pids = new ArrayList<PageId>();
+        for (int i = 0; i < PAGES; i++) {
+            pids.add(new HeapPageId(table.getId(), i));
+        }
+        List<Page> pages = getPages(pids);
+        for (int i = 0; i < PAGES; i++) {
+            assertEquals(pids.get(i), pages.get(i).getId());
+        }
+        assertEquals(PAGES, table.reads.get());
+        assertTrue(table.maxInUse.get() + " pages in use", table.maxInUse.get() <= POOL_PAGES);
+    }
+
+    /**
+     * A page an insert hands back after it left the pool is put back in
+     * place of another page, not on top of a full pool.
+     */
+    @Test public void reinstallRespectsCapacity() throws Exception {
+        Database.resetBufferPool(POOL_PAGES);
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 991 * PAGES, 1000, null,
+                new ArrayList<ArrayList<Integer>>());
+        // inserts into the last page, as read past the pool
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(1)) {
+            @Override
+            public ArrayList<Page> insertTuple(TransactionId tid, Tuple t) throws DbException {
+                HeapPage p = (HeapPage) readPage(new HeapPageId(getId(), PAGES - 1));
+                p.deleteTuple(p.iterator().next());
+                p.insertTuple(t);
+                return new ArrayList<Page>(Collections.singletonList(p));
+            }
+        };
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < POOL_PAGES; i++) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        }
+        Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(1));
+
+        int resident = 0;
+        for (int i = 0; i < PAGES; i++) {
+            if (Database.getBufferPool().isResident(new HeapPageId(table.getId(), i))) {
+                resident++;
+            }
+        }
+        assertTrue(Database.getBufferPool().isResident(new HeapPageId(table.getId(), PAGES - 1)));
+        assertEquals(POOL_PAGES, resident);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolLoadTest.class);
+    }
+}
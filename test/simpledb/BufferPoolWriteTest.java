@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.After;
 import org.junit.Before;
@@ -65,20 +66,20 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
      * Unit test for BufferPool.insertTuple()
      */
     @Test public void insertTuple() throws Exception {
-        // we should be able to add 504 tuples on an empty page.
-        for (int i = 0; i < 504; ++i) {
+        // we should be able to add 503 tuples on an empty page.
+        for (int i = 0; i < 503; ++i) {
         	Tuple t = Utility.getHeapTuple(i, 2);
         	Database.getBufferPool().insertTuple(tid, empty.getId(), t);
         	HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_ONLY);
-        	assertEquals(504-i-1, p.getNumEmptySlots());
+        	assertEquals(503-i-1, p.getNumEmptySlots());
         }
 
-        // the next 504 additions should live on a new page
-        for (int i = 0; i < 504; ++i) {
+        // the next 503 additions should live on a new page
+        for (int i = 0; i < 503; ++i) {
         	Tuple t = Utility.getHeapTuple(i, 2);
         	Database.getBufferPool().insertTuple(tid, empty.getId(), t);
         	HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_ONLY);
-        	assertEquals(504-i-1, p.getNumEmptySlots());
+        	assertEquals(503-i-1, p.getNumEmptySlots());
         }
     }
     
@@ -88,7 +89,7 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     @Test public void deleteTuple() throws Exception {
 
     	// heap file should have ~10 pages
-    	HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+    	HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 503*10, null, null);
     	DbFileIterator it = hf.iterator(tid); 
     	it.open();
     	
@@ -100,17 +101,17 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	// clear the cache
     	Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
         
-    	// delete 504 tuples from the first page
-    	for (int i = 0; i < 504; ++i) {
+    	// delete 503 tuples from the first page
+    	for (int i = 0; i < 503; ++i) {
     		Tuple t = tuples.get(i);
         	Database.getBufferPool().deleteTuple(tid, t);
         	HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_ONLY);
         	assertEquals(i+1, p.getNumEmptySlots());
         }
     	
-    	// delete 504 tuples from the second page
-    	for (int i = 0; i < 504; ++i) {
-    		Tuple t = tuples.get(i+504);
+    	// delete 503 tuples from the second page
+    	for (int i = 0; i < 503; ++i) {
+    		Tuple t = tuples.get(i+503);
         	Database.getBufferPool().deleteTuple(tid, t);
         	HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_ONLY);
         	assertEquals(i+1, p.getNumEmptySlots());
@@ -134,6 +135,63 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A page an insert is changing is not stolen from under it, even when
+     * it is the only page that could be.
+     */
+    @Test public void pinnedPageNotStolen() throws Exception {
+        final CountDownLatch inside = new CountDownLatch(1), go = new CountDownLatch(1);
+        HeapFile blocking = new HeapFile(empty.getFile(), empty.getTupleDesc()) {
+            @Override
+            public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+                    throws DbException, IOException, TransactionAbortedException {
+                ArrayList<Page> pages = super.insertTuple(tid, t);
+                inside.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    throw new DbException("interrupted");
+                }
+                return pages;
+            }
+        };
+        Database.getCatalog().addTable(blocking, SystemTestUtil.getUUID());
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Database.resetBufferPool(1);
+
+        // the log knows the inserter, so its pages could be stolen
+        Transaction inserter = new Transaction();
+        inserter.start();
+        final Throwable[] error = new Throwable[1];
+        Thread t = new Thread(() -> {
+            try {
+                Database.getBufferPool().insertTuple(inserter.getId(), blocking.getId(),
+                        Utility.getHeapTuple(1, 2));
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        });
+        t.start();
+        inside.await();
+
+        HeapPageId inUse = new HeapPageId(blocking.getId(), 0);
+        try {
+            Database.getBufferPool().getPage(tid, new HeapPageId(other.getId(), 0), Permissions.READ_ONLY);
+            fail("the only page is in use, so there should be no room");
+        } catch (DbException e) {
+            // expected
+        }
+        assertTrue(Database.getBufferPool().isResident(inUse));
+
+        go.countDown();
+        t.join();
+        assertNull(error[0]);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(inserter.getId(), inUse, Permissions.READ_ONLY);
+        assertEquals(inserter.getId(), p.isDirty());
+        assertEquals(502, p.getNumEmptySlots());
+        inserter.commit();
+    }
+
     /**
      * JUnit suite target
      */
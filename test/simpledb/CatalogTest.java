@@ -2,6 +2,8 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -93,6 +95,27 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Check that loadSchema picks the page format of each table
+     */
+    @Test public void loadSchemaFormats() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        String plain = SystemTestUtil.getUUID(), heap = SystemTestUtil.getUUID(), slotted = SystemTestUtil.getUUID();
+        PrintWriter out = new PrintWriter(schema);
+        out.println(plain + " (id int pk, name string)");
+        out.println(heap + " (id int, name string) heap");
+        out.println(slotted + " (id int, name string) slotted");
+        out.close();
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+
+        Catalog c = Database.getCatalog();
+        assertEquals(HeapFile.class, c.getDatabaseFile(c.getTableId(plain)).getClass());
+        assertEquals("id", c.getPrimaryKey(c.getTableId(plain)));
+        assertEquals(HeapFile.class, c.getDatabaseFile(c.getTableId(heap)).getClass());
+        assertEquals(SlottedHeapFile.class, c.getDatabaseFile(c.getTableId(slotted)).getClass());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,104 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    private static final int MAP_SIZE = 50;
+
+    /** A scan that counts how often it is rewound */
+    static class CountingScan extends SeqScan {
+        private static final long serialVersionUID = 1L;
+        int rewinds = 0;
+
+        CountingScan(TransactionId tid, int tableId) {
+            super(tid, tableId, "");
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            rewinds++;
+            super.rewind();
+        }
+    }
+
+    /**
+     * Check that a hash join of two tables gives the rows a nested loops
+     * join gives, again after a rewind, and reads each child once.
+     */
+    private void check(HeapFile left, ArrayList<ArrayList<Integer>> leftTuples,
+            HeapFile right, ArrayList<ArrayList<Integer>> rightTuples) throws Exception {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : leftTuples) {
+            for (ArrayList<Integer> t2 : rightTuples) {
+                if (t1.get(0).equals(t2.get(0))) {
+                    ArrayList<Integer> row = new ArrayList<Integer>(t1);
+                    row.addAll(t2);
+                    expected.add(row);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        CountingScan ss1 = new CountingScan(tid, left.getId());
+        CountingScan ss2 = new CountingScan(tid, right.getId());
+        HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), ss1, ss2, MAP_SIZE);
+        SystemTestUtil.matchTuplesAndRewind(op, expected);
+        // the children are rewound with the join, and never within a pass
+        assertEquals(1, ss1.rewinds);
+        assertEquals(1, ss2.rewinds);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A left child many times the size of the hash table is partitioned.
+     */
+    @Test public void partitioned() throws Exception {
+        ArrayList<ArrayList<Integer>> leftTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, leftTuples);
+        ArrayList<ArrayList<Integer>> rightTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile right = SystemTestUtil.createRandomHeapFile(3, 1500, 700, null, rightTuples);
+        check(left, leftTuples, right, rightTuples);
+    }
+
+    /**
+     * A key with more left tuples than the hash table holds is joined in
+     * blocks.
+     */
+    @Test public void skewed() throws Exception {
+        Map<Integer, Integer> key = new HashMap<Integer, Integer>();
+        key.put(0, 7);
+        ArrayList<ArrayList<Integer>> leftTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 400, key, leftTuples);
+        ArrayList<ArrayList<Integer>> rightTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile right = SystemTestUtil.createRandomHeapFile(3, 100, 10, null, rightTuples);
+        check(left, leftTuples, right, rightTuples);
+    }
+
+    /**
+     * A left child that fits is joined in memory.
+     */
+    @Test public void inMemory() throws Exception {
+        ArrayList<ArrayList<Integer>> leftTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 4, 4, null, leftTuples);
+        ArrayList<ArrayList<Integer>> rightTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile right = SystemTestUtil.createRandomHeapFile(3, 4, 4, null, rightTuples);
+        check(left, leftTuples, right, rightTuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
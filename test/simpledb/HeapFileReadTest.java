@@ -72,11 +72,43 @@ public class HeapFileReadTest extends SimpleDbTestBase {
 
         // NOTE(ghuo): we try not to dig too deeply into the Page API here; we
         // rely on HeapPageTest for that. perform some basic checks.
-        assertEquals(484, page.getNumEmptySlots());
+        assertEquals(483, page.getNumEmptySlots());
         assertTrue(page.isSlotUsed(1));
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Reads share a buffer, so a page past the end of the file must not see
+     * what the previous read left in it.
+     */
+    @Test
+    public void readPagePastEnd() throws Exception {
+        hf.readPage(new HeapPageId(hf.getId(), 0));
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1));
+        assertEquals(503, page.getNumEmptySlots());
+        assertFalse(page.isSlotUsed(1));
+    }
+
+    /**
+     * The cached page count follows pages written through the HeapFile.
+     */
+    @Test
+    public void numPagesAfterWrite() throws Exception {
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 1), HeapPage.createEmptyPageData());
+        hf.writePage(page);
+        assertEquals(2, hf.numPages());
+
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count += 1;
+        }
+        assertEquals(20, count);
+        it.close();
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
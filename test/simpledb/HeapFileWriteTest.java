@@ -1,9 +1,19 @@
 package simpledb;
 
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import simpledb.systemtest.SystemTestUtil;
+
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
@@ -25,14 +35,14 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
      * Unit test for HeapFile.addTuple()
      */
     @Test public void addTuple() throws Exception {
-        // we should be able to add 504 tuples on an empty page.
-        for (int i = 0; i < 504; ++i) {
+        // we should be able to add 503 tuples on an empty page.
+        for (int i = 0; i < 503; ++i) {
             empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
             assertEquals(1, empty.numPages());
         }
 
         // the next 512 additions should live on a new page
-        for (int i = 0; i < 504; ++i) {
+        for (int i = 0; i < 503; ++i) {
             empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
             assertEquals(2, empty.numPages());
         }
@@ -42,6 +52,194 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Fill the first two pages of the table and commit.
+     * @return a tuple that was inserted on page 0
+     */
+    private Tuple fillTwoPages() throws Exception {
+        Tuple first = null;
+        for (int i = 0; i < 503 * 2; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+            if (first == null)
+                first = t;
+        }
+        assertEquals(2, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        return first;
+    }
+
+    /**
+     * An insert goes straight to the page that has room, and only locks
+     * that page.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        Tuple onFirstPage = fillTwoPages();
+        HeapPageId p0 = new HeapPageId(empty.getId(), 0);
+        HeapPageId p1 = new HeapPageId(empty.getId(), 1);
+
+        Database.getBufferPool().deleteTuple(tid, onFirstPage);
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        Tuple t = Utility.getHeapTuple(42, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+        assertEquals(p0, t.getRecordId().getPageId());
+        assertTrue(Database.getBufferPool().holdsLock(tid, p0));
+        assertFalse(Database.getBufferPool().holdsLock(tid, p1));
+        assertEquals(2, empty.numPages());
+
+        // the table is full again, so the next insert appends a page
+        // without touching the full ones
+        t = Utility.getHeapTuple(43, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+        assertEquals(2, t.getRecordId().getPageId().getPageNumber());
+        assertFalse(Database.getBufferPool().holdsLock(tid, p1));
+    }
+
+    /**
+     * The free space map survives reopening the table.
+     */
+    @Test public void freeSpaceMapPersists() throws Exception {
+        fillTwoPages();
+
+        Database.reset();
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(42, 2);
+        Database.getBufferPool().insertTuple(tid, reopened.getId(), t);
+        assertEquals(2, t.getRecordId().getPageId().getPageNumber());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(reopened.getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(reopened.getId(), 1)));
+    }
+
+    /**
+     * Reading the page count while inserts append pages never lowers it,
+     * so no page number is handed out twice and no committed tuple is
+     * written over.
+     */
+    @Test public void numPagesDuringInserts() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] readers = new Thread[3];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                while (!done.get()) {
+                    empty.numPages();
+                }
+            });
+            readers[i].start();
+        }
+        int pages = 40;
+        try {
+            for (int i = 0; i < 503 * pages; ++i) {
+                Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+                if (i % 503 == 502) {
+                    Database.getBufferPool().transactionComplete(tid);
+                    tid = new TransactionId();
+                }
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        assertEquals(pages, empty.numPages());
+
+        int count = 0;
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(503 * pages, count);
+    }
+
+    /**
+     * @return the number of descriptors this process has open on the heap
+     *     file or its free space map
+     */
+    private int openDescriptors() throws Exception {
+        File[] fds = new File("/proc/self/fd").listFiles();
+        Assume.assumeTrue(fds != null);
+        String dat = empty.getFile().getCanonicalPath();
+        String fsm = FreeSpaceMap.sideFile(empty.getFile()).getCanonicalPath();
+        int n = 0;
+        for (File fd : fds) {
+            try {
+                String target = fd.toPath().toRealPath().toString();
+                if (target.equals(dat) || target.equals(fsm)) {
+                    n++;
+                }
+            } catch (java.io.IOException e) {
+                // closed while listing
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Resetting the database closes the files of its tables.
+     */
+    @Test public void resetClosesFiles() throws Exception {
+        fillTwoPages();
+        assertEquals(2, openDescriptors());
+
+        Database.reset();
+        assertEquals(0, openDescriptors());
+
+        // and a table that is used again opens its file again
+        tid = new TransactionId();
+        Database.getCatalog().addTable(empty);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(42, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, openDescriptors());
+    }
+
+    /**
+     * Creates a temporary table that has a free space map, the way the
+     * tests do, and prints the paths of its files. Run in a virtual machine
+     * of its own by tempTableLeavesNoFiles().
+     */
+    public static class TempTable {
+        public static void main(String[] args) throws Exception {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, null, new ArrayList<ArrayList<Integer>>());
+            File fsm = FreeSpaceMap.sideFile(f.getFile());
+            if (!fsm.exists()) {
+                throw new IllegalStateException("no free space map at " + fsm);
+            }
+            System.out.println(f.getFile().getAbsolutePath());
+            System.out.println(fsm.getAbsolutePath());
+        }
+    }
+
+    /**
+     * A temporary table takes its free space map with it when the virtual
+     * machine exits.
+     */
+    @Test public void tempTableLeavesNoFiles() throws Exception {
+        Process p = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), TempTable.class.getName())
+                .redirectErrorStream(true).start();
+        List<String> lines = new ArrayList<String>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        assertEquals(lines.toString(), 0, p.waitFor());
+        List<String> paths = lines.subList(lines.size() - 2, lines.size());
+        for (String path : paths) {
+            assertFalse(path + " left behind", new File(path).exists());
+        }
+        assertTrue(paths.get(1).endsWith(".fsm"));
+    }
+
     /**
      * JUnit suite target
      */
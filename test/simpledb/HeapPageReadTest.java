@@ -56,7 +56,7 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         // Convert it to a HeapFile and read in the bytes
         try {
             File temp = File.createTempFile("table", ".dat");
-            temp.deleteOnExit();
+            HeapFile.deleteOnExit(temp);
             HeapFileEncoder.convert(table, temp, BufferPool.getPageSize(), 2);
             EXAMPLE_DATA = TestUtil.readFileBytes(temp.getAbsolutePath());
         } catch (IOException e) {
@@ -104,7 +104,7 @@ public class HeapPageReadTest extends SimpleDbTestBase {
      */
     @Test public void getNumEmptySlots() throws Exception {
         HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
-        assertEquals(484, page.getNumEmptySlots());
+        assertEquals(483, page.getNumEmptySlots());
     }
 
     /**
@@ -116,10 +116,48 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         for (int i = 0; i < 20; ++i)
             assertTrue(page.isSlotUsed(i));
 
-        for (int i = 20; i < 504; ++i)
+        for (int i = 20; i < 503; ++i)
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Tuples decode a field only when it is asked for.
+     */
+    @Test public void lazyFields() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Tuple tup = page.iterator().next();
+        assertTrue(tup.fields == null);
+
+        assertEquals(EXAMPLE_VALUES[0][1], ((IntField) tup.getField(1)).getValue());
+        assertTrue(tup.fields[0] == null);
+        assertEquals(new RecordId(pid, 0), tup.getRecordId());
+        assertEquals(EXAMPLE_VALUES[0][0], ((IntField) tup.getField(0)).getValue());
+    }
+
+    /**
+     * A tuple keeps the values it was read with after its slot is emptied
+     * and reused.
+     */
+    @Test public void tuplesSurviveChanges() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Tuple tup = page.iterator().next();
+        byte[] before = page.getPageData();
+
+        page.deleteTuple(tup);
+        Tuple other = Utility.getHeapTuple(new int[] { 1, 2 });
+        page.insertTuple(other);
+        assertEquals(tup.getRecordId(), other.getRecordId());
+
+        assertEquals(EXAMPLE_VALUES[0][0], ((IntField) tup.getField(0)).getValue());
+        assertEquals(EXAMPLE_VALUES[0][1], ((IntField) tup.getField(1)).getValue());
+        Tuple reread = page.iterator().next();
+        assertEquals(1, ((IntField) reread.getField(0)).getValue());
+        assertFalse(Arrays.equals(before, page.getPageData()));
+
+        // and the page data round trips
+        assertTrue(Arrays.equals(page.getPageData(), new HeapPage(pid, page.getPageData()).getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
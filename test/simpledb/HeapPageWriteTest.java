@@ -1,9 +1,12 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -53,7 +56,7 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         int free = page.getNumEmptySlots();
 
         // NOTE(ghuo): this nested loop existence check is slow, but it
-        // shouldn't make a difference for n = 504 slots.
+        // shouldn't make a difference for n = 503 slots.
 
         for (int i = 0; i < free; ++i) {
             Tuple addition = Utility.getHeapTuple(i, 2);
@@ -127,6 +130,66 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The page writes the bytes of getPageData() into a buffer that holds
+     * other data, and outside its dirty range they are the before image.
+     */
+    @Test public void writePageData() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertArrayEquals(new int[] { 0, 0 }, page.getDirtyRange());
+
+        Iterator<Tuple> it = page.iterator();
+        it.next();
+        page.deleteTuple(it.next());
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.setLSN(42);
+        byte[] expected = page.getPageData();
+
+        ByteBuffer buf = ByteBuffer.allocate(expected.length + 10);
+        Arrays.fill(buf.array(), (byte) 0x5a);
+        buf.position(10);
+        page.writePageData(buf);
+        assertEquals(buf.capacity(), buf.position());
+        assertArrayEquals(expected, Arrays.copyOfRange(buf.array(), 10, buf.capacity()));
+
+        byte[] before = page.getBeforeImageData();
+        int[] dirty = page.getDirtyRange();
+        assertTrue(dirty[0] < dirty[1]);
+        for (int i = 0; i < expected.length; i++) {
+            if (i < dirty[0] || i >= dirty[1]) {
+                assertEquals("byte " + i, before[i], expected[i]);
+            }
+        }
+        assertEquals(PageDelta.diff(before, expected).changedBytes(),
+                PageDelta.diff(before, expected, dirty[0], dirty[1]).changedBytes());
+
+        page.setBeforeImage();
+        assertArrayEquals(new int[] { 0, 0 }, page.getDirtyRange());
+        assertArrayEquals(expected, page.getBeforeImageData());
+    }
+
+    /**
+     * The before image is the page bytes themselves until the page first
+     * changes, and only then a copy of its own.
+     */
+    @Test public void beforeImageCopyOnWrite() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.setLSN(42);
+        page.setBeforeImage();
+        byte[] clean = page.getPageData();
+        assertTrue(page.getBeforeImageData() == page.getBeforeImageData());
+        assertArrayEquals(clean, page.getBeforeImageData());
+
+        page.setLSN(43);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        assertArrayEquals(clean, page.getBeforeImageData());
+        assertEquals(42, page.getBeforeImage().getLSN());
+        assertEquals(page.getNumEmptySlots() + 1, page.getBeforeImage().getNumEmptySlots());
+
+        page.setBeforeImage();
+        assertArrayEquals(page.getPageData(), page.getBeforeImageData());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,131 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 5000;
+    private static final int MAX_KEY = 2000;
+
+    private BTreeFile inner;
+    private ArrayList<ArrayList<Integer>> innerTuples;
+    private TransactionId tid;
+
+    @Before public void createTree() throws Exception {
+        // enough rows for several leaves, and several rows per key
+        innerTuples = new ArrayList<ArrayList<Integer>>();
+        inner = BTreeUtility.createRandomBTreeFile(2, ROWS, MAX_KEY, null, innerTuples, 0);
+        tid = new TransactionId();
+    }
+
+    /**
+     * Check that an index join of outer rows of two columns with the tree
+     * gives the rows a nested loops join gives, again after a rewind,
+     * sorting the outer child or not.
+     */
+    private void check(Predicate.Op op, int outerRows, int maxKey) throws Exception {
+        ArrayList<ArrayList<Integer>> outerTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, outerRows, maxKey, null, outerTuples);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : outerTuples) {
+            for (ArrayList<Integer> t2 : innerTuples) {
+                if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+                    ArrayList<Integer> row = new ArrayList<Integer>(t1);
+                    row.addAll(t2);
+                    expected.add(row);
+                }
+            }
+        }
+
+        for (boolean sortOuter : new boolean[] { false, true }) {
+            IndexNestedLoopJoin join = new IndexNestedLoopJoin(new JoinPredicate(0, op, 0),
+                    new SeqScan(tid, outer.getId(), "o"), new BTreeScan(tid, inner.getId(), "t", null), sortOuter);
+            SystemTestUtil.matchTuplesAndRewind(join, expected);
+        }
+    }
+
+    /**
+     * Equality joins, with keys that repeat, come out of order, and are
+     * missing from the tree.
+     */
+    @Test public void equality() throws Exception {
+        check(Predicate.Op.EQUALS, 300, MAX_KEY + 100);
+    }
+
+    /**
+     * Range joins search the tree with the operator mirrored.
+     */
+    @Test public void range() throws Exception {
+        check(Predicate.Op.LESS_THAN, 3, MAX_KEY);
+        check(Predicate.Op.GREATER_THAN_OR_EQ, 3, MAX_KEY);
+    }
+
+    /**
+     * Closing the join closes the outer child once, whether it was sorted
+     * or not, and closing a join that was never opened is harmless.
+     */
+    @Test public void closeOuterOnce() throws Exception {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 10; i++) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        final int[] closes = new int[1];
+        TupleIterator child1 = new TupleIterator(Utility.getTupleDesc(2), tuples) {
+            private static final long serialVersionUID = 1L;
+
+            public void close() {
+                super.close();
+                closes[0]++;
+            }
+        };
+        for (boolean sortOuter : new boolean[] { false, true }) {
+            closes[0] = 0;
+            IndexNestedLoopJoin op = new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                    child1, new BTreeScan(tid, inner.getId(), "t", null), sortOuter);
+            op.close();
+            op.open();
+            op.close();
+            assertEquals(2, closes[0]);
+        }
+    }
+
+    /**
+     * Searches on an open scan find what new scans find, whether they start
+     * from the leaf the search before ended on or from the root.
+     */
+    @Test public void reuseSearch() throws Exception {
+        int[] searches = new int[] { MAX_KEY / 2, MAX_KEY / 2, MAX_KEY / 2 + 1,
+                MAX_KEY / 2 + 50, 3, 0, MAX_KEY, MAX_KEY + 1 };
+        BTreeScan reused = new BTreeScan(tid, inner.getId(), "t", null);
+        for (int i = 0; i < searches.length; i++) {
+            IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS, new IntField(searches[i]));
+            if (i == 0) {
+                reused.open(ipred);
+            } else {
+                reused.rewind(ipred);
+            }
+            BTreeScan fresh = new BTreeScan(tid, inner.getId(), "t", ipred);
+            fresh.open();
+            TestUtil.compareDbIterators(fresh, reused);
+            fresh.close();
+        }
+        reused.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
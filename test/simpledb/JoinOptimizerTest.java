@@ -37,7 +37,7 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
             ArrayList<ArrayList<Integer>> tuples, int columns, String colPrefix)
             throws IOException {
         File temp = File.createTempFile("table", ".dat");
-        temp.deleteOnExit();
+        HeapFile.deleteOnExit(temp);
         HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), columns);
         return Utility.openHeapFile(columns, colPrefix, temp);
     }
@@ -205,6 +205,92 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertEquals(Boolean.TRUE, ret[0]);
     }
 
+    /**
+     * Verify that orderJoins() picks a physical join for each join, and that
+     * instantiateJoin() builds it: a hash join for an equality, and the
+     * block join otherwise
+     */
+    @Test
+    public void physicalJoinTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT * FROM "
+                + tableName1 + " t1, " + tableName2
+                + " t2 WHERE t1.c1 = t2.c2;");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName1, stats1);
+        stats.put(tableName2, stats2);
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        filterSelectivities.put("t1", 1.0);
+        filterSelectivities.put("t2", 1.0);
+
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS));
+        LogicalJoinNode j = new JoinOptimizer(lp, nodes).orderJoins(stats,
+                filterSelectivities, false).get(0);
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.HASH, j.algorithm);
+        Assert.assertTrue(instantiate(j) instanceof HashEquiJoin);
+
+        nodes.set(0, new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.LESS_THAN));
+        j = new JoinOptimizer(lp, nodes).orderJoins(stats,
+                filterSelectivities, false).get(0);
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.BLOCK_SORT, j.algorithm);
+        Assert.assertTrue(instantiate(j) instanceof Join);
+    }
+
+    /**
+     * Verify that a join with a small outer side and a table with a B+ tree
+     * on the join field becomes an index nested-loop join, and that other
+     * joins do not
+     */
+    @Test
+    public void indexJoinTest() throws Exception {
+        BTreeFile created = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+        BTreeFile bt = BTreeUtility.openBTreeFile(2, "c", created.getFile(), 0);
+        Database.getCatalog().addTable(bt, "BT");
+        TableStats btStats = new TableStats(bt.getId(), 19);
+
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, BT t2 WHERE t1.c1 = t2.c0;"),
+                new Vector<LogicalJoinNode>());
+        LogicalJoinNode onKey = new LogicalJoinNode("t1", "t2", "c1", "c0", Predicate.Op.EQUALS);
+        LogicalJoinNode offKey = new LogicalJoinNode("t1", "t2", "c1", "c1", Predicate.Op.EQUALS);
+        int btCard = btStats.estimateTableCardinality(1.0);
+        double btCost = btStats.estimateScanCost();
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.INDEX,
+                jo.chooseJoin(onKey, 1, btCard, 5.0, btCost));
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.HASH,
+                jo.chooseJoin(offKey, 1, btCard, 5.0, btCost));
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.HASH,
+                jo.chooseJoin(onKey, 15000, btCard, stats1.estimateScanCost(), btCost));
+
+        // a filter on the table leaves no plain scan of it to search
+        jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM "
+                + tableName1 + " t1, BT t2 WHERE t1.c1 = t2.c0 AND t2.c1 > 5;"),
+                new Vector<LogicalJoinNode>());
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.HASH,
+                jo.chooseJoin(onKey, 1, btCard, 5.0, btCost));
+
+        // the index join replaces a plain scan of the table, and anything
+        // else on the right is hashed
+        onKey.algorithm = JoinOptimizer.JoinAlgorithm.INDEX;
+        OpIterator outer = new TupleIterator(Utility.getTupleDesc(10, "t1.c"), new ArrayList<Tuple>());
+        OpIterator j = JoinOptimizer.instantiateJoin(onKey, outer, new SeqScan(tid, bt.getId(), "t2"));
+        Assert.assertTrue(j instanceof IndexNestedLoopJoin);
+        Assert.assertTrue(((IndexNestedLoopJoin) j).getChildren()[1] instanceof BTreeScan);
+        Assert.assertEquals(0, ((IndexNestedLoopJoin) j).getJoinPredicate().getField2());
+        Assert.assertTrue(instantiate(onKey) instanceof HashEquiJoin);
+    }
+
+    private OpIterator instantiate(LogicalJoinNode j) throws ParsingException {
+        // inputs with the quantified field names of the two tables
+        return JoinOptimizer.instantiateJoin(j,
+                new TupleIterator(Utility.getTupleDesc(10, j.t1Alias + ".c"), new ArrayList<Tuple>()),
+                new TupleIterator(Utility.getTupleDesc(10, j.t2Alias + ".c"), new ArrayList<Tuple>()));
+    }
+
     /**
      * Verify that the join cardinalities produced by estimateJoinCardinality()
      * are reasonable
@@ -0,0 +1,230 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    /** Time to wait before checking the state of lock contention, in ms */
+    private static final int WAIT = 100;
+    private static final long LONG_TIMEOUT = 60 * 1000;
+
+    private LockManager lm;
+    private PageId p0, p1;
+
+    /**
+     * Acquires a lock in a separate thread.
+     */
+    private class Requester extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final LockManager.LockType type;
+        volatile boolean acquired = false;
+        volatile Exception error = null;
+
+        Requester(TransactionId tid, PageId pid, LockManager.LockType type) {
+            this.tid = tid;
+            this.pid = pid;
+            this.type = type;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                lm.acquireLock(tid, pid, type, LONG_TIMEOUT);
+                acquired = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    private Requester request(TransactionId tid, PageId pid, LockManager.LockType type) throws Exception {
+        Requester r = new Requester(tid, pid, type);
+        r.start();
+        Thread.sleep(WAIT);
+        return r;
+    }
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager(16, 16);
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /**
+     * A shared request that arrives after a queued exclusive request must
+     * wait behind it rather than join the current shared holders.
+     */
+    @Test public void fifoNoBarging() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+
+        lm.acquireLock(t1, p0, LockManager.LockType.ShareLock, LONG_TIMEOUT);
+        Requester x = request(t2, p0, LockManager.LockType.ExclusiveLock);
+        Requester s = request(t3, p0, LockManager.LockType.ShareLock);
+        assertFalse(x.acquired);
+        assertFalse(s.acquired);
+
+        lm.releaseLocksOnTransaction(t1);
+        x.join(LONG_TIMEOUT);
+        assertTrue(x.acquired);
+        Thread.sleep(WAIT);
+        assertFalse(s.acquired);
+
+        lm.releaseLocksOnTransaction(t2);
+        s.join(LONG_TIMEOUT);
+        assertTrue(s.acquired);
+        assertTrue(lm.holdsLock(t3, p0));
+        assertFalse(lm.holdsLock(t2, p0));
+    }
+
+    /**
+     * An upgrade goes ahead of exclusive requests that were already queued.
+     */
+    @Test public void upgradeJumpsQueue() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+
+        lm.acquireLock(t1, p0, LockManager.LockType.ShareLock, LONG_TIMEOUT);
+        lm.acquireLock(t2, p0, LockManager.LockType.ShareLock, LONG_TIMEOUT);
+        Requester x = request(t3, p0, LockManager.LockType.ExclusiveLock);
+        Requester upgrade = request(t1, p0, LockManager.LockType.ExclusiveLock);
+        assertFalse(x.acquired);
+        assertFalse(upgrade.acquired);
+
+        lm.releaseLocksOnTransaction(t2);
+        upgrade.join(LONG_TIMEOUT);
+        assertTrue(upgrade.acquired);
+        assertFalse(x.acquired);
+
+        lm.releaseLocksOnTransaction(t1);
+        x.join(LONG_TIMEOUT);
+        assertTrue(x.acquired);
+    }
+
+    /**
+     * Locks on different pages are independent.
+     */
+    @Test public void independentPages() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+
+        lm.acquireLock(t1, p0, LockManager.LockType.ExclusiveLock, LONG_TIMEOUT);
+        Requester r = request(t2, p1, LockManager.LockType.ExclusiveLock);
+        r.join(LONG_TIMEOUT);
+        assertTrue(r.acquired);
+        assertEquals(1, lm.getLockList(t1).size());
+        assertEquals(1, lm.getLockList(t2).size());
+    }
+
+    /**
+     * A request that times out leaves the queue, and requests behind it can
+     * proceed.
+     */
+    @Test public void timeoutLeavesQueue() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+
+        lm.acquireLock(t1, p0, LockManager.LockType.ExclusiveLock, LONG_TIMEOUT);
+        try {
+            lm.acquireLock(t2, p0, LockManager.LockType.ShareLock, WAIT);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(lm.holdsLock(t2, p0));
+        lm.releaseLocksOnTransaction(t1);
+        lm.acquireLock(t2, p0, LockManager.LockType.ExclusiveLock, WAIT);
+        assertTrue(lm.holdsLock(t2, p0));
+        assertNull(lm.getLockList(t1));
+    }
+
+    /**
+     * The request that closes a deadlock aborts immediately when it belongs
+     * to the youngest transaction on the cycle.
+     */
+    @Test public void deadlockAbortsYoungestCloser() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+
+        lm.acquireLock(older, p0, LockManager.LockType.ExclusiveLock);
+        lm.acquireLock(younger, p1, LockManager.LockType.ExclusiveLock);
+        Requester r = request(older, p1, LockManager.LockType.ExclusiveLock);
+        assertFalse(r.acquired);
+
+        long start = System.currentTimeMillis();
+        try {
+            lm.acquireLock(younger, p0, LockManager.LockType.ShareLock);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < WAIT);
+
+        lm.releaseLocksOnTransaction(younger);
+        r.join(LONG_TIMEOUT);
+        assertTrue(r.acquired);
+        assertNull(r.error);
+    }
+
+    /**
+     * When an older transaction closes the cycle, the younger waiter is
+     * woken up and aborted instead.
+     */
+    @Test public void deadlockWakesYoungestVictim() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+
+        lm.acquireLock(older, p0, LockManager.LockType.ShareLock);
+        lm.acquireLock(younger, p1, LockManager.LockType.ShareLock);
+        Requester victim = request(younger, p0, LockManager.LockType.ExclusiveLock);
+        Requester survivor = request(older, p1, LockManager.LockType.ExclusiveLock);
+
+        victim.join(LONG_TIMEOUT);
+        assertFalse(victim.acquired);
+        assertTrue(victim.error instanceof TransactionAbortedException);
+        assertFalse(survivor.acquired);
+
+        lm.releaseLocksOnTransaction(younger);
+        survivor.join(LONG_TIMEOUT);
+        assertTrue(survivor.acquired);
+    }
+
+    /**
+     * Two shared holders that both try to upgrade deadlock; only one of
+     * them is aborted.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+
+        lm.acquireLock(older, p0, LockManager.LockType.ShareLock);
+        lm.acquireLock(younger, p0, LockManager.LockType.ShareLock);
+        Requester survivor = request(older, p0, LockManager.LockType.ExclusiveLock);
+        try {
+            lm.acquireLock(younger, p0, LockManager.LockType.ExclusiveLock);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseLocksOnTransaction(younger);
+        survivor.join(LONG_TIMEOUT);
+        assertTrue(survivor.acquired);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,178 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogBufferTest {
+
+    private static final long SEGMENT_SIZE = 64 * 1024;
+    private static final long START = 2 * SEGMENT_SIZE;
+
+    private File log;
+    private LogSegments segments;
+
+    @Before public void setUp() throws Exception {
+        log = File.createTempFile("buftest", "");
+        segments = new LogSegments(log, SEGMENT_SIZE);
+        segments.deleteAll();
+    }
+
+    @After public void tearDown() throws Exception {
+        segments.deleteAll();
+        segments.close();
+        log.delete();
+    }
+
+    /** @return a body of len bytes that depends on tid */
+    private static byte[] body(long tid, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = (byte) (tid + i);
+        }
+        return b;
+    }
+
+    /**
+     * Read the records from START to end back from the segments, checking
+     * that each one ends with its own offset and has the body that its
+     * transaction id says it should.
+     *
+     * @return the transaction ids of the records, in log order
+     */
+    private List<Long> readBack(long end, int bodyLen) throws IOException {
+        LogSegments.Reader in = segments.new Reader();
+        in.setLimit(end);
+        in.seek(START);
+        List<Long> tids = new ArrayList<Long>();
+        while (in.getFilePointer() < end) {
+            long offset = in.getFilePointer();
+            assertEquals(LogFile.UPDATE_RECORD, in.readInt());
+            long tid = in.readLong();
+            byte[] b = new byte[bodyLen];
+            in.readFully(b);
+            assertArrayEquals(body(tid, bodyLen), b);
+            assertEquals(offset, in.readLong());
+            tids.add(tid);
+        }
+        return tids;
+    }
+
+    /**
+     * Records that wrap around the end of the ring come out whole.
+     */
+    @Test public void wrapAround() throws Exception {
+        int bodyLen = 100;
+        LogBuffer buffer = new LogBuffer(1000);
+        buffer.reset(START);
+        for (long tid = 0; tid < 50; tid++) {
+            long lsn = buffer.append(LogFile.UPDATE_RECORD, tid, body(tid, bodyLen), bodyLen, segments);
+            assertEquals(START + tid * LogBuffer.recordSize(bodyLen), lsn);
+            buffer.drain(segments);
+        }
+        assertEquals(buffer.end(), buffer.drained());
+        List<Long> tids = readBack(buffer.end(), bodyLen);
+        assertEquals(50, tids.size());
+        for (int i = 0; i < tids.size(); i++) {
+            assertEquals(i, (long) tids.get(i));
+        }
+    }
+
+    /**
+     * An appender that finds the ring full drains it itself, so appends go
+     * on without anybody else draining.
+     */
+    @Test public void fullRingDrainsItself() throws Exception {
+        int bodyLen = 100;
+        LogBuffer buffer = new LogBuffer(1000);
+        buffer.reset(START);
+        for (long tid = 0; tid < 50; tid++) {
+            buffer.append(LogFile.UPDATE_RECORD, tid, body(tid, bodyLen), bodyLen, segments);
+            assertTrue(buffer.end() - buffer.drained() <= 1000);
+        }
+        assertTrue(buffer.drained() > START);
+        assertEquals(buffer.end(), buffer.drainTo(buffer.end(), segments));
+        assertEquals(50, readBack(buffer.end(), bodyLen).size());
+    }
+
+    /**
+     * Appends from many threads at once each get a record of their own,
+     * and every one of them ends up in the segments, while another thread
+     * keeps draining.
+     */
+    @Test public void concurrentAppends() throws Exception {
+        final int threads = 8;
+        final int perThread = 500;
+        final int bodyLen = 50;
+        final LogBuffer buffer = new LogBuffer(4096);
+        buffer.reset(START);
+        final Set<Long> lsns = Collections.synchronizedSet(new HashSet<Long>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread[] appenders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t * perThread;
+            appenders[t] = new Thread(() -> {
+                try {
+                    for (long tid = first; tid < first + perThread; tid++) {
+                        lsns.add(buffer.append(LogFile.UPDATE_RECORD, tid, body(tid, bodyLen), bodyLen, segments));
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+        }
+        // not an interrupt: that would close the segment a drain is writing
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread drainer = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    buffer.drain(segments);
+                    Thread.yield();
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        drainer.start();
+        for (Thread t : appenders) {
+            t.start();
+        }
+        for (Thread t : appenders) {
+            t.join();
+        }
+        done.set(true);
+        drainer.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        long end = START + (long) threads * perThread * LogBuffer.recordSize(bodyLen);
+        assertEquals(end, buffer.end());
+        assertEquals(end, buffer.drainTo(end, segments));
+        assertEquals(threads * perThread, lsns.size());
+
+        List<Long> tids = readBack(end, bodyLen);
+        assertEquals(new HashSet<Long>(tids).size(), tids.size());
+        // each thread's records are in the order it appended them
+        long[] last = new long[threads];
+        Arrays.fill(last, -1);
+        for (long tid : tids) {
+            int t = (int) (tid / perThread);
+            assertTrue(tid > last[t]);
+            last[t] = tid;
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,116 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogSegmentsTest {
+
+    private static final long SEGMENT_SIZE = 4096;
+    private static final long TIMEOUT = 5000;
+
+    private File log;
+    private LogSegments segments;
+
+    @Before public void setUp() throws Exception {
+        log = File.createTempFile("segtest", "");
+        segments = new LogSegments(log, SEGMENT_SIZE);
+        segments.deleteAll();
+    }
+
+    @After public void tearDown() throws Exception {
+        segments.deleteAll();
+        segments.close();
+        log.delete();
+    }
+
+    private static byte[] bytes(int len, int seed) {
+        byte[] b = new byte[len];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    private boolean waitSegments(Set<Long> expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!segments.list().equals(expected)) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Writes that cross segment boundaries read back through the reader,
+     * and reads stop at the limit.
+     */
+    @Test public void writeAcrossSegments() throws Exception {
+        long start = SEGMENT_SIZE - 100;
+        byte[] data = bytes(3 * (int) SEGMENT_SIZE, 1);
+        segments.write(start, data, 0, data.length);
+        segments.force();
+
+        LogSegments.Reader in = segments.new Reader();
+        in.setLimit(start + data.length);
+        in.seek(start);
+        byte[] read = new byte[data.length];
+        in.readFully(read);
+        assertArrayEquals(data, read);
+        assertEquals(start + data.length, in.getFilePointer());
+        try {
+            in.readByte();
+            fail("read past the limit");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Every segment has its full size from the start and reads as zeros
+     * past what was written.
+     */
+    @Test public void segmentsArePreallocated() throws Exception {
+        byte[] data = bytes(10, 2);
+        segments.write(SEGMENT_SIZE, data, 0, data.length);
+        for (long n : segments.list()) {
+            assertEquals(SEGMENT_SIZE, new File(log.getPath() + String.format(".%012d", n)).length());
+        }
+        // the next segment is prepared ahead of time
+        assertTrue(waitSegments(new TreeSet<Long>(Arrays.asList(1L, 2L))));
+
+        LogSegments.Reader in = segments.new Reader();
+        in.setLimit(2 * SEGMENT_SIZE);
+        in.seek(SEGMENT_SIZE + data.length);
+        assertEquals(0, in.readLong());
+    }
+
+    /**
+     * Truncation deletes whole segments before the offset, in the
+     * background, and keeps the one the offset is in.
+     */
+    @Test public void deleteBefore() throws Exception {
+        byte[] data = bytes(4 * (int) SEGMENT_SIZE, 3);
+        segments.write(0, data, 0, data.length);
+        segments.force();
+        segments.deleteBefore(2 * SEGMENT_SIZE + 10);
+        assertTrue(waitSegments(new TreeSet<Long>(Arrays.asList(2L, 3L, 4L))));
+
+        LogSegments.Reader in = segments.new Reader();
+        in.setLimit(data.length);
+        in.seek(2 * SEGMENT_SIZE);
+        assertEquals(data[2 * (int) SEGMENT_SIZE], in.readByte());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
@@ -0,0 +1,135 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+    /** @return the number of spill files of OrderBy in the temporary directory */
+    private static int spillFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list(
+                (dir, name) -> name.startsWith("orderby"));
+        return names == null ? 0 : names.length;
+    }
+
+    /**
+     * Check that sorting a table of three columns with values in [0, keys)
+     * on fields, in runs of runTuples tuples, gives the rows a stable
+     * in-memory sort gives, again after a rewind, and leaves no files
+     * behind.
+     */
+    private void check(int rows, int keys, int[] fields, boolean[] ascs, int runTuples) throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, rows, keys, null, tuples);
+        List<ArrayList<Integer>> sorted = new ArrayList<ArrayList<Integer>>(tuples);
+        sorted.sort((a, b) -> {
+            for (int i = 0; i < fields.length; i++) {
+                int c = Integer.compare(a.get(fields[i]), b.get(fields[i]));
+                if (c != 0) {
+                    return ascs[i] ? c : -c;
+                }
+            }
+            return 0;
+        });
+        int[] data = new int[rows * 3];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < 3; j++) {
+                data[3 * i + j] = sorted.get(i).get(j);
+            }
+        }
+        TupleIterator expected = TestUtil.createTupleList(3, data);
+
+        int files = spillFiles();
+        TransactionId tid = new TransactionId();
+        SeqScan child = new SeqScan(tid, f.getId(), "");
+        OrderBy op = new OrderBy(fields, ascs, child, runTuples * child.getTupleDesc().getSize());
+        expected.open();
+        op.open();
+        TestUtil.compareDbIterators(expected, op);
+        expected.rewind();
+        op.rewind();
+        TestUtil.compareDbIterators(expected, op);
+        op.close();
+        expected.close();
+        assertEquals(files, spillFiles());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Input that fits in one run is sorted in memory, with ties in the
+     * order of the child.
+     */
+    @Test public void inMemory() throws Exception {
+        check(500, 20, new int[] { 0 }, new boolean[] { true }, 1000);
+        check(500, 20, new int[] { 1 }, new boolean[] { false }, 1000);
+    }
+
+    /**
+     * Input of several runs is spilled and merged in one pass, stably.
+     */
+    @Test public void spilled() throws Exception {
+        check(2000, 50, new int[] { 0 }, new boolean[] { true }, 70);
+        check(2000, 50, new int[] { 0 }, new boolean[] { false }, 2);
+    }
+
+    /**
+     * Input of more runs than are merged at once is merged in several
+     * passes.
+     */
+    @Test public void multiPass() throws Exception {
+        check(5000, 1000, new int[] { 1 }, new boolean[] { true }, 10);
+    }
+
+    /**
+     * Several keys, each with a direction of its own.
+     */
+    @Test public void multipleKeys() throws Exception {
+        check(3000, 10, new int[] { 0, 1 }, new boolean[] { true, false }, 100);
+        check(3000, 10, new int[] { 1, 0, 2 }, new boolean[] { false, true, false }, 3000);
+    }
+
+    /**
+     * Strings are spilled and read back as they were.
+     */
+    @Test public void strings() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        List<String> expected = new ArrayList<String>();
+        Random r = new Random(2);
+        for (int i = 0; i < 300; i++) {
+            Tuple t = new Tuple(td);
+            String s = Integer.toString(r.nextInt(100000), 36) + (i % 3 == 0 ? "" : " " + i);
+            t.setField(0, new StringField(s, Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+            expected.add(s);
+        }
+        Collections.sort(expected, Collections.reverseOrder());
+
+        OrderBy op = new OrderBy(new int[] { 0 }, new boolean[] { false },
+                new TupleIterator(td, tuples), 16 * td.getSize());
+        op.open();
+        for (String s : expected) {
+            assertTrue(op.hasNext());
+            assertEquals(s, ((StringField) op.next().getField(0)).getValue());
+        }
+        assertFalse(op.hasNext());
+        op.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageArenaTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 10;
+    private static final int ROWS = 1000;
+
+    /**
+     * Frames are handed out once until they are freed, and do not overlap.
+     */
+    @Test public void allocateAndFree() {
+        PageArena arena = new PageArena(3, 64);
+        Set<Integer> frames = new HashSet<Integer>();
+        for (int i = 0; i < 3; i++) {
+            frames.add(arena.allocate());
+        }
+        assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2)), frames);
+        assertEquals(-1, arena.allocate());
+
+        arena.frame(0).put(63, (byte) 1);
+        arena.frame(1).put(0, (byte) 2);
+        assertEquals(1, arena.frame(0).get(63));
+        assertEquals(2, arena.frame(1).get(0));
+        assertEquals(0, arena.frame(2).get(0));
+
+        arena.free(1);
+        assertEquals(1, arena.getNumFree());
+        assertEquals(1, arena.allocate());
+        try {
+            arena.free(3);
+            fail("freed a frame that does not exist");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private void insert(HeapFile f, int first, int count, boolean commit) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = first; i < first + count; i++) {
+            Database.getBufferPool().insertTuple(tid, f.getId(), SlottedHeapPageTest.tuple(i, "name" + i));
+        }
+        Database.getBufferPool().transactionComplete(tid, commit);
+    }
+
+    /** @return the tuples of f, as a scan returns them */
+    private List<Tuple> scan(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        scan.open();
+        while (scan.hasNext()) {
+            tuples.add(scan.next());
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return tuples;
+    }
+
+    /**
+     * With off-heap frames, pages are read, changed and rolled back as on
+     * the heap, the tuples of a page outlive its eviction, and the pool
+     * gives the frames of the pages it evicts back.
+     */
+    @Test public void offHeapPool() throws Exception {
+        BufferPool pool = Database.resetBufferPool(
+                new BufferPool(POOL_PAGES, new LruKReplacementPolicy(), true));
+        File file = File.createTempFile("arena", ".dat");
+        HeapFile.deleteOnExit(file);
+        HeapFile f = new HeapFile(file, SlottedHeapPageTest.TD);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        for (int i = 0; i < ROWS; i += 100) {
+            insert(f, i, 100, true);
+        }
+        insert(f, ROWS, 50, false);
+        assertTrue(f.numPages() + " pages", f.numPages() > 2 * POOL_PAGES);
+
+        // read every field after the whole scan, when most of the pages
+        // the tuples came from are gone from the pool
+        List<Tuple> tuples = scan(f);
+        Set<Integer> ids = new HashSet<Integer>();
+        for (Tuple t : tuples) {
+            int id = ((IntField) t.getField(0)).getValue();
+            assertEquals("name" + id, ((StringField) t.getField(1)).getValue());
+            ids.add(id);
+        }
+        assertEquals(ROWS, tuples.size());
+        assertEquals(ROWS, ids.size());
+
+        int resident = 0;
+        for (int i = 0; i < f.numPages(); i++) {
+            if (pool.isResident(new HeapPageId(f.getId(), i))) {
+                resident++;
+            }
+        }
+        assertTrue(resident > 0);
+        assertEquals(POOL_PAGES - resident, pool.getArena().getNumFree());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageArenaTest.class);
+    }
+}
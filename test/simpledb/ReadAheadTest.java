@@ -0,0 +1,102 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 20;
+    private static final int TUPLES_PER_PAGE = 503;
+    private static final long TIMEOUT = 5000;
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, PAGES * TUPLES_PER_PAGE, null, null);
+        assertEquals(PAGES, hf.numPages());
+        // start cold
+        Database.resetBufferPool(100);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private boolean waitResident(PageId pid) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!Database.getBufferPool().isResident(pid)) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * A sequential scan brings the next pages into the pool ahead of time,
+     * without locking them.
+     */
+    @Test public void prefetchesAhead() throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        // read the first few pages
+        for (int i = 0; i < 4 * TUPLES_PER_PAGE; i++) {
+            assertTrue(it.hasNext());
+            it.next();
+        }
+        assertTrue(it.hasNext()); // now on page 4
+
+        PageId ahead = new HeapPageId(hf.getId(), 5);
+        assertTrue(waitResident(ahead));
+        assertFalse(Database.getBufferPool().holdsLock(tid, ahead));
+
+        int count = 4 * TUPLES_PER_PAGE;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(PAGES * TUPLES_PER_PAGE, count);
+    }
+
+    /**
+     * Jumping around does not trigger prefetching.
+     */
+    @Test public void randomAccessDoesNotPrefetch() throws Exception {
+        ReadAhead ra = new ReadAhead(hf);
+        ra.beforeRead(7, PAGES);
+        ra.beforeRead(2, PAGES);
+        ra.beforeRead(11, PAGES);
+        Thread.sleep(100);
+        for (int i = 0; i < PAGES; i++)
+            assertFalse(Database.getBufferPool().isResident(new HeapPageId(hf.getId(), i)));
+    }
+
+    /**
+     * A page that is resident and dirty is never replaced by a prefetch.
+     */
+    @Test public void prefetchKeepsResidentPage() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 3);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        p.markDirty(true, tid);
+        Database.getBufferPool().prefetchPage(hf, pid);
+        assertSame(p, Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final int CAPACITY = 10;
+    private static final int TABLE = 1;
+
+    /**
+     * Simulates a buffer pool of CAPACITY frames on top of a policy.
+     */
+    private static class Pool {
+        final ReplacementPolicy policy;
+        final Set<PageId> resident = new HashSet<PageId>();
+        final Set<PageId> pinned = new HashSet<PageId>();
+
+        Pool(ReplacementPolicy policy) {
+            this.policy = policy;
+        }
+
+        void get(PageId pid) {
+            if (resident.contains(pid)) {
+                policy.pageAccessed(pid);
+                return;
+            }
+            if (resident.size() >= CAPACITY) {
+                PageId victim = policy.chooseVictim(p -> !pinned.contains(p));
+                assertNotNull(victim);
+                assertTrue(resident.remove(victim));
+                policy.pageRemoved(victim);
+            }
+            resident.add(pid);
+            policy.pageLoaded(pid);
+        }
+    }
+
+    private static List<PageId> hotPages() {
+        List<PageId> hot = new ArrayList<PageId>();
+        hot.add(new BTreePageId(TABLE, 0, BTreePageId.ROOT_PTR));
+        hot.add(new BTreePageId(TABLE, 1, BTreePageId.INTERNAL));
+        hot.add(new BTreePageId(TABLE, 2, BTreePageId.INTERNAL));
+        return hot;
+    }
+
+    /**
+     * Index lookups keep hitting the B+ tree root and internal pages while a
+     * large sequential scan runs through the pool; the index pages must stay.
+     */
+    private void mixedWorkload(ReplacementPolicy policy) {
+        Pool pool = new Pool(policy);
+        List<PageId> hot = hotPages();
+        for (int i = 0; i < 10; i++) {
+            for (PageId pid : hot) {
+                pool.get(pid);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            pool.get(new HeapPageId(TABLE + 1, i));
+            if (i % 4 == 0) {
+                for (PageId pid : hot) {
+                    pool.get(pid);
+                }
+            }
+        }
+        for (PageId pid : hot) {
+            assertTrue(pool.resident.contains(pid));
+        }
+    }
+
+    @Test public void clockMixedWorkload() {
+        mixedWorkload(new ClockReplacementPolicy());
+    }
+
+    @Test public void lruKMixedWorkload() {
+        mixedWorkload(new LruKReplacementPolicy());
+    }
+
+    /**
+     * With LRU-2 a scan on its own cannot evict pages that were referenced
+     * more than once.
+     */
+    @Test public void lruKScanResistant() {
+        Pool pool = new Pool(new LruKReplacementPolicy());
+        List<PageId> hot = hotPages();
+        for (int i = 0; i < 2; i++) {
+            for (PageId pid : hot) {
+                pool.get(pid);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            pool.get(new HeapPageId(TABLE + 1, i));
+        }
+        for (PageId pid : hot) {
+            assertTrue(pool.resident.contains(pid));
+        }
+    }
+
+    /**
+     * Pages the caller refuses to evict are skipped; if nothing is
+     * evictable, no victim is returned.
+     */
+    @Test public void skipsUnevictable() {
+        ReplacementPolicy[] policies = {new ClockReplacementPolicy(), new LruKReplacementPolicy()};
+        for (ReplacementPolicy policy : policies) {
+            PageId a = new HeapPageId(TABLE, 0);
+            PageId b = new HeapPageId(TABLE, 1);
+            policy.pageLoaded(a);
+            policy.pageLoaded(b);
+            assertEquals(b, policy.chooseVictim(p -> !p.equals(a)));
+            assertNull(policy.chooseVictim(p -> false));
+            policy.pageRemoved(b);
+            assertEquals(a, policy.chooseVictim(p -> true));
+            policy.pageRemoved(a);
+            assertNull(policy.chooseVictim(p -> true));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
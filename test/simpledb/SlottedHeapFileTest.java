@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapFileTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 2000;
+
+    private HeapFile heap;
+    private SlottedHeapFile slotted;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("heap", ".dat");
+        HeapFile.deleteOnExit(f);
+        heap = new HeapFile(f, SlottedHeapPageTest.TD);
+        Database.getCatalog().addTable(heap, SystemTestUtil.getUUID());
+        f = File.createTempFile("slotted", ".dat");
+        HeapFile.deleteOnExit(f);
+        slotted = new SlottedHeapFile(f, SlottedHeapPageTest.TD);
+        Database.getCatalog().addTable(slotted, SystemTestUtil.getUUID());
+    }
+
+    private void insert(TransactionId tid, HeapFile f, int first, int count) throws Exception {
+        for (int i = first; i < first + count; i++) {
+            Database.getBufferPool().insertTuple(tid, f.getId(), SlottedHeapPageTest.tuple(i, "name" + i));
+        }
+    }
+
+    private List<Integer> scan(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        List<Integer> ids = new ArrayList<Integer>();
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertEquals("name" + ((IntField) t.getField(0)).getValue(), ((StringField) t.getField(1)).getValue());
+            ids.add(((IntField) t.getField(0)).getValue());
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static List<Integer> range(int first, int count) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = first; i < first + count; i++)
+            ids.add(i);
+        return ids;
+    }
+
+    /**
+     * The same short-string rows take a fraction of the pages of a HeapFile
+     * and scan back the same.
+     */
+    @Test public void fewerPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, heap, 0, ROWS);
+        insert(tid, slotted, 0, ROWS);
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(range(0, ROWS), scan(heap));
+        assertEquals(range(0, ROWS), scan(slotted));
+        assertTrue(heap.numPages() + " heap pages, " + slotted.numPages() + " slotted pages",
+                slotted.numPages() * 5 <= heap.numPages());
+    }
+
+    /**
+     * Deleted rows are gone from scans, and inserts fill the space they
+     * left before the file grows.
+     */
+    @Test public void deleteAndReinsert() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, slotted, 0, ROWS);
+        Database.getBufferPool().transactionComplete(tid);
+        int pages = slotted.numPages();
+
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, slotted.getId(), "");
+        Delete delete = new Delete(tid, new Filter(
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(ROWS / 2)), scan));
+        delete.open();
+        assertEquals(ROWS / 2, ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(range(ROWS / 2, ROWS / 2), scan(slotted));
+
+        tid = new TransactionId();
+        insert(tid, slotted, ROWS, ROWS / 2);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(range(ROWS / 2, ROWS), scan(slotted));
+        assertEquals(pages, slotted.numPages());
+    }
+
+    /**
+     * An aborted insert is rolled back from the before image of the page.
+     */
+    @Test public void abort() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, slotted, 0, 10);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        insert(tid, slotted, 10, 10);
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(range(0, 10), scan(slotted));
+    }
+
+    /**
+     * The log rebuilds slotted pages from the bytes it recorded.
+     */
+    @Test public void logRebuildsPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, slotted, 0, 10);
+        Database.getBufferPool().transactionComplete(tid);
+
+        HeapPageId pid = new HeapPageId(slotted.getId(), 0);
+        Page page = slotted.readPage(pid);
+        Page rebuilt = Database.getLogFile().newPage(page.getClass().getName(), pid, page.getPageData());
+        assertTrue(rebuilt instanceof SlottedHeapPage);
+        assertArrayEquals(page.getPageData(), rebuilt.getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapFileTest.class);
+    }
+}
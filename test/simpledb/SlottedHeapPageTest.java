@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, new String[] { "id", "name" });
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+    }
+
+    static Tuple tuple(int id, String name) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        return t;
+    }
+
+    private SlottedHeapPage emptyPage() throws Exception {
+        return new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+    }
+
+    /**
+     * Tuples come back from the page data with their fields and slots.
+     */
+    @Test public void roundTrip() throws Exception {
+        SlottedHeapPage page = emptyPage();
+        page.insertTuple(tuple(1, ""));
+        page.insertTuple(tuple(2, "bob"));
+        page.insertTuple(tuple(3, "a much longer name than the others"));
+        page.setLSN(42);
+
+        SlottedHeapPage read = new SlottedHeapPage(pid, page.getPageData());
+        assertEquals(42, read.getLSN());
+        assertEquals(3, read.getNumUsedSlots());
+        Iterator<Tuple> it = read.iterator();
+        int slot = 0;
+        for (Tuple expected : new Tuple[] { tuple(1, ""), tuple(2, "bob"),
+                tuple(3, "a much longer name than the others") }) {
+            Tuple actual = it.next();
+            assertTrue(TestUtil.compareTuples(expected, actual));
+            assertEquals(new RecordId(pid, slot++), actual.getRecordId());
+        }
+        assertFalse(it.hasNext());
+        assertArrayEquals(page.getPageData(), read.getPageData());
+
+        // into a buffer that holds other bytes
+        ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+        Arrays.fill(buf.array(), (byte) 0x5a);
+        read.writePageData(buf);
+        assertEquals(buf.capacity(), buf.position());
+        assertArrayEquals(page.getPageData(), buf.array());
+    }
+
+    /**
+     * Short strings take their actual length, so many more tuples fit than
+     * on a HeapPage.
+     */
+    @Test public void shortStringsFit() throws Exception {
+        SlottedHeapPage page = emptyPage();
+        int n = 0;
+        while (page.hasRoomFor(tuple(n, "name" + n))) {
+            page.insertTuple(tuple(n, "name" + n));
+            n++;
+        }
+        int heapSlots = ((BufferPool.getPageSize() - Page.LSN_SIZE) * 8) / (TD.getSize() * 8 + 1);
+        assertTrue(n + " tuples fit", n > 5 * heapSlots);
+        assertTrue(page.getFreeSpace() < SlottedHeapPage.SLOT_SIZE + SlottedHeapPage.recordSize(tuple(n, "name" + n)));
+
+        try {
+            page.insertTuple(tuple(n, "name" + n));
+            fail("inserted into a full page");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(n, new SlottedHeapPage(pid, page.getPageData()).getNumUsedSlots());
+    }
+
+    /**
+     * Deleting a tuple frees its space and slot, and the other tuples keep
+     * their slots.
+     */
+    @Test public void deleteReusesSlot() throws Exception {
+        SlottedHeapPage page = emptyPage();
+        Tuple a = tuple(1, "alice");
+        Tuple b = tuple(2, "bob");
+        Tuple c = tuple(3, "carol");
+        page.insertTuple(a);
+        page.insertTuple(b);
+        page.insertTuple(c);
+        int free = page.getFreeSpace();
+
+        page.deleteTuple(b);
+        assertFalse(page.isSlotUsed(1));
+        assertEquals(free + SlottedHeapPage.recordSize(b), page.getFreeSpace());
+        try {
+            page.deleteTuple(b);
+            fail("deleted a tuple twice");
+        } catch (DbException e) {
+            // expected
+        }
+
+        SlottedHeapPage read = new SlottedHeapPage(pid, page.getPageData());
+        assertEquals(2, read.getNumUsedSlots());
+        assertTrue(read.isSlotUsed(0));
+        assertFalse(read.isSlotUsed(1));
+        assertTrue(read.isSlotUsed(2));
+
+        Tuple d = tuple(4, "dave");
+        read.insertTuple(d);
+        assertEquals(new RecordId(pid, 1), d.getRecordId());
+
+        // the last slot leaves the directory with its tuple
+        read.deleteTuple(c);
+        assertEquals(free - SlottedHeapPage.recordSize(d) + SlottedHeapPage.recordSize(b)
+                + SlottedHeapPage.recordSize(c) + SlottedHeapPage.SLOT_SIZE, read.getFreeSpace());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
@@ -9,7 +9,8 @@ import org.junit.Test;
 
 public class AbortEvictionTest extends SimpleDbTestBase {
     /** Aborts a transaction and ensures that its effects were actually undone.
-     * This requires dirty pages to <em>not</em> get flushed to disk.
+     * Dirty pages that get evicted while the transaction runs have to be
+     * undone from the log.
      */
     @Test public void testDoNotEvictDirtyPages()
             throws IOException, DbException, TransactionAbortedException {
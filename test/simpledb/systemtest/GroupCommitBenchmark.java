@@ -0,0 +1,101 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.*;
+
+/**
+ * Measures commit throughput with and without group commit.
+ * <p>
+ * Every client thread inserts one row per transaction into a table of its
+ * own, so the threads never contend for page locks and commit throughput is
+ * bounded by how the log is forced.
+ * <p>
+ * Usage: java simpledb.systemtest.GroupCommitBenchmark
+ *   [seconds per run] [max delay in us] [max batch bytes]
+ */
+public class GroupCommitBenchmark {
+
+    private static final int[] CLIENTS = { 1, 2, 4, 8, 16, 32 };
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        long maxDelayMicros = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        int maxBatchBytes = args.length > 2 ? Integer.parseInt(args[2]) : 1 << 20;
+
+        System.out.println("clients\tforce/commit\tgroup commit");
+        for (int clients : CLIENTS) {
+            double plain = run(clients, seconds, false, maxDelayMicros, maxBatchBytes);
+            double group = run(clients, seconds, true, maxDelayMicros, maxBatchBytes);
+            System.out.printf("%d\t%.0f/s\t%.0f/s%n", clients, plain, group);
+        }
+    }
+
+    /** @return commits per second */
+    static double run(int clients, double seconds, boolean groupCommit,
+                      long maxDelayMicros, int maxBatchBytes) throws Exception {
+        Database.reset();
+        final HeapFile[] tables = new HeapFile[clients];
+        for (int i = 0; i < clients; i++) {
+            File f = new File("groupcommit" + i + ".db");
+            f.delete();
+            HeapFile.deleteOnExit(f);
+            tables[i] = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        }
+        if (groupCommit)
+            Database.getLogFile().enableGroupCommit(maxDelayMicros, maxBatchBytes);
+
+        final long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        final long[] commits = new long[clients];
+        final Exception[] errors = new Exception[clients];
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        int v = 0;
+                        while (System.nanoTime() < deadline) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            insert(t, tables[n], v++);
+                            t.commit();
+                            commits[n]++;
+                        }
+                    } catch (Exception e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        long elapsed = System.nanoTime() - start;
+        Database.getLogFile().disableGroupCommit();
+
+        for (Exception e : errors)
+            if (e != null)
+                throw e;
+        long total = 0;
+        for (long c : commits)
+            total += c;
+        return total / (elapsed / 1e9);
+    }
+
+    static void insert(Transaction t, HeapFile hf, int v)
+            throws DbException, TransactionAbortedException {
+        Tuple tup = new Tuple(Utility.getTupleDesc(2));
+        tup.setField(0, new IntField(v));
+        tup.setField(1, new IntField(v));
+        TupleIterator it = new TupleIterator(Utility.getTupleDesc(2),
+                Arrays.asList(new Tuple[] { tup }));
+        Insert insert = new Insert(t.getId(), it, hf.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+    }
+}
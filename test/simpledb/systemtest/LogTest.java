@@ -103,10 +103,17 @@ public class LogTest extends SimpleDbTestBase {
     // restart Database
     // run log recovery
     void crash()
+        throws DbException, TransactionAbortedException, IOException {
+        crash(1);
+    }
+
+    // simulate crash, recover on several threads
+    void crash(int recoveryThreads)
         throws DbException, TransactionAbortedException, IOException {
         Database.reset();
         hf1 = Utility.openHeapFile(2, file1);
         hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().setRecoveryThreads(recoveryThreads);
         Database.getLogFile().recover();
     }
 
@@ -427,6 +434,357 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    // each of files gets perThread rows from a thread of its own, one
+    // transaction per row; optionally a checkpoint is taken meanwhile
+    void commitConcurrently(final HeapFile[] files, final int perThread, boolean checkpoint)
+        throws Exception {
+        final Exception[] errors = new Exception[files.length];
+        Thread[] threads = new Thread[files.length];
+        for (int i = 0; i < files.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            insertRow(files[n], t, 100 + n * perThread + j, 0);
+                            t.commit();
+                        }
+                    } catch (Exception e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        if (checkpoint)
+            Database.getLogFile().logCheckpoint();
+        for (Thread t : threads)
+            t.join();
+        for (Exception e : errors)
+            if (e != null)
+                throw e;
+    }
+
+    @Test public void TestGroupCommitCrash()
+            throws Exception {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // two threads commit concurrently under group commit
+        // T3 inserts but does not commit
+        // crash
+        // only the committed data should be there
+
+        Database.getLogFile().enableGroupCommit(2000, 1 << 20);
+        final int perThread = 10;
+        final HeapFile[] files = { hf1, hf2 };
+        commitConcurrently(files, perThread, false);
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf2, t3, 30, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        for (int i = 0; i < files.length; i++)
+            for (int j = 0; j < perThread; j++)
+                look(i == 0 ? hf1 : hf2, t, 100 + i * perThread + j, true);
+        look(hf2, t, 30, false);
+        t.commit();
+    }
+
+    @Test public void TestConcurrentCommitCrash()
+            throws Exception {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // two threads commit concurrently, each forcing the log itself
+        // a checkpoint is taken while they do
+        // T3 inserts but does not commit
+        // crash
+        // only the committed data should be there
+
+        final int perThread = 10;
+        final HeapFile[] files = { hf1, hf2 };
+        commitConcurrently(files, perThread, true);
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf2, t3, 30, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        for (int i = 0; i < files.length; i++)
+            for (int j = 0; j < perThread; j++)
+                look(i == 0 ? hf1 : hf2, t, 100 + i * perThread + j, true);
+        look(hf2, t, 30, false);
+        t.commit();
+    }
+
+    // insert more rows than fit on one page, so that with a tiny buffer
+    // pool some of t's pages have to be stolen
+    void insertMany(HeapFile hf, Transaction t, int first, int count)
+        throws DbException, TransactionAbortedException {
+        for (int i = 0; i < count; i++)
+            insertRow(hf, t, first + i, 0);
+    }
+
+    @Test public void TestStealAbort()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 dirties more pages than the buffer pool holds, then aborts
+        // the stolen pages must be undone from the log
+
+        Database.resetBufferPool(2);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertMany(hf1, t1, 1000, 600);
+        insertRow(hf2, t1, 3, 0);
+        t1.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 1000, false);
+        look(hf1, t, 1599, false);
+        look(hf2, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestStealCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 commits more pages than the buffer pool holds
+        // T2 dirties more pages than the buffer pool holds, does not commit
+        // crash: T1's data must be there, T2's must not
+
+        Database.resetBufferPool(2);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertMany(hf1, t1, 1000, 600);
+        insertRow(hf2, t1, 3, 0);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertMany(hf1, t2, 2000, 600);
+        insertRow(hf2, t2, 4, 0);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 1000, true);
+        look(hf1, t, 1599, true);
+        look(hf2, t, 3, true);
+        look(hf1, t, 2000, false);
+        look(hf1, t, 2599, false);
+        look(hf2, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestRecoverTwice()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts, its page is stolen, crash: recovery undoes T1
+        // T2 inserts on the same page and commits, crash again
+        // the second recovery must not undo T1 on top of T2
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4, 0);
+        t2.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestPageLSN()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // a page written back carries the LSN of its last update, and
+        // recovery leaves a page alone that already has its updates
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().flushAllPages();
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        long lsn1 = hf1.readPage(pid).getLSN();
+        assertTrue(lsn1 > 0);
+
+        doInsert(hf1, 3, 4);
+        Database.getBufferPool().flushAllPages();
+        long lsn2 = hf1.readPage(pid).getLSN();
+        assertTrue(lsn2 > lsn1);
+
+        crash();
+        assertEquals(lsn2, hf1.readPage(pid).getLSN());
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().stopBackgroundWriter();
+
+        // *** Test:
+        // T1 commits, checkpoint, T2 commits, crash
+        // the checkpoint writes no pages, so redo has to start before it
+        // and both T1 and T2 should be there
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1, 0);
+        insertRow(hf1, t1, 2, 0);
+        t1.commit();
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        Database.getLogFile().logCheckpoint();
+        assertFalse(((HeapPage) hf1.readPage(pid)).iterator().hasNext());
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 3, 0);
+        insertRow(hf2, t2, 4, 0);
+        t2.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf2, t, 3, true);
+        look(hf2, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestDeltaRecordCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().stopBackgroundWriter();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts into hf2, its page is stolen
+        // ten transactions each insert a row into a page of hf1 and commit
+        // crash
+        // each commit logs only the changed bytes of the page, and redo
+        // has to apply them in order on top of the page on disk
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 3, 0);
+        Database.getBufferPool().flushAllPages();
+
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        int empty = ((HeapPage) hf1.readPage(pid)).getNumEmptySlots();
+        long start = Database.getLogFile().getLogSize();
+        for (int i = 10; i < 20; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            insertRow(hf1, t, i, 0);
+            t.commit();
+        }
+        long perCommit = (Database.getLogFile().getLogSize() - start) / 10;
+        assertTrue(perCommit < BufferPool.getPageSize() / 4);
+        // NO FORCE: none of them is on disk
+        assertEquals(empty, ((HeapPage) hf1.readPage(pid)).getNumEmptySlots());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf2, t, 3, false);
+        for (int i = 10; i < 20; i++)
+            look(hf1, t, i, true);
+        t.commit();
+    }
+
+    @Test public void TestParallelRecoveryCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 commits more pages than the buffer pool holds
+        // T2 dirties more pages than the buffer pool holds, does not commit
+        // T3 commits a row in hf2 without writing it back
+        // crash, recover on four threads: each page is redone and undone
+        // in log order on its own thread
+
+        Database.resetBufferPool(2);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertMany(hf1, t1, 1000, 1200);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertMany(hf1, t2, 3000, 1200);
+
+        Database.getBufferPool().stopBackgroundWriter();
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf2, t3, 3, 0);
+        t3.commit();
+
+        crash(4);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 1000, true);
+        look(hf1, t, 2199, true);
+        look(hf2, t, 3, true);
+        look(hf1, t, 3000, false);
+        look(hf1, t, 4199, false);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
@@ -0,0 +1,78 @@
+package simpledb.systemtest;
+
+import java.io.*;
+
+import simpledb.*;
+
+/**
+ * Measures how long crash recovery takes with different numbers of
+ * recovery threads.
+ * <p>
+ * Every run builds the same crashed database: committed transactions
+ * insert rows round robin into several tables, with a buffer pool large
+ * enough that nothing is written back, so recovery has to redo every page
+ * from the log. A last transaction is left running with its pages stolen,
+ * so that there is something to undo as well.
+ * <p>
+ * Usage: java simpledb.systemtest.RecoveryBenchmark
+ *   [tables] [rows per table] [rows per transaction]
+ */
+public class RecoveryBenchmark {
+
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+
+    public static void main(String[] args) throws Exception {
+        int tables = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int rowsPerXaction = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        System.out.println("threads\trecovery");
+        for (int threads : THREADS) {
+            double ms = run(threads, tables, rows, rowsPerXaction);
+            System.out.printf("%d\t%.0f ms%n", threads, ms);
+        }
+    }
+
+    /** @return the time recover() took, in milliseconds */
+    static double run(int threads, int tables, int rows, int rowsPerXaction)
+            throws Exception {
+        File[] files = new File[tables];
+        HeapFile[] hfs = new HeapFile[tables];
+        Database.reset();
+        for (int i = 0; i < tables; i++) {
+            files[i] = new File("recovery" + i + ".db");
+            files[i].delete();
+            HeapFile.deleteOnExit(files[i]);
+            hfs[i] = Utility.createEmptyHeapFile(files[i].getAbsolutePath(), 2);
+        }
+        int pages = tables * (rows / 400 + 1);
+        Database.resetBufferPool(2 * pages).stopBackgroundWriter();
+
+        int v = 0;
+        for (int done = 0; done < tables * rows; done += rowsPerXaction) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 0; i < rowsPerXaction; i++) {
+                GroupCommitBenchmark.insert(t, hfs[v % tables], v);
+                v++;
+            }
+            t.commit();
+        }
+        Transaction loser = new Transaction();
+        loser.start();
+        for (int i = 0; i < tables; i++) {
+            GroupCommitBenchmark.insert(loser, hfs[i], -1);
+        }
+        Database.getBufferPool().flushPages(loser.getId());
+
+        // crash
+        Database.reset();
+        for (int i = 0; i < tables; i++) {
+            hfs[i] = Utility.openHeapFile(2, files[i]);
+        }
+        Database.getLogFile().setRecoveryThreads(threads);
+        long start = System.nanoTime();
+        Database.getLogFile().recover();
+        return (System.nanoTime() - start) / 1e6;
+    }
+}
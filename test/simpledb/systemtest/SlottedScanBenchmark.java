@@ -0,0 +1,85 @@
+package simpledb.systemtest;
+
+import java.io.*;
+
+import simpledb.*;
+
+/**
+ * Compares the size of a table of short strings, and the time a full scan
+ * of it takes, as a HeapFile and as a SlottedHeapFile.
+ * <p>
+ * Each scan starts with an empty buffer pool, so every page is read from
+ * the file (or the operating system's cache of it).
+ * <p>
+ * Usage: java simpledb.systemtest.SlottedScanBenchmark
+ *   [rows] [string length] [scans]
+ */
+public class SlottedScanBenchmark {
+
+    private static final int ROWS_PER_XACTION = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int strLen = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+        int scans = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+                new String[] { "id", "name" });
+        System.out.println("format\tpages\tscan");
+        for (boolean slotted : new boolean[] { false, true }) {
+            Database.reset();
+            File f = new File(slotted ? "slotted.db" : "heap.db");
+            f.delete();
+            HeapFile.deleteOnExit(f);
+            HeapFile hf = slotted ? new SlottedHeapFile(f, td) : new HeapFile(f, td);
+            Database.getCatalog().addTable(hf, f.getName());
+            load(hf, td, rows, strLen);
+
+            double best = Double.MAX_VALUE;
+            for (int i = 0; i < scans; i++) {
+                best = Math.min(best, scan(hf));
+            }
+            System.out.printf("%s\t%d\t%.1f ms%n", slotted ? "slotted" : "heap", hf.numPages(), best);
+        }
+    }
+
+    static void load(HeapFile hf, TupleDesc td, int rows, int strLen) throws Exception {
+        StringBuilder pad = new StringBuilder();
+        for (int i = 0; i < strLen; i++)
+            pad.append('x');
+        for (int done = 0; done < rows; done += ROWS_PER_XACTION) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = done; i < Math.min(rows, done + ROWS_PER_XACTION); i++) {
+                Tuple tup = new Tuple(td);
+                tup.setField(0, new IntField(i));
+                String s = (i + pad.toString()).substring(0, strLen);
+                tup.setField(1, new StringField(s, Type.STRING_LEN));
+                Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tup);
+            }
+            t.commit();
+        }
+        Database.getBufferPool().flushAllPages();
+    }
+
+    /** @return the time a cold scan of hf takes, in milliseconds */
+    static double scan(HeapFile hf) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Transaction t = new Transaction();
+        t.start();
+        long start = System.nanoTime();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        double ms = (System.nanoTime() - start) / 1e6;
+        t.commit();
+        if (n == 0)
+            throw new RuntimeException("scanned no rows");
+        return ms;
+    }
+}
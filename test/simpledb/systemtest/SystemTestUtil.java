@@ -80,7 +80,7 @@ public class SystemTestUtil {
 
         // Convert the tuples list to a heap file and open it
         File temp = File.createTempFile("table", ".dat");
-        temp.deleteOnExit();
+        HeapFile.deleteOnExit(temp);
         HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), columns);
         return temp;
     }
@@ -109,6 +109,26 @@ public class SystemTestUtil {
 
     public static void matchTuples(OpIterator iterator, List<ArrayList<Integer>> tuples)
             throws DbException, TransactionAbortedException, IOException {
+        iterator.open();
+        matchOpenTuples(iterator, tuples);
+        iterator.close();
+    }
+
+    /**
+     * Like matchTuples(OpIterator, List), and then again after rewinding
+     * the iterator.
+     */
+    public static void matchTuplesAndRewind(OpIterator iterator, List<ArrayList<Integer>> tuples)
+            throws DbException, TransactionAbortedException, IOException {
+        iterator.open();
+        matchOpenTuples(iterator, tuples);
+        iterator.rewind();
+        matchOpenTuples(iterator, tuples);
+        iterator.close();
+    }
+
+    private static void matchOpenTuples(OpIterator iterator, List<ArrayList<Integer>> tuples)
+            throws DbException, TransactionAbortedException {
         ArrayList<ArrayList<Integer>> copy = new ArrayList<ArrayList<Integer>>(tuples);
 
         if (Debug.isEnabled()) {
@@ -118,7 +138,6 @@ public class SystemTestUtil {
             }
         }
 
-        iterator.open();
         while (iterator.hasNext()) {
             Tuple t = iterator.next();
             ArrayList<Integer> list = tupleToList(t);
@@ -128,7 +147,6 @@ public class SystemTestUtil {
                 Assert.fail("expected tuples does not contain: " + t);
             }
         }
-        iterator.close();
 
         if (!copy.isEmpty()) {
             String msg = "expected to find the following tuples:\n";